@@ -0,0 +1,835 @@
+package com.pipelinedetector;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Worker stage that turns raw sensor frames into pressures and leak decisions.
+ * 
+ * The Bluetooth reader threads only copy frames into one bounded
+ * single-producer/single-consumer queue per sensor node. A dedicated worker
+ * thread drains all queues and, once every node has delivered a new reading,
+ * merges them into one flow vector (in node order) per sampling period. Only
+ * that merged sample has its pressures calculated, leak detection run and
+ * history recorded, so the detectors and logs see the real sample rate and
+ * the main thread is never involved per sample. The UI
+ * polls for a coalesced immutable snapshot once per display frame.
+ * 
+ * Samples are timed from the monotonic arrival stamp taken by the reader,
+ * refined by aligning each node's own clock, and only converted to wall-clock
+ * time with an offset fixed at construction, so clock changes on the phone
+ * cannot reorder or stretch the history.
+ */
+public class AcquisitionPipeline implements FrameListener {
+    private static final String TAG = "AcquisitionPipeline";
+    
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int DRAIN_BATCH = 64;
+    private static final long IDLE_WAIT_NANOS = 50000000L; // 50 ms
+    private static final int HISTORY_LIMIT = 100;
+    
+    // Spike removal on the raw flow channels
+    private static final double FLOW_FILTER_MIN_SCALE = 0.05; // L/min
+    
+    private static final long RUPTURE_HOLD_MILLIS = 30000; // keep a rupture alarm until the steady-state detectors catch up
+    
+    private final PipeProfile profile;
+    private final PipeLayout layout;
+    private final int sensorCount;
+    private final PipeLeakageDetector detector;
+    private final CusumLeakDetector changeDetector;
+    private final KalmanFlowEstimator flowEstimator;
+    private final LeakLocalizer localizer;
+    private final MassBalanceDetector massBalance;
+    private final LeakAlarm alarm;
+    private NegativePressureWaveDetector transientDetector; // null unless high-rate sampling is enabled
+    
+    // Logs of every processed sample; written and closed by the worker
+    private SampleSink sampleLog;
+    private JSONStreamWriter jsonExport;
+    
+    // Thresholds requested by any thread; the worker hands them to the detector
+    private volatile LeakThresholds thresholds;
+    
+    // Baseline learning, handed over to the worker through pendingCalibrator
+    private volatile ThresholdCalibrator pendingCalibrator;
+    private volatile ThresholdCalibrator calibrator;
+    
+    // One queue per node; a node is read by one task at a time, so each queue has a single producer
+    private final FrameQueue[] queues;
+    
+    // Worker-thread state, reused for every frame
+    private final SampleParser sampleParser = new SampleParser();
+    private final SensorSample sample = new SensorSample();
+    private final double[][] nodeFlows;
+    private final int[] nodeChannels;
+    private final boolean[] nodeFresh; // delivered a reading since the last merged sample
+    private final ClockAligner[] clockAligners;
+    private final HampelFilter[][] flowFilters; // per node and channel, created on first use
+    private final int filterWindow;
+    private final long[] nodeSampleNanos;
+    private long mergedSampleNanos;
+    private boolean merged;
+    private final double[] flows;
+    private final double[] measuredFlows; // Hampel-filtered readings before the flow estimator
+    private final double[] pressures;
+    private final double[] measuredPressures; // from the measured flows, for storage and the transient detector
+    private final boolean[] segmentLeaks;
+    private final double[] leakPositions;
+    private double percentDifference;
+    private int ruptureSegment = -1;
+    private double rupturePosition;
+    private long ruptureUntilNanos;
+    private int alarmEvents;
+    private boolean alarmChanged;
+    private long alarmVersion;
+    
+    // Converts System.nanoTime() to milliseconds since the epoch
+    private final long epochOffsetNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    
+    // Data lost while nodes were disconnected, recorded with the next stored sample
+    private long pendingGapMillis;
+    private long totalGapMillis;
+    
+    // Latest results published for the UI (guarded by this)
+    private final double[] publishedFlows;
+    private final double[] publishedPressures;
+    private final boolean[] publishedLeaks;
+    private final double[] publishedLeakPositions;
+    private double publishedPercentDifference;
+    private long publishedAlarmVersion;
+    private long publishedTimestamp;
+    private long publishedGapMillis;
+    private volatile long version;
+    
+    // Data history for flow rates and pressures (guarded by historyLock)
+    private final Object historyLock = new Object();
+    private JSONArray historyData = new JSONArray();
+    
+    private volatile boolean running;
+    private Thread worker;
+    
+    /**
+     * Constructor for the default three-sensor layout
+     * 
+     * @param nodeCount Number of sensor nodes whose frames are merged
+     */
+    public AcquisitionPipeline(int nodeCount) {
+        this(nodeCount, PipeLayout.defaultLayout());
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param nodeCount Number of sensor nodes whose frames are merged
+     * @param layout Positions and elevations of the sensors, in the order their readings are merged
+     */
+    public AcquisitionPipeline(int nodeCount, PipeLayout layout) {
+        this(nodeCount, layout, HampelFilter.DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param nodeCount Number of sensor nodes whose frames are merged
+     * @param profile Pipe, fluid and sensor layout, in the order readings are merged
+     */
+    public AcquisitionPipeline(int nodeCount, PipeProfile profile) {
+        this(nodeCount, profile, HampelFilter.DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param nodeCount Number of sensor nodes whose frames are merged
+     * @param layout Positions and elevations of the sensors, in the order their readings are merged
+     * @param filterWindow Number of recent samples per channel used to reject spikes
+     */
+    public AcquisitionPipeline(int nodeCount, PipeLayout layout, int filterWindow) {
+        this(nodeCount, new PipeProfile(layout), filterWindow);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param nodeCount Number of sensor nodes whose frames are merged
+     * @param profile Pipe, fluid and sensor layout, in the order readings are merged
+     * @param filterWindow Number of recent samples per channel used to reject spikes
+     */
+    public AcquisitionPipeline(int nodeCount, PipeProfile profile, int filterWindow) {
+        this.profile = profile;
+        this.layout = profile.getLayout();
+        this.filterWindow = filterWindow;
+        sensorCount = layout.getSensorCount();
+        detector = new PipeLeakageDetector(profile, LeakThresholds.defaults(layout.getSegmentCount()));
+        changeDetector = new CusumLeakDetector(layout.getSegmentCount());
+        flowEstimator = new KalmanFlowEstimator(sensorCount);
+        localizer = new LeakLocalizer(profile, LeakLocalizer.DEFAULT_SMOOTHING);
+        massBalance = new MassBalanceDetector(sensorCount);
+        alarm = new LeakAlarm(layout.getSegmentCount());
+        thresholds = detector.getThresholds();
+        flows = new double[sensorCount];
+        measuredFlows = new double[sensorCount];
+        pressures = new double[sensorCount];
+        measuredPressures = new double[sensorCount];
+        segmentLeaks = new boolean[layout.getSegmentCount()];
+        leakPositions = new double[layout.getSegmentCount()];
+        publishedFlows = new double[sensorCount];
+        publishedPressures = new double[sensorCount];
+        publishedLeaks = new boolean[layout.getSegmentCount()];
+        publishedLeakPositions = new double[layout.getSegmentCount()];
+        
+        queues = new FrameQueue[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            queues[i] = new FrameQueue(QUEUE_CAPACITY, BluetoothService.MAX_FRAME_LENGTH);
+        }
+        nodeFlows = new double[nodeCount][SensorSample.MAX_CHANNELS];
+        nodeChannels = new int[nodeCount];
+        nodeFresh = new boolean[nodeCount];
+        nodeSampleNanos = new long[nodeCount];
+        flowFilters = new HampelFilter[nodeCount][SensorSample.MAX_CHANNELS];
+        clockAligners = new ClockAligner[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            clockAligners[i] = new ClockAligner();
+        }
+    }
+    
+    /**
+     * Watch for the pressure waves of sudden ruptures at the rig's nominal flow
+     * 
+     * @param sampleRateHz Rate at which merged samples arrive
+     * @throws IllegalArgumentException if the rate is too low for the sensor spacing
+     */
+    public void enableTransientDetection(double sampleRateHz) {
+        enableTransientDetection(sampleRateHz, NegativePressureWaveDetector.DEFAULT_NOMINAL_FLOW);
+    }
+    
+    /**
+     * Watch for the pressure waves of sudden ruptures; needs sensors sampled at hundreds of Hz.
+     * Must be called before start().
+     * 
+     * @param sampleRateHz Rate at which merged samples arrive
+     * @param nominalFlow Usual flow rate through the pipe in L/min, which sizes the drop threshold
+     * @throws IllegalArgumentException if the rate is too low for the sensor spacing
+     */
+    public synchronized void enableTransientDetection(double sampleRateHz, double nominalFlow) {
+        if (worker != null) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        
+        // Pressures are calculated from flows, so the wave only shows in their dynamic part
+        transientDetector = new NegativePressureWaveDetector(profile, sampleRateHz, nominalFlow);
+    }
+    
+    /**
+     * Record every processed sample in a binary log or segment store. Must be called
+     * before start(); the pipeline closes the log when its worker stops.
+     * 
+     * @param log Log for this pipeline's layout
+     */
+    public synchronized void setSampleLog(SampleSink log) {
+        if (worker != null) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        sampleLog = log;
+    }
+    
+    /**
+     * Also write every processed sample, as in the history, to a JSON file.
+     * Must be called before start(); the pipeline closes the export when its worker stops.
+     * 
+     * @param export Writer of the session's JSON file
+     */
+    public synchronized void setJsonExport(JSONStreamWriter export) {
+        if (worker != null) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        jsonExport = export;
+    }
+    
+    /**
+     * Replace the leak thresholds, e.g. with ones calibrated earlier for this line
+     * 
+     * @param thresholds Per-segment thresholds for this pipeline's layout
+     */
+    public void setThresholds(LeakThresholds thresholds) {
+        if (thresholds.getSegmentCount() != layout.getSegmentCount()) {
+            throw new IllegalArgumentException("Expected thresholds for " + layout.getSegmentCount() + " segments");
+        }
+        this.thresholds = thresholds;
+    }
+    
+    /**
+     * Return the leak thresholds in use; after a calibration these are the learned ones
+     */
+    public LeakThresholds getThresholds() {
+        return thresholds;
+    }
+    
+    /**
+     * Learn new thresholds from the coming samples, which must be leak-free.
+     * Detection continues with the current thresholds until the baseline is complete.
+     * 
+     * @param calibrator Calibrator for this pipeline's segment count
+     */
+    public void startCalibration(ThresholdCalibrator calibrator) {
+        pendingCalibrator = calibrator;
+    }
+    
+    /**
+     * Return how much of the calibration baseline has been observed, or -1 if not calibrating
+     */
+    public double getCalibrationProgress() {
+        ThresholdCalibrator current = pendingCalibrator != null ? pendingCalibrator : calibrator;
+        return current != null ? current.getProgress() : -1;
+    }
+    
+    /**
+     * Start the worker thread
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processLoop();
+            }
+        }, "AcquisitionPipeline");
+        worker.start();
+    }
+    
+    /**
+     * Stop the worker thread; queued frames are discarded
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            // Wake it without interrupting; an interrupt would close the log channels unflushed
+            LockSupport.unpark(worker);
+            worker = null;
+        }
+    }
+    
+    /**
+     * Called on a reader thread for every complete frame
+     */
+    @Override
+    public void onFrame(int nodeId, byte[] frame, int length, int format, long arrivalNanos) {
+        if (nodeId < 0 || nodeId >= queues.length) {
+            Log.w(TAG, "Frame from unexpected node " + nodeId + " dropped");
+            return;
+        }
+        if (!queues[nodeId].offer(nodeId, frame, length, format, arrivalNanos)) {
+            Log.w(TAG, "Processing is behind, frame dropped");
+        }
+    }
+    
+    /**
+     * Return the pipe profile used to derive pressures
+     */
+    public PipeProfile getProfile() {
+        return profile;
+    }
+    
+    /**
+     * Return the layout of the sensors
+     */
+    public PipeLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * Return a counter that changes whenever a new sample has been processed
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Build an immutable copy of the latest results
+     * 
+     * @return The snapshot, or null if no sample has been processed yet
+     */
+    public synchronized PipelineSnapshot snapshot() {
+        if (version == 0) {
+            return null;
+        }
+        int droppedFrames = 0;
+        for (FrameQueue queue : queues) {
+            droppedFrames += queue.getDroppedFrames();
+        }
+        return new PipelineSnapshot(version, publishedTimestamp, publishedFlows, publishedPressures,
+                publishedLeaks, publishedLeakPositions, publishedPercentDifference, droppedFrames, publishedGapMillis,
+                publishedAlarmVersion);
+    }
+    
+    /**
+     * Return the estimated clock drift of a sensor node in parts per million,
+     * or 0 until enough binary frames have been received
+     * 
+     * @param nodeId Id of the sensor node
+     */
+    public double getClockDriftPpm(int nodeId) {
+        return clockAligners[nodeId].getDriftPpm();
+    }
+    
+    /**
+     * Return the number of raw flow samples replaced as spikes, over all channels
+     */
+    public int getReplacedSamples() {
+        int count = 0;
+        for (HampelFilter[] filters : flowFilters) {
+            for (HampelFilter filter : filters) {
+                if (filter != null) {
+                    count += filter.getReplacedSamples();
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Export data history as JSON string
+     */
+    public String exportDataHistory() {
+        synchronized (historyLock) {
+            return historyData.toString();
+        }
+    }
+    
+    private void processLoop() {
+        Log.i(TAG, "BEGIN processLoop");
+        while (running) {
+            // Take the oldest frame of all nodes each time, so that a backlog is merged period by period
+            int handled = 0;
+            while (handled < DRAIN_BATCH) {
+                FrameQueue oldest = null;
+                long oldestArrival = 0;
+                for (FrameQueue queue : queues) {
+                    if (!queue.isEmpty() && (oldest == null || queue.peekArrivalNanos() - oldestArrival < 0)) {
+                        oldest = queue;
+                        oldestArrival = queue.peekArrivalNanos();
+                    }
+                }
+                if (oldest == null) {
+                    break;
+                }
+                handled += oldest.drain(frameHandler, 1);
+            }
+            if (handled == 0) {
+                FrameQueue.await(queues, IDLE_WAIT_NANOS);
+            }
+        }
+        closeLogs();
+        Log.i(TAG, "END processLoop");
+    }
+    
+    /**
+     * Runs on the worker thread for each dequeued frame
+     */
+    private final FrameListener frameHandler = new FrameListener() {
+        @Override
+        public void onFrame(int nodeId, byte[] frame, int length, int format, long arrivalNanos) {
+            try {
+                processFrame(nodeId, frame, length, format, arrivalNanos);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error processing data", e);
+            }
+        }
+    };
+    
+    /**
+     * Parse one frame and run the detection chain on it
+     */
+    private void processFrame(int nodeId, byte[] frame, int length, int format, long arrivalNanos) {
+        if (format == FrameDecoder.FORMAT_GAP) {
+            handleGap(nodeId, FrameAssembler.decodeGap(frame, length));
+            return;
+        }
+        
+        int fields;
+        if (format == FrameDecoder.FORMAT_BINARY) {
+            fields = BinaryFrameDecoder.decode(frame, length, sample);
+        } else {
+            fields = sampleParser.parse(frame, 0, length, sample);
+        }
+        if (fields < 0) {
+            if (format == FrameDecoder.FORMAT_BINARY) {
+                Log.w(TAG, "Discarding malformed binary frame (error " + fields + ", " + length + " bytes)");
+            } else {
+                Log.w(TAG, "Discarding malformed frame (error " + fields + " at field " + sampleParser.getErrorField() + ")");
+            }
+            return;
+        }
+        
+        // Keep the node's latest reading, with spikes replaced; a later reading of the same period replaces it
+        sample.copyFlows(nodeFlows[nodeId]);
+        filterFlows(nodeId, fields);
+        nodeChannels[nodeId] = fields;
+        nodeFresh[nodeId] = true;
+        nodeSampleNanos[nodeId] = clockAligners[nodeId].align(sample.getSequence(), sample.getDeviceTimestamp(), arrivalNanos);
+        
+        // Run the chain once per period, when every node has delivered
+        if (!mergeFlows()) {
+            return;
+        }
+        long sampleNanos = latestSampleNanos();
+        if (merged && sampleNanos - mergedSampleNanos <= 0) {
+            // Aligned to the period already processed, e.g. a reading delivered twice
+            return;
+        }
+        merged = true;
+        mergedSampleNanos = sampleNanos;
+        long timestamp = (sampleNanos + epochOffsetNanos) / 1000000L;
+        
+        // Keep the Hampel-filtered readings and their pressures; the logs store measurements, not estimates,
+        // and pressure waves last only a few samples, which the estimator would smooth away
+        System.arraycopy(flows, 0, measuredFlows, 0, sensorCount);
+        profile.calculatePressures(measuredFlows, measuredPressures);
+        
+        // Replace the readings with the estimated true flows, so jitter does not reach the detectors
+        flowEstimator.update(flows, flows);
+        
+        // Calculate pressures using Bernoulli's equation
+        profile.calculatePressures(flows, pressures);
+        
+        // Detect leakage
+        detectLeakage(sampleNanos);
+        
+        // Log the sample before the JSON history consumes the gap
+        logSample(timestamp);
+        
+        // Store data in JSON format
+        storeDataAsJson(timestamp);
+        
+        publish(timestamp);
+    }
+    
+    /**
+     * Account for a period without data from a node
+     */
+    private void handleGap(int nodeId, long gapMillis) {
+        if (gapMillis < 0) {
+            Log.w(TAG, "Discarding malformed gap marker from node " + nodeId);
+            return;
+        }
+        Log.i(TAG, "Node " + nodeId + " delivered no data for " + gapMillis + " ms");
+        pendingGapMillis += gapMillis;
+        totalGapMillis += gapMillis;
+        
+        // The node's last reading is stale; wait for a fresh one before detecting again
+        nodeChannels[nodeId] = 0;
+        
+        // The node may have restarted while it was away
+        clockAligners[nodeId].reset();
+        
+        // The flows may have changed in the meantime; restart the estimates
+        flowEstimator.reset();
+        
+        // Transient windows must be contiguous
+        if (transientDetector != null) {
+            transientDetector.reset();
+        }
+    }
+    
+    /**
+     * Replace spikes in a node's raw readings with the rolling median of their channel
+     */
+    private void filterFlows(int nodeId, int channels) {
+        double[] values = nodeFlows[nodeId];
+        HampelFilter[] filters = flowFilters[nodeId];
+        for (int channel = 0; channel < channels; channel++) {
+            if (filters[channel] == null) {
+                filters[channel] = new HampelFilter(filterWindow, HampelFilter.DEFAULT_THRESHOLD,
+                        FLOW_FILTER_MIN_SCALE, HampelFilter.DEFAULT_MAX_CONSECUTIVE_OUTLIERS);
+            }
+            values[channel] = filters[channel].filter(values[channel]);
+        }
+    }
+    
+    /**
+     * Concatenate the latest readings of all nodes into the flow vector and start the next period
+     * 
+     * @return false until every node needed for the sensors has delivered a reading since the last merge
+     */
+    private boolean mergeFlows() {
+        int sensor = 0;
+        int node = 0;
+        for (; node < nodeChannels.length && sensor < sensorCount; node++) {
+            if (nodeChannels[node] == 0 || !nodeFresh[node]) {
+                return false;
+            }
+            sensor += nodeChannels[node];
+        }
+        if (sensor < sensorCount) {
+            return false;
+        }
+        
+        sensor = 0;
+        for (int i = 0; i < node; i++) {
+            for (int channel = 0; channel < nodeChannels[i] && sensor < sensorCount; channel++) {
+                flows[sensor++] = nodeFlows[i][channel];
+            }
+            nodeFresh[i] = false;
+        }
+        return true;
+    }
+    
+    /**
+     * Return the sample time of the most recent reading in the merged flow vector
+     */
+    private long latestSampleNanos() {
+        long latest = nodeSampleNanos[0];
+        for (int node = 1; node < nodeSampleNanos.length; node++) {
+            if (nodeSampleNanos[node] - latest > 0) {
+                latest = nodeSampleNanos[node];
+            }
+        }
+        return latest;
+    }
+    
+    /**
+     * Detect leakage based on pressure drop and flow rate differences
+     */
+    private void detectLeakage(long sampleNanos) {
+        // Pick up thresholds set from other threads
+        LeakThresholds requested = thresholds;
+        if (detector.getThresholds() != requested) {
+            detector.setThresholds(requested);
+        }
+        
+        // A normal pressure line should have a steady negative slope;
+        // leakage causes a sharper drop in one segment or a loss of flow
+        detector.detect(flows, pressures);
+        percentDifference = detector.getMaxScore();
+        learnThresholds();
+        
+        // Decide on accumulated evidence rather than single samples once the baselines are learned;
+        // calibrated thresholds are trusted per sample as well, the fixed defaults are not
+        changeDetector.update(flows, detector);
+        if (changeDetector.isWarmedUp()) {
+            boolean calibrated = detector.getThresholds().isCalibrated();
+            for (int i = 0; i < segmentLeaks.length; i++) {
+                segmentLeaks[i] = changeDetector.isAlarm(i) || (calibrated && detector.isLeaking(i));
+            }
+        } else {
+            detector.copyLeaks(segmentLeaks);
+        }
+        
+        // Slow seepage only shows up as volume missing over minutes or hours
+        massBalance.update(sampleNanos, flows);
+        for (int i = 0; i < segmentLeaks.length; i++) {
+            segmentLeaks[i] |= massBalance.isLeaking(i);
+        }
+        
+        // Only raise and drop alarms on decisions that persist, so operators do not see them flicker
+        alarmEvents = alarm.update(sampleNanos, segmentLeaks);
+        alarmChanged = alarmEvents > 0;
+        for (int i = 0; i < segmentLeaks.length; i++) {
+            segmentLeaks[i] = alarm.isAlarmed(i);
+        }
+        
+        // Narrow each leaking segment down to a position from the hydraulic gradient lines
+        localizer.update(flows, pressures, segmentLeaks);
+        for (int i = 0; i < leakPositions.length; i++) {
+            leakPositions[i] = localizer.getLeakPosition(i);
+        }
+        
+        // A located pressure wave raises the alarm at once, with the more precise position
+        if (transientDetector != null) {
+            if (transientDetector.update(measuredPressures)) {
+                ruptureSegment = transientDetector.getRuptureSegment();
+                rupturePosition = transientDetector.getRupturePosition();
+                ruptureUntilNanos = sampleNanos + RUPTURE_HOLD_MILLIS * 1000000L;
+                alarmChanged = true;
+                Log.w(TAG, "Rupture located at " + rupturePosition + " m");
+            }
+            if (ruptureSegment >= 0 && sampleNanos - ruptureUntilNanos < 0) {
+                segmentLeaks[ruptureSegment] = true;
+                leakPositions[ruptureSegment] = rupturePosition;
+            } else if (ruptureSegment >= 0) {
+                ruptureSegment = -1;
+                alarmChanged = true;
+            }
+        }
+        if (alarmChanged) {
+            alarmVersion++;
+        }
+    }
+    
+    /**
+     * Feed the running calibration and switch to the learned thresholds once it is complete
+     */
+    private void learnThresholds() {
+        ThresholdCalibrator requested = pendingCalibrator;
+        if (requested != null) {
+            calibrator = requested;
+            pendingCalibrator = null;
+        }
+        if (calibrator == null) {
+            return;
+        }
+        calibrator.update(flows, detector);
+        if (calibrator.isComplete()) {
+            thresholds = calibrator.getThresholds();
+            calibrator = null;
+            Log.i(TAG, "Calibrated leak thresholds from " + thresholds.getBaselineSamples() + " samples");
+        }
+    }
+    
+    /**
+     * Append the current sample to the binary log, if any, with the measured rather than estimated flows
+     */
+    private void logSample(long timestamp) {
+        if (sampleLog == null) {
+            return;
+        }
+        try {
+            sampleLog.append(timestamp, measuredFlows, measuredPressures, SampleLogWriter.flags(segmentLeaks, pendingGapMillis > 0));
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing sample log, logging stopped", e);
+            closeLogs();
+        }
+    }
+    
+    /**
+     * Flush and close the binary log and the JSON export
+     */
+    private void closeLogs() {
+        if (sampleLog != null) {
+            try {
+                sampleLog.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing sample log", e);
+            }
+            sampleLog = null;
+        }
+        if (jsonExport != null) {
+            try {
+                jsonExport.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing JSON export", e);
+            }
+            jsonExport = null;
+        }
+    }
+    
+    /**
+     * Store flow rate data as JSON, with the detection result when an alarm changed
+     */
+    private void storeDataAsJson(long timestamp) {
+        try {
+            JSONObject dataPoint = new JSONObject();
+            dataPoint.put("timestamp", timestamp);
+            for (int i = 0; i < sensorCount; i++) {
+                dataPoint.put("flow" + (i + 1), measuredFlows[i]);
+            }
+            
+            // Mark samples that follow missing data
+            if (pendingGapMillis > 0) {
+                dataPoint.put("gapMillis", pendingGapMillis);
+                pendingGapMillis = 0;
+            }
+            
+            // Add pressure data
+            JSONArray pressureArray = new JSONArray();
+            for (int i = 0; i < measuredPressures.length; i++) {
+                JSONObject pressurePoint = new JSONObject();
+                pressurePoint.put("distance", layout.getPosition(i));
+                pressurePoint.put("pressure", measuredPressures[i]);
+                pressureArray.put(pressurePoint);
+            }
+            dataPoint.put("pressures", pressureArray);
+            
+            if (alarmChanged) {
+                dataPoint.put("leakDetection", buildLeakDetection(timestamp));
+            }
+            
+            // Stream the sample to the session's JSON file
+            if (jsonExport != null) {
+                try {
+                    jsonExport.append(dataPoint);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing JSON export, export stopped", e);
+                    try {
+                        jsonExport.close();
+                    } catch (IOException e2) {
+                        Log.e(TAG, "Error closing JSON export", e2);
+                    }
+                    jsonExport = null;
+                }
+            }
+            
+            // Add to history (limit to HISTORY_LIMIT points)
+            synchronized (historyLock) {
+                historyData.put(dataPoint);
+                if (historyData.length() > HISTORY_LIMIT) {
+                    JSONArray newHistory = new JSONArray();
+                    for (int i = historyData.length() - HISTORY_LIMIT; i < historyData.length(); i++) {
+                        newHistory.put(historyData.get(i));
+                    }
+                    historyData = newHistory;
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error storing JSON data", e);
+        }
+    }
+    
+    /**
+     * Describe the detection result and the alarm transitions of the current sample
+     */
+    private JSONObject buildLeakDetection(long timestamp) throws JSONException {
+        JSONObject leakDetection = new JSONObject();
+        leakDetection.put("timestamp", timestamp);
+        for (int i = 0; i < segmentLeaks.length; i++) {
+            leakDetection.put("pressureDrop" + (i + 1), detector.getPressureDrop(i));
+            leakDetection.put("changeScore" + (i + 1), changeDetector.getScore(i));
+            leakDetection.put("innovationScore" + (i + 1), flowEstimator.getScore(i));
+            leakDetection.put("leakRate" + (i + 1), flowEstimator.getLeakRate(i));
+            if (!Double.isNaN(leakPositions[i])) {
+                leakDetection.put("leakPosition" + (i + 1), leakPositions[i]);
+            }
+        }
+        leakDetection.put("percentDifference", percentDifference);
+        int balanceWindow = massBalance.getLongestFullWindow();
+        if (balanceWindow >= 0) {
+            leakDetection.put("balanceWindowMillis", massBalance.getWindowMillis(balanceWindow));
+            for (int i = 0; i < segmentLeaks.length; i++) {
+                leakDetection.put("volumeImbalance" + (i + 1), massBalance.getImbalance(balanceWindow, i));
+            }
+        }
+        if (ruptureSegment >= 0) {
+            leakDetection.put("ruptureSegment", ruptureSegment + 1);
+        }
+        for (int e = 0; e < alarmEvents; e++) {
+            int event = alarm.getEvent(e);
+            leakDetection.put("alarm" + (LeakAlarm.eventSegment(event) + 1), LeakAlarm.stateName(LeakAlarm.eventTo(event)));
+        }
+        return leakDetection;
+    }
+    
+    /**
+     * Make the latest results visible to snapshot()
+     */
+    private synchronized void publish(long timestamp) {
+        System.arraycopy(flows, 0, publishedFlows, 0, sensorCount);
+        System.arraycopy(pressures, 0, publishedPressures, 0, sensorCount);
+        System.arraycopy(segmentLeaks, 0, publishedLeaks, 0, segmentLeaks.length);
+        System.arraycopy(leakPositions, 0, publishedLeakPositions, 0, leakPositions.length);
+        publishedPercentDifference = percentDifference;
+        publishedAlarmVersion = alarmVersion;
+        publishedTimestamp = timestamp;
+        publishedGapMillis = totalGapMillis;
+        version++;
+    }
+}
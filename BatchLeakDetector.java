@@ -0,0 +1,234 @@
+package com.pipelinedetector;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reruns leak detection over stored readings held in columns.
+ * 
+ * Input is one column per flow channel plus an optional timestamp column,
+ * as double[] arrays or DoubleBuffers (heap or direct, read with absolute
+ * gets so nothing is copied). Rows are split into ranges that are processed
+ * on a fork/join pool; every range runs its own PipeLeakageDetector over its
+ * rows in one pass and writes straight into per-segment result columns.
+ */
+public class BatchLeakDetector {
+    // Rows below which a range is not split any further
+    private static final int MIN_SPLIT_ROWS = 8192;
+    
+    private static ForkJoinPool pool;
+    
+    private final PipeProfile profile;
+    private final PipeLayout layout;
+    private final LeakThresholds thresholds;
+    
+    /**
+     * Constructor using the default thresholds
+     * 
+     * @param layout Positions and elevations of the sensors whose readings are processed
+     */
+    public BatchLeakDetector(PipeLayout layout) {
+        this(layout, LeakThresholds.defaults(layout.getSegmentCount()));
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param layout Positions and elevations of the sensors whose readings are processed
+     * @param thresholds Per-segment thresholds, e.g. the ones calibrated for this line
+     */
+    public BatchLeakDetector(PipeLayout layout, LeakThresholds thresholds) {
+        this(new PipeProfile(layout), thresholds);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param profile Pipe, fluid and sensor layout of the stored readings; should match the live pipeline's
+     * @param thresholds Per-segment thresholds, e.g. the ones calibrated for this line
+     */
+    public BatchLeakDetector(PipeProfile profile, LeakThresholds thresholds) {
+        this.profile = profile;
+        this.layout = profile.getLayout();
+        this.thresholds = thresholds;
+    }
+    
+    /**
+     * Run detection over columns of readings
+     * 
+     * @param timestamps Time of each row in milliseconds, or null
+     * @param flows One column of flow rates in L/min per sensor, all of the same length
+     * @return The per-segment result columns
+     */
+    public Result detect(double[] timestamps, double[][] flows) {
+        DoubleBuffer[] columns = new DoubleBuffer[flows.length];
+        for (int i = 0; i < flows.length; i++) {
+            columns[i] = DoubleBuffer.wrap(flows[i]);
+        }
+        return detect(timestamps != null ? DoubleBuffer.wrap(timestamps) : null, columns);
+    }
+    
+    /**
+     * Run detection over columns of readings
+     * 
+     * @param timestamps Time of each row in milliseconds, or null; read from index 0 to its limit
+     * @param flows One column of flow rates in L/min per sensor, all with the same limit
+     * @return The per-segment result columns
+     */
+    public Result detect(DoubleBuffer timestamps, DoubleBuffer[] flows) {
+        if (flows.length != layout.getSensorCount()) {
+            throw new IllegalArgumentException("Expected " + layout.getSensorCount() + " flow columns, got " + flows.length);
+        }
+        int rows = flows[0].limit();
+        for (DoubleBuffer column : flows) {
+            if (column.limit() != rows) {
+                throw new IllegalArgumentException("Flow columns differ in length");
+            }
+        }
+        if (timestamps != null && timestamps.limit() != rows) {
+            throw new IllegalArgumentException("Timestamp column differs in length");
+        }
+        
+        Result result = new Result(layout.getSegmentCount(), rows);
+        if (rows > 0) {
+            double[] totals = getPool().invoke(new RangeTask(timestamps, flows, result, 0, rows));
+            int segments = layout.getSegmentCount();
+            for (int i = 0; i < segments; i++) {
+                result.leakRows[i] = (int) totals[i];
+                result.leakMillis[i] = totals[segments + i];
+            }
+        }
+        return result;
+    }
+    
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+    
+    /**
+     * Detects leaks in a range of rows, splitting it while it is large.
+     * Returns the leaking row count per segment followed by the leaking time per segment.
+     */
+    private class RangeTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+        
+        private final DoubleBuffer timestamps;
+        private final DoubleBuffer[] flows;
+        private final Result result;
+        private final int from;
+        private final int to;
+        
+        RangeTask(DoubleBuffer timestamps, DoubleBuffer[] flows, Result result, int from, int to) {
+            this.timestamps = timestamps;
+            this.flows = flows;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected double[] compute() {
+            if (to - from > MIN_SPLIT_ROWS) {
+                int middle = (from + to) >>> 1;
+                RangeTask right = new RangeTask(timestamps, flows, result, middle, to);
+                right.fork();
+                double[] totals = new RangeTask(timestamps, flows, result, from, middle).compute();
+                double[] rightTotals = right.join();
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] += rightTotals[i];
+                }
+                return totals;
+            }
+            return detectRange();
+        }
+        
+        private double[] detectRange() {
+            int sensors = flows.length;
+            int segments = sensors - 1;
+            PipeLeakageDetector detector = new PipeLeakageDetector(profile, thresholds);
+            double[] rowFlows = new double[sensors];
+            double[] rowPressures = new double[sensors];
+            double[] totals = new double[2 * segments];
+            
+            for (int row = from; row < to; row++) {
+                for (int sensor = 0; sensor < sensors; sensor++) {
+                    rowFlows[sensor] = flows[sensor].get(row);
+                }
+                profile.calculatePressures(rowFlows, rowPressures);
+                detector.detect(rowFlows, rowPressures);
+                
+                // A leaking row counts until the next reading
+                double duration = timestamps != null && row + 1 < timestamps.limit()
+                        ? timestamps.get(row + 1) - timestamps.get(row) : 0;
+                for (int segment = 0; segment < segments; segment++) {
+                    boolean leak = detector.isLeaking(segment);
+                    result.scores[segment][row] = detector.getScore(segment);
+                    result.leaks[segment][row] = leak;
+                    if (leak) {
+                        totals[segment]++;
+                        totals[segments + segment] += duration;
+                    }
+                }
+            }
+            return totals;
+        }
+    }
+    
+    /**
+     * Detection results in columns, one per segment
+     */
+    public static class Result {
+        private final int rows;
+        private final double[][] scores;
+        private final boolean[][] leaks;
+        private final int[] leakRows;
+        private final double[] leakMillis;
+        
+        Result(int segments, int rows) {
+            this.rows = rows;
+            scores = new double[segments][rows];
+            leaks = new boolean[segments][rows];
+            leakRows = new int[segments];
+            leakMillis = new double[segments];
+        }
+        
+        /**
+         * Return the number of rows processed
+         */
+        public int getRowCount() {
+            return rows;
+        }
+        
+        /**
+         * Return the pressure gradient scores of a segment, one per row
+         */
+        public double[] getScores(int segment) {
+            return scores[segment];
+        }
+        
+        /**
+         * Return the leak flags of a segment, one per row
+         */
+        public boolean[] getLeaks(int segment) {
+            return leaks[segment];
+        }
+        
+        /**
+         * Return the number of rows in which a segment was leaking
+         */
+        public int getLeakRowCount(int segment) {
+            return leakRows[segment];
+        }
+        
+        /**
+         * Return the time in milliseconds during which a segment was leaking, or 0 without timestamps
+         */
+        public double getLeakMillis(int segment) {
+            return leakMillis[segment];
+        }
+    }
+}
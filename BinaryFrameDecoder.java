@@ -0,0 +1,283 @@
+package com.pipelinedetector;
+
+/**
+ * Decoder for the packed binary sensor protocol.
+ * 
+ * Frame layout (multi-byte fields little-endian):
+ * <pre>
+ *   0  sync    0xA5 0x5A
+ *   2  count   number of flow channels N (1..SensorSample.MAX_CHANNELS)
+ *   3  seq     16-bit frame sequence number
+ *   5  time    32-bit device timestamp in milliseconds
+ *   9  flows   N signed 16-bit flow rates in 1/100 L/min
+ *   9+2N crc   CRC-16/CCITT-FALSE over count..flows
+ * </pre>
+ * Corrupted frames are skipped by re-synchronizing on the next sync word,
+ * and gaps in the sequence number are counted as missing frames. A repeated
+ * or earlier sequence number, e.g. after the node restarted, only
+ * resynchronizes the count.
+ */
+public class BinaryFrameDecoder implements FrameDecoder {
+    private static final int SYNC_1 = 0xA5;
+    private static final int SYNC_2 = 0x5A;
+    private static final int HEADER_LENGTH = 9;
+    private static final int CRC_LENGTH = 2;
+    private static final double FLOW_SCALE = 100.0; // fixed-point units per L/min
+    
+    // Result codes returned by decode()
+    public static final int ERROR_TRUNCATED = -1;   // shorter than a header and checksum
+    public static final int ERROR_BAD_LENGTH = -2;  // channel count does not match the frame length
+    
+    // Command that asks the firmware to switch to binary frames, and its reply
+    public static final byte[] MODE_REQUEST = {'M', 'O', 'D', 'E', ' ', 'B', 'I', 'N', '\n'};
+    public static final byte[] MODE_ACK = {'A', 'C', 'K', ' ', 'B', 'I', 'N'};
+    
+    // Largest frame the protocol can produce
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + 2 * SensorSample.MAX_CHANNELS + CRC_LENGTH;
+    
+    private static final int[] CRC_TABLE = new int[256];
+    
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+    
+    private final byte[] ring;
+    private final int mask;
+    private long head;
+    private long tail;
+    
+    private int lastSequence = -1;
+    private int corruptFrames;
+    private int missingFrames;
+    private int skippedBytes;
+    
+    /**
+     * Constructor
+     * 
+     * @param capacity Ring buffer size in bytes, rounded up to a power of two
+     */
+    public BinaryFrameDecoder(int capacity) {
+        if (capacity <= MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Capacity must be larger than the maximum frame length");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        ring = new byte[size];
+        mask = size - 1;
+    }
+    
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        int free = ring.length - (int) (tail - head);
+        int count = Math.min(length, free);
+        if (count <= 0) {
+            return 0;
+        }
+        
+        int start = (int) (tail & mask);
+        int firstPart = Math.min(count, ring.length - start);
+        System.arraycopy(src, offset, ring, start, firstPart);
+        if (count > firstPart) {
+            System.arraycopy(src, offset + firstPart, ring, 0, count - firstPart);
+        }
+        tail += count;
+        return count;
+    }
+    
+    @Override
+    public int readFrame(byte[] dst) {
+        while (tail - head >= HEADER_LENGTH) {
+            // Look for the sync word
+            if (byteAt(head) != SYNC_1 || byteAt(head + 1) != SYNC_2) {
+                head++;
+                skippedBytes++;
+                continue;
+            }
+            
+            int channels = byteAt(head + 2);
+            if (channels == 0 || channels > SensorSample.MAX_CHANNELS) {
+                head++;
+                skippedBytes++;
+                continue;
+            }
+            
+            int length = HEADER_LENGTH + 2 * channels + CRC_LENGTH;
+            if (tail - head < length) {
+                return -1;
+            }
+            
+            // Validate the checksum before accepting the frame
+            int crc = 0xFFFF;
+            long crcEnd = head + length - CRC_LENGTH;
+            for (long p = head + 2; p < crcEnd; p++) {
+                crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ byteAt(p)) & 0xFF]) & 0xFFFF;
+            }
+            int received = byteAt(crcEnd) | (byteAt(crcEnd + 1) << 8);
+            if (crc != received || length > dst.length) {
+                // Resynchronize on the next sync word
+                corruptFrames++;
+                head++;
+                skippedBytes++;
+                continue;
+            }
+            
+            int sequence = byteAt(head + 3) | (byteAt(head + 4) << 8);
+            if (lastSequence >= 0) {
+                // Steps of half the sequence range or more are taken as going backwards
+                int step = (sequence - lastSequence) & 0xFFFF;
+                if (step > 0 && step < 0x8000) {
+                    missingFrames += step - 1;
+                }
+            }
+            lastSequence = sequence;
+            
+            int from = (int) (head & mask);
+            int firstPart = Math.min(length, ring.length - from);
+            System.arraycopy(ring, from, dst, 0, firstPart);
+            if (length > firstPart) {
+                System.arraycopy(ring, 0, dst, firstPart, length - firstPart);
+            }
+            head += length;
+            return length;
+        }
+        return -1;
+    }
+    
+    @Override
+    public int drain(byte[] dst) {
+        int length = Math.min(dst.length, (int) (tail - head));
+        if (length <= 0) {
+            return 0;
+        }
+        int from = (int) (head & mask);
+        int firstPart = Math.min(length, ring.length - from);
+        System.arraycopy(ring, from, dst, 0, firstPart);
+        if (length > firstPart) {
+            System.arraycopy(ring, 0, dst, firstPart, length - firstPart);
+        }
+        head += length;
+        return length;
+    }
+    
+    @Override
+    public void reset() {
+        head = tail;
+        lastSequence = -1;
+    }
+    
+    @Override
+    public int getFormat() {
+        return FORMAT_BINARY;
+    }
+    
+    /**
+     * Return the number of frames rejected because of a checksum mismatch
+     */
+    public int getCorruptFrames() {
+        return corruptFrames;
+    }
+    
+    /**
+     * Return the number of frames missing according to the sequence numbers
+     */
+    public int getMissingFrames() {
+        return missingFrames;
+    }
+    
+    /**
+     * Return the number of bytes skipped while searching for a sync word
+     */
+    public int getSkippedBytes() {
+        return skippedBytes;
+    }
+    
+    /**
+     * Decode a validated frame into a sample
+     * 
+     * @param frame Frame returned by readFrame()
+     * @param length Length of the frame
+     * @param sample Sample that receives the values
+     * @return Number of flow channels, or ERROR_TRUNCATED or ERROR_BAD_LENGTH
+     */
+    public static int decode(byte[] frame, int length, SensorSample sample) {
+        sample.clear();
+        if (length < HEADER_LENGTH + CRC_LENGTH) {
+            return ERROR_TRUNCATED;
+        }
+        int channels = frame[2] & 0xFF;
+        if (channels > SensorSample.MAX_CHANNELS || length != HEADER_LENGTH + 2 * channels + CRC_LENGTH) {
+            return ERROR_BAD_LENGTH;
+        }
+        
+        int offset = HEADER_LENGTH;
+        for (int i = 0; i < channels; i++) {
+            short raw = (short) ((frame[offset] & 0xFF) | (frame[offset + 1] << 8));
+            sample.setFlow(i, raw / FLOW_SCALE);
+            offset += 2;
+        }
+        sample.setChannelCount(channels);
+        sample.setSequence((frame[3] & 0xFF) | ((frame[4] & 0xFF) << 8));
+        sample.setDeviceTimestamp((frame[5] & 0xFFL)
+                | ((frame[6] & 0xFFL) << 8)
+                | ((frame[7] & 0xFFL) << 16)
+                | ((frame[8] & 0xFFL) << 24));
+        return channels;
+    }
+    
+    /**
+     * Encode a sample as a binary frame, as the firmware does; used by simulated sensors
+     * 
+     * @param sequence Frame sequence number (low 16 bits are sent)
+     * @param deviceTimestamp Device clock in milliseconds (low 32 bits are sent)
+     * @param flows Flow rates in L/min
+     * @param count Number of flow values to encode
+     * @param dst Buffer of at least MAX_FRAME_LENGTH bytes
+     * @return Length of the encoded frame
+     */
+    public static int encode(int sequence, long deviceTimestamp, double[] flows, int count, byte[] dst) {
+        dst[0] = (byte) SYNC_1;
+        dst[1] = (byte) SYNC_2;
+        dst[2] = (byte) count;
+        dst[3] = (byte) sequence;
+        dst[4] = (byte) (sequence >>> 8);
+        for (int i = 0; i < 4; i++) {
+            dst[5 + i] = (byte) (deviceTimestamp >>> (8 * i));
+        }
+        int offset = HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            long raw = Math.round(flows[i] * FLOW_SCALE);
+            short value = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, raw));
+            dst[offset++] = (byte) value;
+            dst[offset++] = (byte) (value >>> 8);
+        }
+        int crc = crc16(dst, 2, offset - 2);
+        dst[offset++] = (byte) crc;
+        dst[offset++] = (byte) (crc >>> 8);
+        return offset;
+    }
+    
+    /**
+     * Calculate the CRC-16/CCITT-FALSE checksum used by the protocol
+     * 
+     * @param data Buffer holding the bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return Checksum in the low 16 bits
+     */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+    
+    private int byteAt(long position) {
+        return ring[(int) (position & mask)] & 0xFF;
+    }
+}
@@ -4,25 +4,47 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Service for managing Bluetooth connections
+ * Service for managing Bluetooth connections to one or more sensor nodes.
+ * 
+ * Every node keeps its own RFCOMM link and framing state. Connections are
+ * set up in parallel, and every link is read with blocking reads on a small
+ * bounded pool, so bytes are handled as soon as they arrive and an idle link
+ * costs no wakeups. Frames from all nodes are
+ * merged into a single output, tagged with the id of the node they came from.
+ * 
+ * A node whose link drops, or that stays silent for much longer than its
+ * usual frame interval, is reconnected automatically with jittered
+ * exponential backoff until its retry budget is used up. Once the link is
+ * back, a FORMAT_GAP frame reports how long the node was silent.
  */
-public class BluetoothService {
+public class BluetoothService implements SensorSource {
     private static final String TAG = "BluetoothService";
     private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"); // Standard SerialPortService ID
     
     private final BluetoothAdapter bluetoothAdapter;
     private final Handler handler;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
     private int state;
     
     // Constants that indicate the current connection state
@@ -36,6 +58,45 @@ public class BluetoothService {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_CONNECT_FAILED = 6; // arg1 is the node id, after its retries are used up
+    
+    // Framing of the incoming byte stream
+    private static final int READ_BUFFER_SIZE = 1024;
+    public static final int MAX_FRAME_LENGTH = 256;
+    private static final int FRAME_POOL_SIZE = 64;
+    
+    // Threads shared by all nodes
+    private static final int CONNECT_THREADS = 8;
+    private static final int READER_THREADS = 7; // one per link; a classic Bluetooth adapter keeps at most seven
+    
+    // Automatic reconnection defaults
+    public static final int DEFAULT_RECONNECT_ATTEMPTS = 20;
+    public static final long DEFAULT_RECONNECT_BASE_DELAY_MS = 250;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY_MS = 8000;
+    
+    // A connected link that delivers nothing for this many frame intervals, and at least
+    // the minimum time, is treated as lost; RFCOMM does not always report a dropped link
+    private static final int SILENCE_TIMEOUT_FRAMES = 20;
+    public static final long MIN_SILENCE_TIMEOUT_MS = 3000;
+    private static final long WATCHDOG_INTERVAL_MS = 500;
+    
+    // Recycled frame buffers handed to the Handler with MESSAGE_READ
+    private final ArrayBlockingQueue<byte[]> framePool = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+    
+    // Receives frames on a reader thread instead of MESSAGE_READ when set
+    private volatile FrameListener frameListener;
+    
+    // Known nodes by device address, in the order they were first connected (guarded by this)
+    private final Map<String, SensorNode> nodes = new LinkedHashMap<>();
+    private ExecutorService connectExecutor;
+    private ExecutorService readerExecutor;
+    private ScheduledExecutorService retryScheduler;
+    
+    // Reconnection policy (guarded by this)
+    private int reconnectAttempts = DEFAULT_RECONNECT_ATTEMPTS;
+    private long reconnectBaseDelayMs = DEFAULT_RECONNECT_BASE_DELAY_MS;
+    private long reconnectMaxDelayMs = DEFAULT_RECONNECT_MAX_DELAY_MS;
+    private final Random jitter = new Random();
     
     /**
      * Constructor
@@ -49,266 +110,744 @@ public class BluetoothService {
     }
     
     /**
-     * Set the current state of the chat connection
+     * Recalculate the overall state from the node states and report any change
      * 
-     * @param state An integer defining the current connection state
+     * @param nodeId The node whose state changed, passed to the Handler as arg2
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + this.state + " -> " + state);
-        this.state = state;
+    private synchronized void updateState(int nodeId) {
+        int newState = STATE_NONE;
+        for (SensorNode node : nodes.values()) {
+            newState = Math.max(newState, node.state);
+        }
+        Log.d(TAG, "updateState() node " + nodeId + ": " + state + " -> " + newState);
+        state = newState;
         
         // Give the new state to the Handler so the UI Activity can update
-        handler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        handler.obtainMessage(MESSAGE_STATE_CHANGE, newState, nodeId).sendToTarget();
     }
     
     /**
-     * Return the current connection state
+     * Return the current connection state: connected if any node is connected,
+     * otherwise connecting if any node is connecting
      */
+    @Override
     public synchronized int getState() {
         return state;
     }
     
+    /**
+     * Return the connection state of one node
+     * 
+     * @param address Bluetooth address of the node
+     */
+    public synchronized int getState(String address) {
+        SensorNode node = nodes.get(address);
+        return node != null ? node.state : STATE_NONE;
+    }
+    
+    /**
+     * Return the number of nodes known to the service
+     */
+    public synchronized int getNodeCount() {
+        return nodes.size();
+    }
+    
+    /**
+     * Return the id used to tag frames from a node, or -1 if the node is unknown
+     * 
+     * @param address Bluetooth address of the node
+     */
+    public synchronized int getNodeId(String address) {
+        SensorNode node = nodes.get(address);
+        return node != null ? node.id : -1;
+    }
+    
+    /**
+     * Configure automatic reconnection after a lost or failed link
+     * 
+     * @param attempts Retries per outage before giving up; 0 disables reconnection
+     * @param baseDelayMs Delay before the first retry; doubled after every failure
+     * @param maxDelayMs Upper bound on the delay between retries
+     */
+    public synchronized void setReconnectPolicy(int attempts, long baseDelayMs, long maxDelayMs) {
+        reconnectAttempts = Math.max(0, attempts);
+        reconnectBaseDelayMs = Math.max(1, baseDelayMs);
+        reconnectMaxDelayMs = Math.max(reconnectBaseDelayMs, maxDelayMs);
+    }
+    
     /**
      * Start the service
      */
     public synchronized void start() {
         Log.d(TAG, "start");
         
-        // Cancel any thread attempting to make a connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
-        
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        // Cancel all connection attempts and close all links
+        for (SensorNode node : nodes.values()) {
+            node.cancel();
         }
         
-        setState(STATE_NONE);
+        updateState(-1);
     }
     
     /**
-     * Start the ConnectThread to initiate a connection to a remote device
+     * Connect to a node, keeping the links to all other nodes open
      * 
      * @param device The BluetoothDevice to connect
+     * @return The id that will tag frames from this node
      */
-    public synchronized void connect(BluetoothDevice device) {
+    public synchronized int connect(BluetoothDevice device) {
         Log.d(TAG, "connect to: " + device);
+        ensureExecutors();
         
-        // Cancel any thread attempting to make a connection
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
-        }
-        
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        SensorNode node = nodes.get(device.getAddress());
+        if (node == null) {
+            node = new SensorNode(nodes.size(), device);
+            nodes.put(device.getAddress(), node);
         }
         
-        // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device);
-        connectThread.start();
-        setState(STATE_CONNECTING);
+        // Connect on the shared pool so several nodes come up in parallel;
+        // any previous attempt or link to the same device is dropped
+        node.open();
+        updateState(node.id);
+        return node.id;
     }
     
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Connect to several nodes in parallel
      * 
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param devices The devices to connect
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "connected");
-        
-        // Cancel the thread that completed the connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+    public synchronized void connect(Collection<BluetoothDevice> devices) {
+        for (BluetoothDevice device : devices) {
+            connect(device);
         }
-        
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    }
+    
+    /**
+     * Close the link to one node
+     * 
+     * @param address Bluetooth address of the node
+     */
+    public synchronized void disconnect(String address) {
+        SensorNode node = nodes.get(address);
+        if (node != null) {
+            node.cancel();
+            updateState(node.id);
         }
-        
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
-        
-        // Send the name of the connected device back to the UI Activity
-        handler.obtainMessage(MESSAGE_DEVICE_NAME, 0, -1, device.getName()).sendToTarget();
-        
-        setState(STATE_CONNECTED);
     }
     
     /**
      * Stop all threads
      */
+    @Override
     public synchronized void stop() {
         Log.d(TAG, "stop");
         
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        for (SensorNode node : nodes.values()) {
+            node.cancel();
         }
         
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        if (connectExecutor != null) {
+            connectExecutor.shutdownNow();
+            connectExecutor = null;
+        }
+        if (readerExecutor != null) {
+            readerExecutor.shutdownNow();
+            readerExecutor = null;
+        }
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+            retryScheduler = null;
         }
         
-        setState(STATE_NONE);
+        updateState(-1);
     }
     
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to every connected node
      * 
      * @param out The bytes to write
      */
+    @Override
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+        // Collect the connected nodes, then write unsynchronized
+        List<SensorNode> targets = new ArrayList<>();
+        synchronized (this) {
+            for (SensorNode node : nodes.values()) {
+                if (node.state == STATE_CONNECTED) {
+                    targets.add(node);
+                }
+            }
+        }
+        for (SensorNode node : targets) {
+            node.write(out);
+        }
+    }
+    
+    /**
+     * Write to one node
+     * 
+     * @param address Bluetooth address of the node
+     * @param out The bytes to write
+     */
+    public void write(String address, byte[] out) {
+        SensorNode node;
+        synchronized (this) {
+            node = nodes.get(address);
+            if (node == null || node.state != STATE_CONNECTED) return;
+        }
+        node.write(out);
+    }
+    
+    /**
+     * Deliver frames directly on the reader threads instead of posting MESSAGE_READ
+     * 
+     * @param listener Listener that copies frames off the reader threads, or null to use the Handler
+     */
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+    }
+    
+    /**
+     * Return the number of binary frames rejected because of a checksum mismatch, over all nodes
+     */
+    public synchronized int getCorruptFrameCount() {
+        int count = 0;
+        for (SensorNode node : nodes.values()) {
+            count += node.corruptFrames;
+        }
+        return count;
+    }
+    
+    /**
+     * Return the number of binary frames lost according to their sequence numbers, over all nodes
+     */
+    public synchronized int getMissingFrameCount() {
+        int count = 0;
+        for (SensorNode node : nodes.values()) {
+            count += node.missingFrames;
+        }
+        return count;
+    }
+    
+    /**
+     * Return the number of outages after which data was received again, over all nodes
+     */
+    public synchronized int getGapCount() {
+        int count = 0;
+        for (SensorNode node : nodes.values()) {
+            count += node.gapCount;
+        }
+        return count;
+    }
+    
+    /**
+     * Return the total time in milliseconds during which nodes delivered no data, over all nodes
+     */
+    public synchronized long getGapMillis() {
+        long millis = 0;
+        for (SensorNode node : nodes.values()) {
+            millis += node.gapMillis;
+        }
+        return millis;
+    }
+    
+    /**
+     * Return a frame buffer received with MESSAGE_READ once it has been processed
+     * 
+     * @param frame The buffer to reuse for a later frame
+     */
+    public void recycleFrame(byte[] frame) {
+        if (frame != null && frame.length == MAX_FRAME_LENGTH) {
+            framePool.offer(frame);
+        }
+    }
+    
+    /**
+     * Extract the frame format from arg2 of a MESSAGE_READ
+     */
+    public static int getFrameFormat(int arg2) {
+        return arg2 & 0xFF;
+    }
+    
+    /**
+     * Extract the id of the sending node from arg2 of a MESSAGE_READ
+     */
+    public static int getFrameNodeId(int arg2) {
+        return arg2 >>> 8;
+    }
+    
+    /**
+     * Posts frames to the Handler with MESSAGE_READ when no FrameListener is set
+     */
+    private final FrameListener handlerForwarder = new FrameListener() {
+        @Override
+        public void onFrame(int nodeId, byte[] frame, int length, int format, long arrivalNanos) {
+            byte[] out = obtainFrame();
+            System.arraycopy(frame, 0, out, 0, length);
+            handler.obtainMessage(MESSAGE_READ, length, (nodeId << 8) | format, out).sendToTarget();
+        }
+    };
+    
+    /**
+     * Take a free frame buffer from the pool, allocating one if all are still in use
+     */
+    private byte[] obtainFrame() {
+        byte[] frame = framePool.poll();
+        return frame != null ? frame : new byte[MAX_FRAME_LENGTH];
+    }
+    
+    /**
+     * Create the shared connect, reader and retry threads if they are not running
+     */
+    private void ensureExecutors() {
+        if (connectExecutor == null) {
+            connectExecutor = Executors.newFixedThreadPool(CONNECT_THREADS, new NamedThreadFactory("ConnectThread"));
+        }
+        if (readerExecutor == null) {
+            readerExecutor = Executors.newFixedThreadPool(READER_THREADS, new NamedThreadFactory("ReaderThread"));
+        }
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("RetryThread"));
+            retryScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkSilentLinks();
+                }
+            }, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Treat connected links that stopped delivering data as lost; runs on the retry scheduler
+     */
+    private void checkSilentLinks() {
+        long now = System.nanoTime();
+        List<Link> silent = new ArrayList<>();
         synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+            for (SensorNode node : nodes.values()) {
+                if (node.state == STATE_CONNECTED && node.link != null && node.link.isSilent(now)) {
+                    silent.add(node.link);
+                }
+            }
+        }
+        for (Link link : silent) {
+            Log.w(TAG, "No data from node " + link.node.id + ", treating the link as lost");
+            connectionLost(link);
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
     
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity
+     * Indicate that the connection attempt failed; retry or notify the UI Activity
      */
-    private void connectionFailed() {
-        setState(STATE_NONE);
+    private void connectionFailed(Link link) {
+        SensorNode node = link.node;
+        synchronized (this) {
+            if (!link.isCurrent()) {
+                // Cancelled or replaced; nothing to report
+                return;
+            }
+            
+            // Try the other socket type next time
+            node.socketFactory = node.socketFactory == SECURE_SOCKETS ? INSECURE_SOCKETS : SECURE_SOCKETS;
+            if (scheduleReconnect(node)) {
+                return;
+            }
+            node.cancel();
+            updateState(node.id);
+        }
         
         // Send a failure message back to the Activity
-        handler.obtainMessage(MESSAGE_TOAST, 0, -1, "Unable to connect device").sendToTarget();
+        handler.obtainMessage(MESSAGE_TOAST, 0, -1, "Unable to connect device " + node.device.getAddress()).sendToTarget();
+        handler.obtainMessage(MESSAGE_CONNECT_FAILED, node.id, -1, node.device.getAddress()).sendToTarget();
     }
     
     /**
-     * Indicate that the connection was lost and notify the UI Activity
+     * Indicate that the connection was lost; reconnect and notify the UI Activity
      */
-    private void connectionLost() {
-        setState(STATE_NONE);
+    private void connectionLost(Link link) {
+        SensorNode node = link.node;
+        boolean reconnecting;
+        synchronized (this) {
+            if (!link.isCurrent()) {
+                return;
+            }
+            
+            // The gap starts with the last data received, not with the detection of the failure
+            if (node.gapStartNanos == 0) {
+                node.gapStartNanos = link.lastDataNanos != 0 ? link.lastDataNanos : System.nanoTime();
+            }
+            node.attempts = 0;
+            reconnecting = scheduleReconnect(node);
+            if (!reconnecting) {
+                node.cancel();
+            }
+            updateState(node.id);
+        }
         
         // Send a failure message back to the Activity
-        handler.obtainMessage(MESSAGE_TOAST, 0, -1, "Device connection was lost").sendToTarget();
+        handler.obtainMessage(MESSAGE_TOAST, 0, -1, "Device connection was lost: " + node.device.getAddress()
+                + (reconnecting ? ", reconnecting" : "")).sendToTarget();
+    }
+    
+    /**
+     * Schedule another connection attempt if the node has retries left; caller holds this
+     * 
+     * @return false if the retry budget is used up or the service was stopped
+     */
+    private boolean scheduleReconnect(final SensorNode node) {
+        node.closeLink();
+        if (node.attempts >= reconnectAttempts || retryScheduler == null) {
+            return false;
+        }
+        
+        // Exponential backoff with equal jitter, so nodes that dropped together do not retry in lockstep
+        long delay = Math.min(reconnectMaxDelayMs, reconnectBaseDelayMs << Math.min(node.attempts, 20));
+        delay = delay / 2 + (long) (jitter.nextDouble() * (delay / 2 + 1));
+        node.attempts++;
+        node.state = STATE_CONNECTING;
+        Log.i(TAG, "Reconnecting node " + node.id + " in " + delay + " ms (attempt " + node.attempts + "/" + reconnectAttempts + ")");
+        
+        try {
+            node.retry = retryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BluetoothService.this) {
+                        if (node.retry == null || connectExecutor == null) {
+                            return;
+                        }
+                        node.retry = null;
+                        node.startLink();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Names the shared threads so they can be told apart in traces
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private int count;
+        
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    
+    /**
+     * Creates the RFCOMM socket for a connection attempt
+     */
+    private interface SocketFactory {
+        BluetoothSocket create(BluetoothDevice device) throws IOException;
+    }
+    
+    private static final SocketFactory SECURE_SOCKETS = new SocketFactory() {
+        @Override
+        public BluetoothSocket create(BluetoothDevice device) throws IOException {
+            return device.createRfcommSocketToServiceRecord(MY_UUID);
+        }
+    };
+    
+    // Some serial modules only accept unauthenticated links
+    private static final SocketFactory INSECURE_SOCKETS = new SocketFactory() {
+        @Override
+        public BluetoothSocket create(BluetoothDevice device) throws IOException {
+            return device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+        }
+    };
+    
+    /**
+     * State of one sensor node across reconnections
+     */
+    private class SensorNode {
+        private final int id;
+        private final BluetoothDevice device;
+        
+        // Guarded by BluetoothService.this
+        private int state = STATE_NONE;
+        private Link link;
+        
+        // Reconnection state (guarded by BluetoothService.this); the socket
+        // factory that connected last is kept so reconnects try it first
+        private SocketFactory socketFactory = SECURE_SOCKETS;
+        private ScheduledFuture<?> retry;
+        private int attempts;
+        private long gapStartNanos;
+        private int gapCount;
+        private long gapMillis;
+        
+        // Link quality counters reported by the binary protocol
+        private volatile int corruptFrames;
+        private volatile int missingFrames;
+        
+        SensorNode(int id, BluetoothDevice device) {
+            this.id = id;
+            this.device = device;
+        }
+        
+        /**
+         * Start a new link with a fresh retry budget, replacing any previous one; caller holds BluetoothService.this
+         */
+        void open() {
+            cancel();
+            attempts = 0;
+            startLink();
+        }
+        
+        /**
+         * Start a new link, replacing any previous one; caller holds BluetoothService.this
+         */
+        void startLink() {
+            closeLink();
+            link = new Link(this);
+            state = STATE_CONNECTING;
+            final Link target = link;
+            connectExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    target.connect();
+                }
+            });
+        }
+        
+        /**
+         * Write to the current link, if any
+         */
+        void write(byte[] buffer) {
+            Link current;
+            synchronized (BluetoothService.this) {
+                current = link;
+            }
+            if (current != null) {
+                current.write(buffer);
+            }
+        }
+        
+        /**
+         * Close the current link, if any; caller holds BluetoothService.this
+         */
+        void closeLink() {
+            if (link != null) {
+                link.close();
+                link = null;
+            }
+        }
+        
+        /**
+         * Abort a pending connection attempt or retry, or close the link; caller holds BluetoothService.this
+         */
+        void cancel() {
+            closeLink();
+            if (retry != null) {
+                retry.cancel(false);
+                retry = null;
+            }
+            state = STATE_NONE;
+        }
     }
     
     /**
-     * Thread for trying to establish a Bluetooth connection
+     * One RFCOMM connection to a node and its framing state.
+     * The read task blocks on the stream on one thread of the shared reader
+     * pool for as long as the link is up, so only that thread works on the
+     * decoder. Closing the socket makes the read fail, which ends the task.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class Link implements Runnable {
+        private final SensorNode node;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        
+        // Guarded by BluetoothService.this
+        private boolean closed;
+        private BluetoothSocket socket;
+        private InputStream inStream;
+        private OutputStream outStream;
+        
+        // Only touched by the thread running the read task
+        private final FrameAssembler assembler;
+        private long gapStartNanos;
+        
+        // Time the last bytes were read, for measuring the gap if the link drops
+        private volatile long lastDataNanos;
         
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        // Smoothed time between reads and the time the link came up, for the silence watchdog
+        private volatile long readIntervalNanos;
+        private volatile long connectedNanos;
+        
+        Link(SensorNode node) {
+            this.node = node;
+            assembler = new FrameAssembler(node.id);
+        }
+        
+        /**
+         * Check whether this link is still the node's current one; caller holds BluetoothService.this
+         */
+        private boolean isCurrent() {
+            return !closed && node.link == this;
+        }
+        
+        /**
+         * Establish the RFCOMM link; runs on the connect pool
+         */
+        void connect() {
+            Log.i(TAG, "BEGIN connect node " + node.id);
+            long startNanos = System.nanoTime();
+            BluetoothSocket tmp;
             
             // Get a BluetoothSocket for a connection with the given BluetoothDevice
+            SocketFactory factory;
+            synchronized (BluetoothService.this) {
+                factory = node.socketFactory;
+            }
             try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
+                tmp = factory.create(node.device);
             } catch (IOException e) {
                 Log.e(TAG, "Socket creation failed", e);
+                connectionFailed(this);
+                return;
+            }
+            synchronized (BluetoothService.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                socket = tmp;
             }
-            mmSocket = tmp;
-        }
-        
-        public void run() {
-            Log.i(TAG, "BEGIN connectThread");
-            setName("ConnectThread");
             
             // Always cancel discovery because it will slow down a connection
             bluetoothAdapter.cancelDiscovery();
             
             // Make a connection to the BluetoothSocket
+            InputStream tmpIn;
+            OutputStream tmpOut;
             try {
                 // This is a blocking call and will only return on a successful connection or an exception
-                mmSocket.connect();
+                tmp.connect();
+                tmpIn = tmp.getInputStream();
+                tmpOut = tmp.getOutputStream();
             } catch (IOException e) {
                 // Close the socket
                 try {
-                    mmSocket.close();
+                    tmp.close();
                 } catch (IOException e2) {
                     Log.e(TAG, "unable to close() socket during connection failure", e2);
                 }
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
             
-            // Reset the ConnectThread because we're done
             synchronized (BluetoothService.this) {
-                connectThread = null;
+                if (!isCurrent() || readerExecutor == null) {
+                    close();
+                    return;
+                }
+                inStream = tmpIn;
+                outStream = tmpOut;
+                connectedNanos = System.nanoTime();
+                node.state = STATE_CONNECTED;
+                node.attempts = 0;
+                
+                // Hand the outage over to the read task, which reports it in the stream
+                gapStartNanos = node.gapStartNanos;
+                node.gapStartNanos = 0;
+                
+                // Start reading on the shared pool
+                readerExecutor.execute(this);
+                updateState(node.id);
             }
             
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
+            // Send the name of the connected device and the connect latency in ms back to the UI Activity
+            int latencyMs = (int) ((System.nanoTime() - startNanos) / 1000000L);
+            handler.obtainMessage(MESSAGE_DEVICE_NAME, node.id, latencyMs, node.device.getName()).sendToTarget();
+            
+            // Ask for binary frames; firmware that does not know the command keeps sending CSV
+            write(BinaryFrameDecoder.MODE_REQUEST);
         }
         
-        public void cancel() {
+        /**
+         * Read until the link fails or is closed; runs on the reader pool
+         */
+        @Override
+        public void run() {
+            InputStream in;
+            synchronized (BluetoothService.this) {
+                if (!isCurrent()) {
+                    return;
+                }
+                in = inStream;
+            }
+            
+            if (gapStartNanos != 0) {
+                reportGap();
+            }
+            
             try {
-                mmSocket.close();
+                while (true) {
+                    // Block until bytes arrive, then stamp them before any queueing;
+                    // a remote that closes the link cleanly ends the stream
+                    int bytes = in.read(buffer, 0, buffer.length);
+                    long arrivalNanos = System.nanoTime();
+                    if (bytes < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    dispatch(bytes, arrivalNanos);
+                }
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "disconnected", e);
+                connectionLost(this);
             }
         }
-    }
-    
-    /**
-     * Thread for handling Bluetooth connections
-     */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
         
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-            
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+        /**
+         * Tell the listener how long the node was silent before this link came up
+         */
+        private void reportGap() {
+            long gapMillis = (System.nanoTime() - gapStartNanos) / 1000000L;
+            gapStartNanos = 0;
+            synchronized (BluetoothService.this) {
+                node.gapCount++;
+                node.gapMillis += gapMillis;
             }
-            
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            Log.i(TAG, "Node " + node.id + " recovered after " + gapMillis + " ms");
+            FrameListener listener = frameListener;
+            assembler.emitGap(gapMillis, System.nanoTime(), listener != null ? listener : handlerForwarder);
         }
         
-        public void run() {
-            Log.i(TAG, "BEGIN connectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-            
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    
-                    // Send the obtained bytes to the UI Activity
-                    handler.obtainMessage(MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
+        /**
+         * Hand every complete frame to the listener, or to the UI Activity in its own buffer
+         */
+        private void dispatch(int bytes, long arrivalNanos) {
+            long last = lastDataNanos;
+            if (last != 0) {
+                long interval = arrivalNanos - last;
+                long smoothed = readIntervalNanos;
+                readIntervalNanos = smoothed == 0 ? interval : smoothed + (interval - smoothed) / 8;
             }
+            lastDataNanos = arrivalNanos;
+            FrameListener listener = frameListener;
+            assembler.feed(buffer, 0, bytes, arrivalNanos, listener != null ? listener : handlerForwarder);
+            node.corruptFrames = assembler.getCorruptFrames();
+            node.missingFrames = assembler.getMissingFrames();
+        }
+        
+        /**
+         * Check whether the link has delivered nothing for longer than the silence timeout
+         */
+        boolean isSilent(long now) {
+            long last = lastDataNanos != 0 ? lastDataNanos : connectedNanos;
+            long timeout = Math.max(MIN_SILENCE_TIMEOUT_MS * 1000000L, SILENCE_TIMEOUT_FRAMES * readIntervalNanos);
+            return last != 0 && now - last > timeout;
         }
         
         /**
@@ -316,22 +855,41 @@ public class BluetoothService {
          * 
          * @param buffer The bytes to write
          */
-        public void write(byte[] buffer) {
+        void write(byte[] buffer) {
+            OutputStream out;
+            synchronized (BluetoothService.this) {
+                out = outStream;
+            }
+            if (out == null) {
+                return;
+            }
             try {
-                mmOutStream.write(buffer);
+                synchronized (out) {
+                    out.write(buffer);
+                }
                 
                 // Share the sent message back to the UI Activity
-                handler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+                handler.obtainMessage(MESSAGE_WRITE, node.id, -1, buffer).sendToTarget();
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
             }
         }
         
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+        /**
+         * Close the socket; caller holds BluetoothService.this
+         */
+        void close() {
+            closed = true;
+            BluetoothSocket s = socket;
+            socket = null;
+            inStream = null;
+            outStream = null;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of connect socket failed", e);
+                }
             }
         }
     }
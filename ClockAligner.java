@@ -0,0 +1,202 @@
+package com.pipelinedetector;
+
+/**
+ * Maps the clock of one sensor node onto the phone's monotonic clock.
+ * 
+ * Every frame pairs a device tick (the millisecond clock of binary frames,
+ * or the frame sequence number) with the System.nanoTime() at which its
+ * bytes arrived. Arrival is always later than sampling by an unknown,
+ * jittery transport delay, so the estimator fits the rate of the device
+ * clock with an exponentially weighted least-squares line and places the
+ * offset at the lower envelope of the arrival times, i.e. at the frames that
+ * were delayed least. Both estimates keep adapting, so crystal drift is
+ * followed over long sessions. Runs in constant time and space per frame.
+ */
+public class ClockAligner {
+    // Wrap-around of the counters carried in binary frames
+    private static final long TIMESTAMP_RANGE = 1L << 32;
+    private static final long SEQUENCE_RANGE = 1L << 16;
+    
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final int MIN_FIT_SAMPLES = 8;
+    
+    // Effective number of recent frames the rate fit remembers
+    private static final int FIT_WINDOW = 512;
+    
+    // Lets the offset floor rise again after a clock step, in ns per ns elapsed (100 ppm)
+    private static final double FLOOR_RELEASE = 1e-4;
+    
+    // A frame this far off the fitted line means the device clock jumped
+    private static final double RESYNC_THRESHOLD_NANOS = 5e9;
+    
+    private boolean useTimestamp;
+    private long lastRawTick = -1;
+    private long unwrappedTick;
+    private long lastTick;
+    
+    // Reference point that keeps the fit in a well-conditioned range
+    private long baseTick;
+    private long baseNanos;
+    private int samples;
+    
+    // Exponentially weighted means and co-moments of (tick, arrival)
+    private double meanTick;
+    private double meanNanos;
+    private double varTick;
+    private double covTickNanos;
+    
+    private boolean fitted;
+    private double nanosPerTick = NANOS_PER_MILLI;
+    private double floor; // smallest arrival minus fitted sample time, in ns
+    private double lastArrival;
+    private int resyncs;
+    
+    /**
+     * Align one frame
+     * 
+     * @param sequence Frame sequence number, or -1 if the frame has none
+     * @param deviceTimestamp Device clock in milliseconds, or -1 if the frame has none
+     * @param arrivalNanos System.nanoTime() when the frame's bytes were read
+     * @return Estimated System.nanoTime() at which the device took the sample;
+     *         arrivalNanos when the frame carries no device clock
+     */
+    public long align(int sequence, long deviceTimestamp, long arrivalNanos) {
+        long tick;
+        if (deviceTimestamp >= 0) {
+            if (!useTimestamp) {
+                reset();
+                useTimestamp = true;
+            }
+            tick = unwrap(deviceTimestamp, TIMESTAMP_RANGE);
+        } else if (sequence >= 0) {
+            if (useTimestamp) {
+                reset();
+                useTimestamp = false;
+            }
+            tick = unwrap(sequence, SEQUENCE_RANGE);
+        } else {
+            return arrivalNanos;
+        }
+        
+        if (samples == 0 || tick < lastTick) {
+            // First frame, or the device restarted and its clock went backwards
+            if (samples > 0) {
+                resyncs++;
+            }
+            start(tick, arrivalNanos);
+            return arrivalNanos;
+        }
+        lastTick = tick;
+        
+        double x = tick - baseTick;
+        double y = arrivalNanos - baseNanos;
+        
+        // A frame far off the fitted line means the device clock jumped; start a new fit
+        if (fitted && Math.abs(y - (meanNanos + nanosPerTick * (x - meanTick) + floor)) > RESYNC_THRESHOLD_NANOS) {
+            resyncs++;
+            start(tick, arrivalNanos);
+            return arrivalNanos;
+        }
+        
+        // Exponentially weighted least squares for the tick rate
+        samples++;
+        double alpha = 1.0 / Math.min(samples, FIT_WINDOW);
+        double dx = x - meanTick;
+        double dy = y - meanNanos;
+        meanTick += alpha * dx;
+        meanNanos += alpha * dy;
+        varTick = (1 - alpha) * (varTick + alpha * dx * dx);
+        covTickNanos = (1 - alpha) * (covTickNanos + alpha * dx * dy);
+        if (samples < MIN_FIT_SAMPLES || varTick <= 0) {
+            lastArrival = y;
+            return arrivalNanos;
+        }
+        nanosPerTick = covTickNanos / varTick;
+        
+        // Lower envelope of the residuals, slowly released so it can follow clock steps
+        double line = meanNanos + nanosPerTick * (x - meanTick);
+        double residual = y - line;
+        if (fitted) {
+            floor = Math.min(floor + FLOOR_RELEASE * (y - lastArrival), residual);
+        } else {
+            floor = residual;
+            fitted = true;
+        }
+        lastArrival = y;
+        
+        return baseNanos + (long) (line + floor);
+    }
+    
+    /**
+     * Return the estimated length of one device tick in phone nanoseconds,
+     * valid once isFitted() returns true
+     */
+    public double getNanosPerTick() {
+        return nanosPerTick;
+    }
+    
+    /**
+     * Check whether enough frames have been seen to estimate the device clock
+     */
+    public boolean isFitted() {
+        return fitted;
+    }
+    
+    /**
+     * Return the estimated drift of the device clock in parts per million;
+     * positive when the device clock runs slow. Only meaningful for millisecond ticks.
+     */
+    public double getDriftPpm() {
+        return useTimestamp && fitted ? (nanosPerTick / NANOS_PER_MILLI - 1) * 1e6 : 0;
+    }
+    
+    /**
+     * Return the number of times the fit was restarted because the device clock jumped
+     */
+    public int getResyncCount() {
+        return resyncs;
+    }
+    
+    /**
+     * Forget everything learned about the device clock, e.g. after a reconnect
+     */
+    public void reset() {
+        samples = 0;
+        fitted = false;
+        lastRawTick = -1;
+        nanosPerTick = NANOS_PER_MILLI;
+    }
+    
+    private void start(long tick, long arrivalNanos) {
+        baseTick = tick;
+        baseNanos = arrivalNanos;
+        lastTick = tick;
+        samples = 1;
+        fitted = false;
+        meanTick = 0;
+        meanNanos = 0;
+        varTick = 0;
+        covTickNanos = 0;
+        floor = 0;
+        lastArrival = 0;
+    }
+    
+    /**
+     * Extend a wrapping counter into a monotonic one
+     */
+    private long unwrap(long raw, long range) {
+        if (lastRawTick < 0) {
+            unwrappedTick = raw;
+        } else {
+            long delta = (raw - lastRawTick) & (range - 1);
+            if (delta < range / 2) {
+                unwrappedTick += delta;
+            } else {
+                // Counter went backwards
+                unwrappedTick -= range - delta;
+            }
+        }
+        lastRawTick = raw;
+        return unwrappedTick;
+    }
+}
@@ -0,0 +1,193 @@
+package com.pipelinedetector;
+
+/**
+ * Streaming change detector for every segment of a pipe.
+ * 
+ * Two signals are tracked per segment: the flow imbalance between its two
+ * sensors and the pressure gradient score computed by PipeLeakageDetector.
+ * Each signal has an EWMA baseline (mean and variance) and a two-sided
+ * CUSUM of its standardized deviation from that baseline. Small persistent
+ * shifts therefore add up until they cross the decision threshold, while
+ * single noisy samples do not. The baseline is frozen while the upper
+ * statistic is raised so that a slowly growing leak is not learned as
+ * normal.
+ * 
+ * State is a handful of doubles per segment in flat arrays; an update costs
+ * constant time per segment and allocates nothing.
+ */
+public class CusumLeakDetector {
+    // Signals tracked per segment
+    private static final int SIGNAL_IMBALANCE = 0;
+    private static final int SIGNAL_GRADIENT = 1;
+    private static final int SIGNAL_COUNT = 2;
+    
+    // Defaults: a three standard deviation shift is detected within about five samples,
+    // while noise alone raises a false alarm only once in thousands of samples
+    public static final double DEFAULT_BASELINE_ALPHA = 0.01;
+    public static final double DEFAULT_SLACK = 0.5;      // k, in standard deviations
+    public static final double DEFAULT_THRESHOLD = 8.0;  // h, in standard deviations
+    public static final int DEFAULT_WARMUP_SAMPLES = 100;
+    
+    // Floors on the baseline noise so that a perfectly steady simulated signal cannot divide by zero
+    private static final double MIN_IMBALANCE_SIGMA = 0.01; // L/min
+    private static final double MIN_GRADIENT_SIGMA = 0.1;   // percent
+    
+    private final int segments;
+    private final double alpha;
+    private final double slack;
+    private final double threshold;
+    private final int warmupSamples;
+    
+    // Indexed by signal * segments + segment
+    private final double[] means;
+    private final double[] variances;
+    private final double[] upper;
+    private final double[] lower;
+    
+    private final boolean[] alarms;
+    private final double[] scores;
+    private int samples;
+    
+    /**
+     * Constructor using the default tuning
+     * 
+     * @param segments Number of pipe segments
+     */
+    public CusumLeakDetector(int segments) {
+        this(segments, DEFAULT_BASELINE_ALPHA, DEFAULT_SLACK, DEFAULT_THRESHOLD, DEFAULT_WARMUP_SAMPLES);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param segments Number of pipe segments
+     * @param baselineAlpha EWMA weight of a new sample in the baseline
+     * @param slack Shift in standard deviations that is ignored per sample (CUSUM k)
+     * @param threshold Accumulated shift in standard deviations that raises an alarm (CUSUM h)
+     * @param warmupSamples Samples used to learn the baseline before alarms are raised
+     */
+    public CusumLeakDetector(int segments, double baselineAlpha, double slack, double threshold, int warmupSamples) {
+        this.segments = segments;
+        alpha = baselineAlpha;
+        this.slack = slack;
+        this.threshold = threshold;
+        this.warmupSamples = warmupSamples;
+        means = new double[segments * SIGNAL_COUNT];
+        variances = new double[segments * SIGNAL_COUNT];
+        upper = new double[segments * SIGNAL_COUNT];
+        lower = new double[segments * SIGNAL_COUNT];
+        alarms = new boolean[segments];
+        scores = new double[segments];
+    }
+    
+    /**
+     * Feed one sample
+     * 
+     * @param flows Flow rate at each sensor in L/min
+     * @param instant Detector that has just run detect() on the same sample
+     * @return Number of segments in alarm
+     */
+    public int update(double[] flows, PipeLeakageDetector instant) {
+        samples++;
+        boolean warm = samples > warmupSamples;
+        
+        // Learn quickly at first, then settle to the configured weight
+        double weight = Math.max(alpha, 1.0 / samples);
+        
+        int alarming = 0;
+        for (int i = 0; i < segments; i++) {
+            double imbalance = update(SIGNAL_IMBALANCE * segments + i, flows[i] - flows[i + 1], MIN_IMBALANCE_SIGMA, weight, warm);
+            double gradient = update(SIGNAL_GRADIENT * segments + i, instant.getScore(i), MIN_GRADIENT_SIGMA, weight, warm);
+            
+            // Flow lost in the segment and a steeper gradient both push the upper statistic
+            double score = Math.max(imbalance, gradient) / threshold;
+            scores[i] = score;
+            alarms[i] = warm && score > 1;
+            if (alarms[i]) {
+                alarming++;
+            }
+        }
+        return alarming;
+    }
+    
+    /**
+     * Check whether enough samples have been seen to raise alarms
+     */
+    public boolean isWarmedUp() {
+        return samples > warmupSamples;
+    }
+    
+    /**
+     * Check whether a segment is in alarm after the last update
+     */
+    public boolean isAlarm(int segment) {
+        return alarms[segment];
+    }
+    
+    /**
+     * Get the larger upper CUSUM statistic of a segment relative to the alarm threshold;
+     * values above 1 mean alarm
+     */
+    public double getScore(int segment) {
+        return scores[segment];
+    }
+    
+    /**
+     * Get the lower CUSUM statistic of a segment's flow imbalance in standard deviations.
+     * It grows when the downstream sensor reads more than the upstream one, which
+     * points to a sensor fault rather than a leak.
+     */
+    public double getLowerImbalanceStatistic(int segment) {
+        return lower[SIGNAL_IMBALANCE * segments + segment];
+    }
+    
+    /**
+     * Get the learned normal flow imbalance of a segment in L/min
+     */
+    public double getBaselineImbalance(int segment) {
+        return means[SIGNAL_IMBALANCE * segments + segment];
+    }
+    
+    /**
+     * Forget the baselines and statistics, e.g. after the pipe was repaired
+     */
+    public void reset() {
+        samples = 0;
+        for (int i = 0; i < means.length; i++) {
+            means[i] = 0;
+            variances[i] = 0;
+            upper[i] = 0;
+            lower[i] = 0;
+        }
+        for (int i = 0; i < segments; i++) {
+            alarms[i] = false;
+            scores[i] = 0;
+        }
+    }
+    
+    /**
+     * Update the baseline and both CUSUM statistics of one signal
+     * 
+     * @return The upper statistic
+     */
+    private double update(int slot, double value, double minSigma, double weight, boolean warm) {
+        double deviation = value - means[slot];
+        double sigma = Math.max(Math.sqrt(variances[slot]), minSigma);
+        double z = deviation / sigma;
+        
+        if (warm) {
+            // Statistics are capped so that an alarm clears soon after the shift ends
+            double cap = 2 * threshold;
+            upper[slot] = Math.min(cap, Math.max(0, upper[slot] + z - slack));
+            lower[slot] = Math.min(cap, Math.max(0, lower[slot] - z - slack));
+        }
+        
+        // Only learn from samples that do not look like a leak; a downward shift is
+        // learned as the new normal so that it cannot freeze the baseline for good
+        if (!warm || upper[slot] < threshold / 2) {
+            means[slot] += weight * deviation;
+            variances[slot] = (1 - weight) * (variances[slot] + weight * deviation * deviation);
+        }
+        return upper[slot];
+    }
+}
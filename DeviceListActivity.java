@@ -23,10 +23,14 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 /**
- * Activity for listing and connecting to Bluetooth devices
+ * Activity for listing and connecting to Bluetooth devices.
+ * At launch it connects straight to the preferred sensor nodes remembered by
+ * SensorRegistry; discovery only runs when no preferred nodes are known.
  */
 public class DeviceListActivity extends AppCompatActivity {
     private static final String TAG = "DeviceListActivity";
@@ -35,6 +39,7 @@ public class DeviceListActivity extends AppCompatActivity {
     private ArrayList<BluetoothDevice> deviceList;
     private ArrayList<String> deviceNameList;
     private ArrayAdapter<String> deviceAdapter;
+    private SensorRegistry sensorRegistry;
     
     private TextView scanStatusTextView;
     private ProgressBar scanProgressBar;
@@ -50,6 +55,7 @@ public class DeviceListActivity extends AppCompatActivity {
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         deviceList = new ArrayList<>();
         deviceNameList = new ArrayList<>();
+        sensorRegistry = SensorRegistry.getInstance(this);
         
         // Set up UI elements
         scanStatusTextView = findViewById(R.id.scanStatusTextView);
@@ -87,14 +93,33 @@ public class DeviceListActivity extends AppCompatActivity {
                 // Get the selected device
                 BluetoothDevice device = deviceList.get(position);
                 
-                // Start the GraphActivity with the device
-                Intent intent = new Intent(DeviceListActivity.this, GraphActivity.class);
-                intent.putExtra("device_address", device.getAddress());
-                startActivity(intent);
+                // A preferred device brings up all preferred nodes; any other device
+                // becomes the only preferred node for the next launch
+                if (!sensorRegistry.isPreferred(device.getAddress())) {
+                    sensorRegistry.setPreferred(Collections.singletonList(device.getAddress()));
+                }
+                
+                // Start the GraphActivity with the devices
+                startGraphActivity(sensorRegistry.getPreferredAddresses());
+            }
+        });
+        
+        // Long press adds or removes a device from the preferred nodes, for multi-node setups
+        deviceListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                BluetoothDevice device = deviceList.get(position);
+                boolean preferred = sensorRegistry.togglePreferred(device.getAddress());
+                deviceNameList.set(position, formatDeviceLabel(device));
+                deviceAdapter.notifyDataSetChanged();
+                Toast.makeText(DeviceListActivity.this, preferred ? "Added to preferred sensors" : "Removed from preferred sensors",
+                        Toast.LENGTH_SHORT).show();
+                return true;
             }
         });
         
-        // Register for broadcasts when a device is found
+        // Register for broadcasts when a device is found; the receiver stays registered while
+        // GraphActivity runs, so its fallback discovery also refreshes the list and last-seen times
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         registerReceiver(receiver, filter);
         
@@ -104,6 +129,57 @@ public class DeviceListActivity extends AppCompatActivity {
         
         // List paired devices when activity is created
         listPairedDevices();
+        
+        // Connect straight to the known sensors; GraphActivity scans in the background if one
+        // cannot be reached, and without known sensors the scan starts here
+        if (savedInstanceState == null && !connectPreferredNodes()) {
+            scanForDevices();
+        }
+    }
+    
+    /**
+     * Start the GraphActivity with the preferred sensor nodes, skipping discovery
+     * 
+     * @return false if no preferred nodes are known or Bluetooth is unavailable
+     */
+    private boolean connectPreferredNodes() {
+        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            return false;
+        }
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+        
+        List<String> addresses = sensorRegistry.getPreferredAddresses();
+        if (addresses.isEmpty()) {
+            return false;
+        }
+        
+        Log.d(TAG, "Connecting directly to " + addresses.size() + " known sensor(s)");
+        scanStatusTextView.setText("Connecting to known sensors...");
+        startGraphActivity(addresses);
+        return true;
+    }
+    
+    /**
+     * Start the GraphActivity with one or more sensor nodes, in node order
+     */
+    private void startGraphActivity(List<String> addresses) {
+        Intent intent = new Intent(DeviceListActivity.this, GraphActivity.class);
+        intent.putExtra("device_addresses", addresses.toArray(new String[0]));
+        startActivity(intent);
+    }
+    
+    /**
+     * Build the list entry for a device
+     */
+    private String formatDeviceLabel(BluetoothDevice device) {
+        String deviceName = device.getName();
+        if (deviceName == null || deviceName.isEmpty()) {
+            deviceName = "Unknown Device";
+        }
+        String label = deviceName + "\n" + device.getAddress();
+        return sensorRegistry.isPreferred(device.getAddress()) ? label + " (preferred)" : label;
     }
     
     @Override
@@ -135,11 +211,7 @@ public class DeviceListActivity extends AppCompatActivity {
             if (pairedDevices.size() > 0) {
                 for (BluetoothDevice device : pairedDevices) {
                     deviceList.add(device);
-                    String deviceName = device.getName();
-                    if (deviceName == null || deviceName.isEmpty()) {
-                        deviceName = "Unknown Device";
-                    }
-                    deviceNameList.add(deviceName + "\n" + device.getAddress());
+                    deviceNameList.add(formatDeviceLabel(device));
                 }
             }
             
@@ -193,14 +265,13 @@ public class DeviceListActivity extends AppCompatActivity {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 
                 if (device != null && ActivityCompat.checkSelfPermission(DeviceListActivity.this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+                    // Remember when the node was last in range
+                    sensorRegistry.recordSeen(device.getAddress(), device.getName());
+                    
                     // Add the device to the list if not already added
                     if (!deviceList.contains(device)) {
                         deviceList.add(device);
-                        String deviceName = device.getName();
-                        if (deviceName == null || deviceName.isEmpty()) {
-                            deviceName = "Unknown Device";
-                        }
-                        deviceNameList.add(deviceName + "\n" + device.getAddress());
+                        deviceNameList.add(formatDeviceLabel(device));
                         
                         // Update the adapter
                         deviceAdapter.notifyDataSetChanged();
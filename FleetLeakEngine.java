@@ -0,0 +1,414 @@
+package com.pipelinedetector;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Leak detection for a whole fleet of pipelines on a central server.
+ * 
+ * Every pipeline's profile, thresholds and alarm state live in flat
+ * primitive arrays indexed through per-pipeline offsets, so there is no
+ * object per pipeline or per reading. Readings are handed over in a reusable
+ * Batch. Each batch is bucketed by pipeline id into partitions, and the
+ * partitions are processed in parallel on a fork/join pool. A pipeline is
+ * always in the same partition, so its readings are handled in order by
+ * one thread. Detection applies the same rule as PipeLeakageDetector, with
+ * pressures derived from the compiled profile coefficients in the same
+ * loop. Only changes of a segment's leak state are reported.
+ */
+public class FleetLeakEngine {
+    private static ForkJoinPool pool;
+    
+    private final int pipelines;
+    private final int partitions;
+    
+    // Per pipeline
+    private final int[] sensorOffsets;
+    private final int[] segmentOffsets;
+    private final int[] sensorCounts;
+    private final double[] dynamicCoefficients;
+    
+    // Per sensor
+    private final double[] staticPressures;
+    
+    // Per segment
+    private final double[] inverseLengths;
+    private final double[] hydrostaticDrops;
+    private final double[] frictionCoefficients;
+    private final double[] pressureDropThresholds;
+    private final double[] flowDifferenceThresholds;
+    private final boolean[] leaking;
+    private final double[] scores;
+    
+    // Per partition
+    private final Partition[] partitionStates;
+    private int[] order = new int[0];
+    private final int[] partitionStarts;
+    
+    /**
+     * Constructor using the default thresholds
+     * 
+     * @param profiles Profile of each pipeline, indexed by pipeline id
+     */
+    public FleetLeakEngine(PipeProfile[] profiles) {
+        this(profiles, null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param profiles Profile of each pipeline, indexed by pipeline id
+     * @param thresholds Thresholds of each pipeline, or null to use the defaults for all;
+     *                   null entries also use the defaults
+     */
+    public FleetLeakEngine(PipeProfile[] profiles, LeakThresholds[] thresholds) {
+        if (profiles.length == 0) {
+            throw new IllegalArgumentException("A fleet needs at least one pipeline");
+        }
+        if (thresholds != null && thresholds.length != profiles.length) {
+            throw new IllegalArgumentException("Expected thresholds for " + profiles.length + " pipelines");
+        }
+        pipelines = profiles.length;
+        sensorOffsets = new int[pipelines + 1];
+        segmentOffsets = new int[pipelines + 1];
+        sensorCounts = new int[pipelines];
+        dynamicCoefficients = new double[pipelines];
+        int maxSegments = 0;
+        for (int p = 0; p < pipelines; p++) {
+            int sensors = profiles[p].getLayout().getSensorCount();
+            sensorCounts[p] = sensors;
+            sensorOffsets[p + 1] = sensorOffsets[p] + sensors;
+            segmentOffsets[p + 1] = segmentOffsets[p] + sensors - 1;
+            maxSegments = Math.max(maxSegments, sensors - 1);
+            dynamicCoefficients[p] = profiles[p].dynamicPressure(1);
+        }
+        
+        staticPressures = new double[sensorOffsets[pipelines]];
+        int totalSegments = segmentOffsets[pipelines];
+        inverseLengths = new double[totalSegments];
+        hydrostaticDrops = new double[totalSegments];
+        frictionCoefficients = new double[totalSegments];
+        pressureDropThresholds = new double[totalSegments];
+        flowDifferenceThresholds = new double[totalSegments];
+        leaking = new boolean[totalSegments];
+        scores = new double[totalSegments];
+        for (int p = 0; p < pipelines; p++) {
+            PipeProfile profile = profiles[p];
+            PipeLayout layout = profile.getLayout();
+            LeakThresholds limits = thresholds != null && thresholds[p] != null
+                    ? thresholds[p] : LeakThresholds.defaults(layout.getSegmentCount());
+            if (limits.getSegmentCount() != layout.getSegmentCount()) {
+                throw new IllegalArgumentException("Thresholds of pipeline " + p + " do not match its layout");
+            }
+            for (int i = 0; i < sensorCounts[p]; i++) {
+                staticPressures[sensorOffsets[p] + i] = profile.getStaticPressure(i);
+            }
+            for (int i = 0; i < layout.getSegmentCount(); i++) {
+                int segment = segmentOffsets[p] + i;
+                inverseLengths[segment] = 1.0 / layout.getSegmentLength(i);
+                hydrostaticDrops[segment] = profile.getElevationPressure(i + 1) - profile.getElevationPressure(i);
+                frictionCoefficients[segment] = profile.frictionGradient(1) * layout.getSegmentLength(i) / 2;
+                pressureDropThresholds[segment] = limits.getPressureDropThreshold(i);
+                flowDifferenceThresholds[segment] = limits.getFlowDifferenceThreshold(i);
+            }
+        }
+        
+        // A few partitions per core keeps the cores busy when pipelines differ in load
+        partitions = Math.min(pipelines, getPool().getParallelism() * 4);
+        partitionStarts = new int[partitions + 1];
+        partitionStates = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            partitionStates[i] = new Partition(maxSegments);
+        }
+    }
+    
+    /**
+     * Create a batch for readings of this fleet
+     * 
+     * @param capacity Initial number of readings; the batch grows as needed
+     */
+    public Batch newBatch(int capacity) {
+        return new Batch(capacity);
+    }
+    
+    /**
+     * Run detection over a batch and report the segments whose leak state changed
+     * 
+     * @param batch Readings in arrival order; left unchanged
+     * @param listener Receives the transitions on the calling thread, grouped by partition
+     *                 and in reading order for each pipeline
+     * @return Number of transitions
+     */
+    public synchronized int process(Batch batch, TransitionListener listener) {
+        int readings = batch.size;
+        if (readings == 0) {
+            return 0;
+        }
+        
+        // Counting sort of the readings by partition, keeping arrival order within each
+        Arrays.fill(partitionStarts, 0);
+        for (int r = 0; r < readings; r++) {
+            partitionStarts[batch.pipelineIds[r] % partitions + 1]++;
+        }
+        for (int i = 0; i < partitions; i++) {
+            partitionStarts[i + 1] += partitionStarts[i];
+        }
+        if (order.length < readings) {
+            order = new int[Math.max(readings, order.length * 2)];
+        }
+        for (Partition partition : partitionStates) {
+            partition.transitions = 0;
+        }
+        int[] cursors = new int[partitions];
+        for (int r = 0; r < readings; r++) {
+            int partition = batch.pipelineIds[r] % partitions;
+            order[partitionStarts[partition] + cursors[partition]++] = r;
+        }
+        
+        getPool().invoke(new PartitionTask(batch, 0, partitions));
+        
+        int total = 0;
+        for (Partition partition : partitionStates) {
+            for (int t = 0; t < partition.transitions; t++) {
+                listener.onTransition(partition.pipelineIds[t], partition.segments[t], partition.timestamps[t],
+                        partition.states[t], partition.scores[t]);
+            }
+            total += partition.transitions;
+        }
+        return total;
+    }
+    
+    /**
+     * Return the number of pipelines in the fleet
+     */
+    public int getPipelineCount() {
+        return pipelines;
+    }
+    
+    /**
+     * Get the number of sensors of a pipeline
+     */
+    public int getSensorCount(int pipelineId) {
+        return sensorCounts[pipelineId];
+    }
+    
+    /**
+     * Check whether a segment of a pipeline is currently leaking
+     */
+    public synchronized boolean isLeaking(int pipelineId, int segment) {
+        return leaking[segmentOffsets[pipelineId] + segment];
+    }
+    
+    /**
+     * Get the last gradient score of a segment, as in PipeLeakageDetector.getScore()
+     */
+    public synchronized double getScore(int pipelineId, int segment) {
+        return scores[segmentOffsets[pipelineId] + segment];
+    }
+    
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+    
+    /**
+     * Check one reading of a pipeline and record segments whose state changed
+     */
+    private void detect(int pipeline, long timestamp, double[] values, int valueOffset, Partition partition) {
+        int sensorOffset = sensorOffsets[pipeline];
+        int segmentOffset = segmentOffsets[pipeline];
+        int segmentCount = sensorCounts[pipeline] - 1;
+        double k = dynamicCoefficients[pipeline];
+        double[] gradients = partition.gradients;
+        
+        // Pressures from the compiled profile and frictional gradients in one pass; the friction
+        // lost upstream cancels out of every drop, so only the segment's own friction is added
+        double flowSquared = values[valueOffset] * values[valueOffset];
+        double pressure = staticPressures[sensorOffset] + k * flowSquared;
+        double sum = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            double nextFlow = values[valueOffset + i + 1];
+            double nextSquared = nextFlow * nextFlow;
+            double nextPressure = staticPressures[sensorOffset + i + 1] + k * nextSquared;
+            int segment = segmentOffset + i;
+            double friction = frictionCoefficients[segment] * (flowSquared + nextSquared);
+            double gradient = (pressure - nextPressure + friction - hydrostaticDrops[segment]) * inverseLengths[segment];
+            gradients[i] = gradient;
+            sum += gradient;
+            pressure = nextPressure;
+            flowSquared = nextSquared;
+        }
+        
+        // Same scoring as PipeLeakageDetector.detect()
+        double others = segmentCount > 1 ? 1.0 / (segmentCount - 1) : 0;
+        for (int i = 0; i < segmentCount; i++) {
+            double score = 0;
+            if (segmentCount > 1) {
+                double reference = (sum - gradients[i]) * others;
+                double average = (gradients[i] + reference) / 2;
+                if (average != 0) {
+                    score = (gradients[i] - reference) / average * 100;
+                }
+            }
+            int segment = segmentOffset + i;
+            scores[segment] = score;
+            boolean leak = score > pressureDropThresholds[segment]
+                    || Math.abs(values[valueOffset + i] - values[valueOffset + i + 1]) > flowDifferenceThresholds[segment];
+            if (leak != leaking[segment]) {
+                leaking[segment] = leak;
+                partition.record(pipeline, i, timestamp, leak, score);
+            }
+        }
+    }
+    
+    /**
+     * Processes a range of partitions, splitting it down to one partition per task
+     */
+    private class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final Batch batch;
+        private final int from;
+        private final int to;
+        
+        PartitionTask(Batch batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PartitionTask(batch, from, middle), new PartitionTask(batch, middle, to));
+                return;
+            }
+            Partition partition = partitionStates[from];
+            for (int o = partitionStarts[from]; o < partitionStarts[from + 1]; o++) {
+                int r = order[o];
+                detect(batch.pipelineIds[r], batch.timestamps[r], batch.values, batch.offsets[r], partition);
+            }
+        }
+    }
+    
+    /**
+     * Scratch space and transition output of one partition
+     */
+    private static class Partition {
+        final double[] gradients;
+        int transitions;
+        int[] pipelineIds = new int[16];
+        int[] segments = new int[16];
+        long[] timestamps = new long[16];
+        boolean[] states = new boolean[16];
+        double[] scores = new double[16];
+        
+        Partition(int maxSegments) {
+            gradients = new double[maxSegments];
+        }
+        
+        void record(int pipelineId, int segment, long timestamp, boolean state, double score) {
+            if (transitions == pipelineIds.length) {
+                int capacity = transitions * 2;
+                pipelineIds = Arrays.copyOf(pipelineIds, capacity);
+                segments = Arrays.copyOf(segments, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                states = Arrays.copyOf(states, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            pipelineIds[transitions] = pipelineId;
+            segments[transitions] = segment;
+            timestamps[transitions] = timestamp;
+            states[transitions] = state;
+            scores[transitions] = score;
+            transitions++;
+        }
+    }
+    
+    /**
+     * Reusable batch of readings for a FleetLeakEngine, stored in flat arrays
+     */
+    public final class Batch {
+        private int size;
+        private int valueCount;
+        private int[] pipelineIds;
+        private long[] timestamps;
+        private int[] offsets;
+        private double[] values;
+        
+        private Batch(int capacity) {
+            capacity = Math.max(capacity, 16);
+            pipelineIds = new int[capacity];
+            timestamps = new long[capacity];
+            offsets = new int[capacity];
+            values = new double[capacity * 4];
+        }
+        
+        /**
+         * Append one reading
+         * 
+         * @param pipelineId Pipeline the reading belongs to
+         * @param timestamp Time of the reading, passed through to the transitions
+         * @param flows Flow rate at each sensor of the pipeline in L/min
+         */
+        public void add(int pipelineId, long timestamp, double[] flows) {
+            if (pipelineId < 0 || pipelineId >= pipelines) {
+                throw new IllegalArgumentException("Unknown pipeline " + pipelineId);
+            }
+            int sensors = sensorCounts[pipelineId];
+            if (flows.length < sensors) {
+                throw new IllegalArgumentException("Pipeline " + pipelineId + " has " + sensors + " sensors");
+            }
+            if (size == pipelineIds.length) {
+                int capacity = size * 2;
+                pipelineIds = Arrays.copyOf(pipelineIds, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            if (valueCount + sensors > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, valueCount + sensors));
+            }
+            pipelineIds[size] = pipelineId;
+            timestamps[size] = timestamp;
+            offsets[size] = valueCount;
+            System.arraycopy(flows, 0, values, valueCount, sensors);
+            valueCount += sensors;
+            size++;
+        }
+        
+        /**
+         * Return the number of readings in the batch
+         */
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * Remove all readings, keeping the allocated space
+         */
+        public void clear() {
+            size = 0;
+            valueCount = 0;
+        }
+    }
+    
+    /**
+     * Receives changes of a segment's leak state
+     */
+    public interface TransitionListener {
+        /**
+         * Called for every segment whose leak state changed
+         * 
+         * @param pipelineId Pipeline id
+         * @param segment Zero-based segment index within the pipeline
+         * @param timestamp Timestamp of the reading that caused the change
+         * @param leaking New state
+         * @param score Gradient score of the segment for that reading
+         */
+        void onTransition(int pipelineId, int segment, long timestamp, boolean leaking, double score);
+    }
+}
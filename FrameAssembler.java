@@ -0,0 +1,158 @@
+package com.pipelinedetector;
+
+import android.util.Log;
+
+/**
+ * Turns the raw bytes of one sensor link into frames.
+ * Starts in CSV mode and switches to the binary protocol once the firmware
+ * acknowledges it. Shared by all SensorSource implementations so every
+ * transport goes through the same ingestion path.
+ */
+public class FrameAssembler {
+    private static final String TAG = "FrameAssembler";
+    private static final int RING_BUFFER_SIZE = 4096;
+    
+    // Length of a FORMAT_GAP frame: the gap duration as a little-endian long
+    public static final int GAP_FRAME_LENGTH = 8;
+    
+    private final int nodeId;
+    private final byte[] frame = new byte[BluetoothService.MAX_FRAME_LENGTH];
+    private FrameDecoder decoder = new LineFrameDecoder(RING_BUFFER_SIZE, BluetoothService.MAX_FRAME_LENGTH);
+    
+    // Link quality counters reported by the binary protocol
+    private volatile int corruptFrames;
+    private volatile int missingFrames;
+    
+    /**
+     * Constructor
+     * 
+     * @param nodeId Id used to tag the frames of this link
+     */
+    public FrameAssembler(int nodeId) {
+        this.nodeId = nodeId;
+    }
+    
+    /**
+     * Decode received bytes and pass every complete frame to a listener
+     * 
+     * @param buffer Buffer holding the received bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes received
+     * @param arrivalNanos System.nanoTime() when the bytes were read
+     * @param listener Receives the frames
+     */
+    public void feed(byte[] buffer, int offset, int length, long arrivalNanos, FrameListener listener) {
+        int end = offset + length;
+        while (offset < end) {
+            offset += decoder.write(buffer, offset, end - offset);
+            int frameLength;
+            while ((frameLength = decoder.readFrame(frame)) >= 0) {
+                if (decoder.getFormat() == FrameDecoder.FORMAT_CSV
+                        && isBinaryModeAck(frame, frameLength)) {
+                    // Firmware accepted binary mode; the remaining bytes are binary frames
+                    switchToBinary();
+                    continue;
+                }
+                listener.onFrame(nodeId, frame, frameLength, decoder.getFormat(), arrivalNanos);
+            }
+            if (decoder instanceof BinaryFrameDecoder) {
+                BinaryFrameDecoder binaryDecoder = (BinaryFrameDecoder) decoder;
+                corruptFrames = binaryDecoder.getCorruptFrames();
+                missingFrames = binaryDecoder.getMissingFrames();
+            }
+        }
+    }
+    
+    /**
+     * Report that no data could be received for a while, e.g. after a reconnect
+     * 
+     * @param gapMillis Duration of the gap in milliseconds
+     * @param arrivalNanos System.nanoTime() when the link came back
+     * @param listener Receives the FORMAT_GAP frame
+     */
+    public void emitGap(long gapMillis, long arrivalNanos, FrameListener listener) {
+        int length = encodeGap(gapMillis, frame);
+        listener.onFrame(nodeId, frame, length, FrameDecoder.FORMAT_GAP, arrivalNanos);
+    }
+    
+    /**
+     * Write the payload of a FORMAT_GAP frame
+     * 
+     * @param gapMillis Duration of the gap in milliseconds
+     * @param dst Destination buffer, at least GAP_FRAME_LENGTH bytes
+     * @return Number of bytes written
+     */
+    public static int encodeGap(long gapMillis, byte[] dst) {
+        for (int i = 0; i < GAP_FRAME_LENGTH; i++) {
+            dst[i] = (byte) (gapMillis >>> (8 * i));
+        }
+        return GAP_FRAME_LENGTH;
+    }
+    
+    /**
+     * Read the gap duration from a FORMAT_GAP frame
+     * 
+     * @return Duration in milliseconds, or -1 if the frame is too short
+     */
+    public static long decodeGap(byte[] frame, int length) {
+        if (length < GAP_FRAME_LENGTH) {
+            return -1;
+        }
+        long gapMillis = 0;
+        for (int i = GAP_FRAME_LENGTH - 1; i >= 0; i--) {
+            gapMillis = (gapMillis << 8) | (frame[i] & 0xFF);
+        }
+        return gapMillis;
+    }
+    
+    /**
+     * Return the id used to tag the frames of this link
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+    
+    /**
+     * Return the number of binary frames rejected because of a checksum mismatch
+     */
+    public int getCorruptFrames() {
+        return corruptFrames;
+    }
+    
+    /**
+     * Return the number of binary frames lost according to their sequence numbers
+     */
+    public int getMissingFrames() {
+        return missingFrames;
+    }
+    
+    /**
+     * Move the bytes buffered after the acknowledgement into a binary decoder
+     */
+    private void switchToBinary() {
+        Log.i(TAG, "Switching node " + nodeId + " to binary frames");
+        FrameDecoder binaryDecoder = new BinaryFrameDecoder(RING_BUFFER_SIZE);
+        int count;
+        while ((count = decoder.drain(frame)) > 0) {
+            // Both rings have the same capacity, so everything fits
+            binaryDecoder.write(frame, 0, count);
+        }
+        decoder = binaryDecoder;
+    }
+    
+    /**
+     * Check whether a line is the firmware's acknowledgement of binary mode
+     */
+    private static boolean isBinaryModeAck(byte[] frame, int length) {
+        byte[] ack = BinaryFrameDecoder.MODE_ACK;
+        if (length != ack.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (frame[i] != ack[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
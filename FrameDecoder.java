@@ -0,0 +1,47 @@
+package com.pipelinedetector;
+
+/**
+ * Splits a raw sensor byte stream into complete frames
+ */
+public interface FrameDecoder {
+    // Frame formats, passed as arg2 of BluetoothService.MESSAGE_READ
+    int FORMAT_CSV = 0;
+    int FORMAT_BINARY = 1;
+    int FORMAT_GAP = 2; // marker for data lost while a link was down, see FrameAssembler.encodeGap()
+    
+    /**
+     * Copy received bytes into the decoder
+     * 
+     * @param src Source buffer
+     * @param offset Offset of the first byte to copy
+     * @param length Number of bytes available
+     * @return Number of bytes actually stored; call readFrame() to make room for the rest
+     */
+    int write(byte[] src, int offset, int length);
+    
+    /**
+     * Extract the next complete frame
+     * 
+     * @param dst Buffer that receives the frame
+     * @return Length of the frame copied into dst, or -1 if no complete frame is buffered
+     */
+    int readFrame(byte[] dst);
+    
+    /**
+     * Take out bytes that are buffered but not yet part of a frame, e.g. when switching protocols
+     * 
+     * @param dst Buffer that receives the bytes
+     * @return Number of bytes copied, 0 once the decoder is empty
+     */
+    int drain(byte[] dst);
+    
+    /**
+     * Discard all buffered bytes
+     */
+    void reset();
+    
+    /**
+     * Return the format of the frames produced by this decoder
+     */
+    int getFormat();
+}
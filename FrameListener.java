@@ -0,0 +1,18 @@
+package com.pipelinedetector;
+
+/**
+ * Receives complete sensor frames.
+ * The buffer is only valid for the duration of the call and must not be kept.
+ */
+public interface FrameListener {
+    /**
+     * Called for every complete frame
+     * 
+     * @param nodeId Id of the sensor node that sent the frame
+     * @param frame Buffer holding the frame bytes
+     * @param length Number of valid bytes in the buffer
+     * @param format One of the FrameDecoder.FORMAT_* constants
+     * @param arrivalNanos System.nanoTime() when the bytes of the frame were read
+     */
+    void onFrame(int nodeId, byte[] frame, int length, int format, long arrivalNanos);
+}
@@ -0,0 +1,151 @@
+package com.pipelinedetector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of sensor frames.
+ * Every slot owns a preallocated buffer, so frames are copied in once by the
+ * reader thread and handed to the consumer without further allocation.
+ * A slot is only reused after the consumer has finished with it.
+ */
+public class FrameQueue {
+    private final byte[][] frames;
+    private final int[] lengths;
+    private final int[] formats;
+    private final int[] nodeIds;
+    private final long[] arrivals;
+    private final int mask;
+    
+    private final AtomicLong head = new AtomicLong(); // next slot to consume
+    private final AtomicLong tail = new AtomicLong(); // next slot to fill
+    
+    // Thread-local copies of the other side's position, refreshed only when needed
+    private long cachedHead; // producer side
+    private long cachedTail; // consumer side
+    
+    private volatile Thread waitingConsumer;
+    private volatile int droppedFrames;
+    
+    /**
+     * Constructor
+     * 
+     * @param capacity Number of slots, rounded up to a power of two
+     * @param maxFrameLength Size of the buffer in each slot
+     */
+    public FrameQueue(int capacity, int maxFrameLength) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        frames = new byte[size][maxFrameLength];
+        lengths = new int[size];
+        formats = new int[size];
+        nodeIds = new int[size];
+        arrivals = new long[size];
+        mask = size - 1;
+    }
+    
+    /**
+     * Copy a frame into the queue; called from the producer thread only
+     * 
+     * @param nodeId Id of the sensor node that sent the frame
+     * @param frame Buffer holding the frame
+     * @param length Number of valid bytes
+     * @param format Frame format
+     * @param arrivalNanos System.nanoTime() when the frame arrived
+     * @return false if the queue was full and the frame was dropped
+     */
+    public boolean offer(int nodeId, byte[] frame, int length, int format, long arrivalNanos) {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                droppedFrames++;
+                return false;
+            }
+        }
+        
+        int slot = (int) (t & mask);
+        System.arraycopy(frame, 0, frames[slot], 0, length);
+        lengths[slot] = length;
+        formats[slot] = format;
+        nodeIds[slot] = nodeId;
+        arrivals[slot] = arrivalNanos;
+        tail.set(t + 1);
+        
+        // Wake the consumer if it is parked
+        Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+    
+    /**
+     * Pass queued frames to a listener; called from the consumer thread only
+     * 
+     * @param listener Receives each frame; the buffer is reused after the call returns
+     * @param maxFrames Upper bound on the number of frames handled in this call
+     * @return Number of frames handled
+     */
+    public int drain(FrameListener listener, int maxFrames) {
+        long h = head.get();
+        if (cachedTail - h <= 0) {
+            cachedTail = tail.get();
+        }
+        int count = (int) Math.min(cachedTail - h, maxFrames);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (h & mask);
+            listener.onFrame(nodeIds[slot], frames[slot], lengths[slot], formats[slot], arrivals[slot]);
+            head.lazySet(++h);
+        }
+        return count;
+    }
+    
+    /**
+     * Check whether the queue has no frame to drain; called from the consumer thread only
+     */
+    public boolean isEmpty() {
+        long h = head.get();
+        if (cachedTail - h <= 0) {
+            cachedTail = tail.get();
+        }
+        return cachedTail - h <= 0;
+    }
+    
+    /**
+     * Get the arrival time of the next frame drain() would pass on; called from the consumer
+     * thread only, and only after isEmpty() returned false
+     */
+    public long peekArrivalNanos() {
+        return arrivals[(int) (head.get() & mask)];
+    }
+    
+    /**
+     * Park the consumer thread until any of several queues receives a frame or the timeout elapses
+     * 
+     * @param queues Queues drained by the calling thread
+     * @param timeoutNanos Maximum time to wait
+     */
+    public static void await(FrameQueue[] queues, long timeoutNanos) {
+        Thread current = Thread.currentThread();
+        boolean empty = true;
+        for (FrameQueue queue : queues) {
+            queue.waitingConsumer = current;
+            if (queue.tail.get() != queue.head.get()) {
+                empty = false;
+            }
+        }
+        if (empty) {
+            LockSupport.parkNanos(queues, timeoutNanos);
+        }
+        for (FrameQueue queue : queues) {
+            queue.waitingConsumer = null;
+        }
+    }
+    
+    /**
+     * Return the number of frames dropped because the consumer fell behind
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -1,20 +1,24 @@
 package com.pipelinedetector;
 
+import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
+import android.text.TextUtils;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
 
 import com.github.mikephil.charting.charts.LineChart;
 import com.github.mikephil.charting.components.XAxis;
@@ -24,10 +28,8 @@ import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.formatter.ValueFormatter;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -44,20 +46,36 @@ public class GraphActivity extends AppCompatActivity {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_CONNECT_FAILED = 6;
     
     // Key names received from the BluetoothService Handler
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
     
-    // Flow rates and pressure constants
-    private static final double DENSITY = 1000.0; // water density in kg/m^3
-    private static final double GRAVITY = 9.81; // acceleration due to gravity in m/s^2
-    private static final double PIPE_RADIUS = 0.01; // pipe radius in meters
-    private static final double PIPE_AREA = Math.PI * PIPE_RADIUS * PIPE_RADIUS; // pipe cross-sectional area
+    // Optional extras that replace the Bluetooth link with a test source
+    public static final String EXTRA_REPLAY_FILE = "replay_file";
+    public static final String EXTRA_REPLAY_SPEED = "replay_speed";
+    public static final String EXTRA_LOOPBACK_SENSORS = "loopback_sensors";
+    public static final String EXTRA_LOOPBACK_RATE = "loopback_rate";
+    
+    // Optional pipe profile; the three-sensor rig with water in a 2 cm pipe is assumed if absent
+    public static final String EXTRA_SENSOR_POSITIONS = "sensor_positions";
+    public static final String EXTRA_SENSOR_ELEVATIONS = "sensor_elevations";
+    public static final String EXTRA_PIPE_DIAMETER = "pipe_diameter";
+    public static final String EXTRA_FLUID_DENSITY = "fluid_density";
+    
+    // Optional flag that also records the session as a JSON file
+    public static final String EXTRA_JSON_EXPORT = "json_export";
+    
+    // Optional sample rate in Hz of high-rate sensors, enables rupture detection from pressure waves
+    public static final String EXTRA_TRANSIENT_RATE = "transient_rate";
     
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothService bluetoothService;
-    private String connectedDeviceAddress;
+    private String[] connectedDeviceAddresses;
+    
+    // Where frames come from; the Bluetooth service unless a test source was requested
+    private SensorSource sensorSource;
     
     private TextView statusTextView;
     private TextView leakageStatusTextView;
@@ -65,23 +83,35 @@ public class GraphActivity extends AppCompatActivity {
     private Button viewStateButton;
     private Button disconnectButton;
     
-    // Flow rate data
-    private double flow1 = 0.0; // flow rate at point 1
-    private double flow2 = 0.0; // flow rate at point 2
-    private double flow3 = 0.0; // flow rate at point 3
-    private List<Double> pressurePoints = new ArrayList<>();
+    // Parsing and detection run on the pipeline's worker thread
+    private AcquisitionPipeline pipeline;
+    private PipeLayout layout;
+    
+    // Thresholds last loaded from or saved to the store; a different set in the pipeline is a finished calibration
+    private ThresholdStore thresholdStore;
+    private LeakThresholds storedThresholds;
     
-    // Data history for flow rates and pressures (stored as JSON)
-    private JSONArray historyData = new JSONArray();
+    // Most recently displayed results
+    private PipelineSnapshot latestSnapshot;
+    private long renderedVersion;
+    private long renderedAlarmVersion = -1;
+    private double renderedLeakPosition = Double.NaN;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_graph);
         
-        // Get the device address from intent
-        connectedDeviceAddress = getIntent().getStringExtra("device_address");
-        if (connectedDeviceAddress == null) {
+        // Get the device addresses from intent; a single node may be passed as "device_address"
+        connectedDeviceAddresses = getIntent().getStringArrayExtra("device_addresses");
+        if (connectedDeviceAddresses == null) {
+            String address = getIntent().getStringExtra("device_address");
+            if (address != null) {
+                connectedDeviceAddresses = new String[]{address};
+            }
+        }
+        boolean testSource = getIntent().hasExtra(EXTRA_REPLAY_FILE) || getIntent().hasExtra(EXTRA_LOOPBACK_SENSORS);
+        if (!testSource && (connectedDeviceAddresses == null || connectedDeviceAddresses.length == 0)) {
             Toast.makeText(this, "No device address provided", Toast.LENGTH_SHORT).show();
             finish();
             return;
@@ -103,9 +133,16 @@ public class GraphActivity extends AppCompatActivity {
             public void onClick(View v) {
                 // Start the StateActivity with the current flow rates
                 Intent intent = new Intent(GraphActivity.this, StateActivity.class);
-                intent.putExtra("flow1", flow1);
-                intent.putExtra("flow2", flow2);
-                intent.putExtra("flow3", flow3);
+                if (latestSnapshot != null && latestSnapshot.getSensorCount() >= 3) {
+                    intent.putExtra("flow1", latestSnapshot.getFlow(0));
+                    intent.putExtra("flow2", latestSnapshot.getFlow(1));
+                    intent.putExtra("flow3", latestSnapshot.getFlow(2));
+                }
+                if (pipeline != null && pipeline.getThresholds().getSegmentCount() >= 2) {
+                    LeakThresholds thresholds = pipeline.getThresholds();
+                    intent.putExtra("flow_thresholds", new double[]{
+                            thresholds.getFlowDifferenceThreshold(0), thresholds.getFlowDifferenceThreshold(1)});
+                }
                 startActivity(intent);
             }
         });
@@ -114,18 +151,138 @@ public class GraphActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 // Disconnect and go back to device list
-                if (bluetoothService != null) {
-                    bluetoothService.stop();
+                if (sensorSource != null) {
+                    sensorSource.stop();
                 }
                 finish();
             }
         });
         
+        // Long press on the leakage status learns thresholds from the coming leak-free readings
+        leakageStatusTextView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                pipeline.startCalibration(new ThresholdCalibrator(layout.getSegmentCount()));
+                Toast.makeText(GraphActivity.this, "Calibrating leak thresholds; keep the line leak-free",
+                        Toast.LENGTH_LONG).show();
+                return true;
+            }
+        });
+        
+        // Sensor positions along the pipe, pipe size and fluid
+        PipeProfile profile = readProfile();
+        if (profile == null) {
+            finish();
+            return;
+        }
+        layout = profile.getLayout();
+        
         // Set up the MPAndroidChart
         setupChart();
         
-        // Initialize BluetoothService
-        bluetoothService = new BluetoothService(handler);
+        // Initialize the sensor source; frames go straight to the pipeline worker
+        if (testSource) {
+            pipeline = new AcquisitionPipeline(1, profile);
+            sensorSource = createTestSource();
+            if (sensorSource == null) {
+                finish();
+                return;
+            }
+        } else {
+            pipeline = new AcquisitionPipeline(connectedDeviceAddresses.length, profile);
+            bluetoothService = new BluetoothService(handler);
+            sensorSource = bluetoothService;
+        }
+        sensorSource.setFrameListener(pipeline);
+        enableTransientDetection();
+        
+        // Use the thresholds calibrated for this line, if any
+        thresholdStore = ThresholdStore.getInstance(this);
+        storedThresholds = thresholdStore.load(layout);
+        pipeline.setThresholds(storedThresholds);
+        
+        // Keep the history in compact binary segments, within a bounded amount of storage
+        JSONDataManager dataManager = new JSONDataManager(this);
+        SegmentStore segmentStore = dataManager.openSegmentStore(layout);
+        if (segmentStore != null) {
+            pipeline.setSampleLog(segmentStore);
+        }
+        if (getIntent().getBooleanExtra(EXTRA_JSON_EXPORT, false)) {
+            JSONStreamWriter jsonExport = dataManager.createJsonExport();
+            if (jsonExport != null) {
+                pipeline.setJsonExport(jsonExport);
+            }
+        }
+        pipeline.start();
+        
+        if (sensorSource instanceof ReplaySensorSource) {
+            ((ReplaySensorSource) sensorSource).start();
+        }
+    }
+    
+    /**
+     * Create the replay or loopback source requested in the intent extras
+     * 
+     * @return The source, or null if it could not be started
+     */
+    private SensorSource createTestSource() {
+        Intent intent = getIntent();
+        String replayFile = intent.getStringExtra(EXTRA_REPLAY_FILE);
+        if (replayFile != null) {
+            File file = new File(getFilesDir(), replayFile);
+            connectedDeviceAddresses = new String[]{file.getName()};
+            double speed = intent.getDoubleExtra(EXTRA_REPLAY_SPEED, ReplaySensorSource.MIN_SPEED);
+            return new ReplaySensorSource(handler, file, speed, true);
+        }
+        
+        int sensors = intent.getIntExtra(EXTRA_LOOPBACK_SENSORS, layout.getSensorCount());
+        double rate = intent.getDoubleExtra(EXTRA_LOOPBACK_RATE, 10);
+        LoopbackSensorSource loopback = new LoopbackSensorSource(handler);
+        try {
+            int port = loopback.startEmulator(sensors, rate);
+            connectedDeviceAddresses = new String[]{"127.0.0.1:" + port};
+            return loopback;
+        } catch (IOException e) {
+            Toast.makeText(this, "Unable to start sensor emulator", Toast.LENGTH_SHORT).show();
+            return null;
+        }
+    }
+    
+    /**
+     * Turn on rupture detection if the intent names a high sample rate
+     */
+    private void enableTransientDetection() {
+        double rate = getIntent().getDoubleExtra(EXTRA_TRANSIENT_RATE, 0);
+        if (rate <= 0) {
+            return;
+        }
+        try {
+            pipeline.enableTransientDetection(rate);
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, "Rupture detection unavailable: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+    
+    /**
+     * Build the pipe profile from the intent extras
+     * 
+     * @return The profile, or null if the extras are invalid
+     */
+    private PipeProfile readProfile() {
+        Intent intent = getIntent();
+        double[] positions = intent.getDoubleArrayExtra(EXTRA_SENSOR_POSITIONS);
+        try {
+            PipeLayout pipeLayout = positions != null
+                    ? new PipeLayout(positions, intent.getDoubleArrayExtra(EXTRA_SENSOR_ELEVATIONS))
+                    : PipeLayout.defaultLayout();
+            return new PipeProfile(pipeLayout,
+                    intent.getDoubleExtra(EXTRA_PIPE_DIAMETER, PipeProfile.DEFAULT_DIAMETER),
+                    intent.getDoubleExtra(EXTRA_FLUID_DENSITY, PipeProfile.WATER_DENSITY),
+                    PipeProfile.DEFAULT_SUPPLY_PRESSURE, PipeProfile.DEFAULT_STATIC_GRADIENT);
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, "Invalid pipe profile: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            return null;
+        }
     }
     
     /**
@@ -146,14 +303,15 @@ public class GraphActivity extends AppCompatActivity {
         xAxis.setPosition(XAxis.XAxisPosition.BOTTOM);
         xAxis.setDrawGridLines(true);
         xAxis.setGranularity(1f);
-        xAxis.setLabelCount(3);
+        xAxis.setLabelCount(layout.getSensorCount());
         xAxis.setValueFormatter(new ValueFormatter() {
             @Override
             public String getFormattedValue(float value) {
-                // Label points by position (0, 20, 40 meters)
-                if (value == 0) return "0m";
-                if (value == 1) return "20m";
-                if (value == 2) return "40m";
+                // Label points by their position along the pipe
+                int sensor = Math.round(value);
+                if (sensor == value && sensor >= 0 && sensor < layout.getSensorCount()) {
+                    return String.format("%.0fm", layout.getPosition(sensor));
+                }
                 return value + "m";
             }
         });
@@ -189,167 +347,119 @@ public class GraphActivity extends AppCompatActivity {
     protected void onStart() {
         super.onStart();
         
-        // Connect to the device
+        // Connect to the device; test sources are already running
         if (bluetoothService != null) {
             if (bluetoothService.getState() == BluetoothService.STATE_NONE) {
                 connectToDevice();
             }
         }
+        
+        // Refresh the display in step with the screen
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        
+        // No need to redraw while hidden; the pipeline keeps detecting
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
         
-        // Stop BluetoothService
-        if (bluetoothService != null) {
-            bluetoothService.stop();
+        // Stop the sensor source
+        if (sensorSource != null) {
+            sensorSource.stop();
+        }
+        if (pipeline != null) {
+            pipeline.stop();
         }
     }
     
     /**
-     * Connect to the Bluetooth device
+     * Connect to all sensor nodes in parallel
      */
     private void connectToDevice() {
-        // Get the BluetoothDevice object
-        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(connectedDeviceAddress);
+        // Get the BluetoothDevice objects, in node order
+        List<BluetoothDevice> devices = new ArrayList<>();
+        for (String address : connectedDeviceAddresses) {
+            devices.add(bluetoothAdapter.getRemoteDevice(address));
+        }
         
-        // Attempt to connect to the device
-        bluetoothService.connect(device);
+        // Attempt to connect to the devices
+        bluetoothService.connect(devices);
     }
     
     /**
-     * Process the data received from Arduino
-     * 
-     * @param data The data received
+     * Called once per display frame; redraws only if a new sample has been processed
      */
-    private void processData(String data) {
-        Log.d(TAG, "Processing data: " + data);
-        
-        try {
-            // Split the data by commas
-            String[] values = data.trim().split(",");
-            
-            if (values.length >= 3) {
-                // Parse flow rates
-                flow1 = Double.parseDouble(values[0]);
-                flow2 = Double.parseDouble(values[1]);
-                flow3 = Double.parseDouble(values[2]);
-                
-                // Update UI with flow rates
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        statusTextView.setText(String.format("Flow Rates (L/min):\nPoint 1: %.2f\nPoint 2: %.2f\nPoint 3: %.2f",
-                                flow1, flow2, flow3));
-                    }
-                });
-                
-                // Store data in JSON format
-                storeDataAsJson(flow1, flow2, flow3);
-                
-                // Calculate pressures using Bernoulli's equation and plot them
-                calculatePressuresAndPlot();
-                
-                // Detect leakage
-                detectLeakage();
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (pipeline.getVersion() != renderedVersion) {
+                PipelineSnapshot snapshot = pipeline.snapshot();
+                if (snapshot != null) {
+                    renderSnapshot(snapshot);
+                }
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing data", e);
+            Choreographer.getInstance().postFrameCallback(this);
         }
-    }
+    };
     
     /**
-     * Store flow rate data as JSON
+     * Update the flow rates, chart and leakage status from a snapshot
      */
-    private void storeDataAsJson(double flow1, double flow2, double flow3) {
-        try {
-            JSONObject dataPoint = new JSONObject();
-            dataPoint.put("timestamp", System.currentTimeMillis());
-            dataPoint.put("flow1", flow1);
-            dataPoint.put("flow2", flow2);
-            dataPoint.put("flow3", flow3);
-            
-            // Calculate pressures
-            double[] distances = {0, 20, 40}; // distances in meters
-            double[] pressures = calculatePressures(flow1, flow2, flow3);
-            
-            // Add pressure data
-            JSONArray pressureArray = new JSONArray();
-            for (int i = 0; i < pressures.length; i++) {
-                JSONObject pressurePoint = new JSONObject();
-                pressurePoint.put("distance", distances[i]);
-                pressurePoint.put("pressure", pressures[i]);
-                pressureArray.put(pressurePoint);
-            }
-            dataPoint.put("pressures", pressureArray);
-            
-            // Add to history (limit to 100 points)
-            historyData.put(dataPoint);
-            if (historyData.length() > 100) {
-                JSONArray newHistory = new JSONArray();
-                for (int i = historyData.length() - 100; i < historyData.length(); i++) {
-                    newHistory.put(historyData.get(i));
-                }
-                historyData = newHistory;
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error storing JSON data", e);
+    private void renderSnapshot(PipelineSnapshot snapshot) {
+        latestSnapshot = snapshot;
+        renderedVersion = snapshot.getVersion();
+        
+        // Update UI with flow rates
+        StringBuilder status = new StringBuilder("Flow Rates (L/min):");
+        for (int i = 0; i < snapshot.getSensorCount(); i++) {
+            status.append(String.format("\nPoint %d: %.2f", i + 1, snapshot.getFlow(i)));
+        }
+        double calibration = pipeline.getCalibrationProgress();
+        if (calibration >= 0) {
+            status.append(String.format("\nCalibrating thresholds: %.0f%%", calibration * 100));
+        }
+        statusTextView.setText(status.toString());
+        saveCalibratedThresholds();
+        
+        plotPressures(snapshot);
+        
+        // The alarms are debounced but the leak position keeps moving; only rewrite the status when either changed
+        double leakPosition = displayedLeakPosition(snapshot);
+        if (snapshot.getAlarmVersion() != renderedAlarmVersion || Double.compare(leakPosition, renderedLeakPosition) != 0) {
+            renderedAlarmVersion = snapshot.getAlarmVersion();
+            renderedLeakPosition = leakPosition;
+            showLeakageStatus(snapshot, leakPosition);
         }
     }
     
     /**
-     * Calculate pressures based on flow rates
+     * Persist thresholds the pipeline has just learned
      */
-    private double[] calculatePressures(double flow1, double flow2, double flow3) {
-        // Clear previous data
-        pressurePoints.clear();
-        
-        // Convert flow rates from L/min to m^3/s
-        double flow1_m3ps = flow1 / (60000);
-        double flow2_m3ps = flow2 / (60000);
-        double flow3_m3ps = flow3 / (60000);
-        
-        // Calculate velocities (m/s)
-        double velocity1 = flow1_m3ps / PIPE_AREA;
-        double velocity2 = flow2_m3ps / PIPE_AREA;
-        double velocity3 = flow3_m3ps / PIPE_AREA;
-        
-        // Calculate dynamic pressures (kPa)
-        double dynamicPressure1 = 0.5 * DENSITY * velocity1 * velocity1 / 1000; // divide by 1000 to convert to kPa
-        double dynamicPressure2 = 0.5 * DENSITY * velocity2 * velocity2 / 1000;
-        double dynamicPressure3 = 0.5 * DENSITY * velocity3 * velocity3 / 1000;
-        
-        // Assume some reasonable static pressures (kPa)
-        double staticPressure1 = 150;
-        double staticPressure2 = 130;
-        double staticPressure3 = 110;
-        
-        // Calculate total pressures (kPa)
-        double totalPressure1 = staticPressure1 + dynamicPressure1;
-        double totalPressure2 = staticPressure2 + dynamicPressure2;
-        double totalPressure3 = staticPressure3 + dynamicPressure3;
-        
-        // Store pressure points
-        pressurePoints.add(totalPressure1);
-        pressurePoints.add(totalPressure2);
-        pressurePoints.add(totalPressure3);
-        
-        return new double[]{totalPressure1, totalPressure2, totalPressure3};
+    private void saveCalibratedThresholds() {
+        LeakThresholds thresholds = pipeline.getThresholds();
+        if (thresholds != storedThresholds && thresholds.isCalibrated()) {
+            storedThresholds = thresholds;
+            thresholdStore.save(layout, thresholds);
+            Toast.makeText(this, "Leak thresholds calibrated", Toast.LENGTH_SHORT).show();
+        }
     }
     
     /**
-     * Calculate pressures and update the chart
+     * Plot the pressures of a snapshot on the chart
      */
-    private void calculatePressuresAndPlot() {
-        // Calculate pressures
-        double[] pressures = calculatePressures(flow1, flow2, flow3);
-        
+    private void plotPressures(PipelineSnapshot snapshot) {
         // Create entries for the chart
         List<Entry> entries = new ArrayList<>();
-        entries.add(new Entry(0, (float) pressures[0]));
-        entries.add(new Entry(1, (float) pressures[1]));
-        entries.add(new Entry(2, (float) pressures[2]));
+        for (int i = 0; i < snapshot.getSensorCount(); i++) {
+            entries.add(new Entry(i, (float) snapshot.getPressure(i)));
+        }
         
         // Create dataset
         LineDataSet dataSet = new LineDataSet(entries, "Pressure (kPa)");
@@ -374,89 +484,75 @@ public class GraphActivity extends AppCompatActivity {
     }
     
     /**
-     * Detect leakage based on pressure drop
+     * Get the leak position shown in the status, rounded to its displayed precision
+     * 
+     * @return Position in meters, or NaN if not exactly one segment with a known position is leaking
      */
-    private void detectLeakage() {
-        if (pressurePoints.size() < 3) {
-            return;
-        }
-        
-        // A normal pressure line should have a steady negative slope
-        // Leakage causes a sharper drop between points
-        
-        double pressureDrop1 = pressurePoints.get(0) - pressurePoints.get(1);
-        double pressureDrop2 = pressurePoints.get(1) - pressurePoints.get(2);
-        
-        // Calculate the percentage difference between the pressure drops
-        double difference = Math.abs(pressureDrop1 - pressureDrop2);
-        double averageDrop = (pressureDrop1 + pressureDrop2) / 2;
-        double percentDifference = (difference / averageDrop) * 100;
-        
-        // Store leak detection results in JSON
-        try {
-            JSONObject leakDetection = new JSONObject();
-            leakDetection.put("timestamp", System.currentTimeMillis());
-            leakDetection.put("pressureDrop1", pressureDrop1);
-            leakDetection.put("pressureDrop2", pressureDrop2);
-            leakDetection.put("percentDifference", percentDifference);
-            
-            // Add to most recent data point
-            if (historyData.length() > 0) {
-                JSONObject lastDataPoint = historyData.getJSONObject(historyData.length() - 1);
-                lastDataPoint.put("leakDetection", leakDetection);
+    private double displayedLeakPosition(PipelineSnapshot snapshot) {
+        int leakingSegment = -1;
+        for (int i = 0; i < snapshot.getSegmentCount(); i++) {
+            if (snapshot.isSegmentLeaking(i)) {
+                if (leakingSegment >= 0) {
+                    return Double.NaN;
+                }
+                leakingSegment = i;
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error adding leak detection to JSON", e);
         }
-        
-        // Determine leak locations
-        boolean leak12 = false;
-        boolean leak23 = false;
-        
-        // Threshold for detecting leakage (adjust as needed based on real data)
-        double threshold = 15.0; // 15% difference threshold
-        
-        if (percentDifference > threshold) {
-            if (pressureDrop1 > pressureDrop2) {
-                leak12 = true;
-            } else {
-                leak23 = true;
+        if (leakingSegment < 0 || Double.isNaN(snapshot.getLeakPosition(leakingSegment))) {
+            return Double.NaN;
+        }
+        return Math.round(snapshot.getLeakPosition(leakingSegment) * 10) / 10.0;
+    }
+    
+    /**
+     * Update the leakage status text
+     * 
+     * @param position Leak position from displayedLeakPosition()
+     */
+    private void showLeakageStatus(PipelineSnapshot snapshot, double position) {
+        int leaks = 0;
+        int leakingSegment = -1;
+        for (int i = 0; i < snapshot.getSegmentCount(); i++) {
+            if (snapshot.isSegmentLeaking(i)) {
+                leaks++;
+                leakingSegment = i;
             }
         }
         
-        // Flow rate difference can also indicate leakage
-        boolean flowRateDiff12 = Math.abs(flow1 - flow2) > 0.5; // 0.5 L/min threshold
-        boolean flowRateDiff23 = Math.abs(flow2 - flow3) > 0.5;
-        
-        // Update leakage status
-        final boolean finalLeak12 = leak12 || flowRateDiff12;
-        final boolean finalLeak23 = leak23 || flowRateDiff23;
-        
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (finalLeak12 && finalLeak23) {
-                    leakageStatusTextView.setText("LEAKAGE DETECTED AT MULTIPLE POINTS");
-                    leakageStatusTextView.setTextColor(Color.RED);
-                } else if (finalLeak12) {
-                    leakageStatusTextView.setText("LEAKAGE DETECTED BETWEEN POINTS 1 AND 2");
-                    leakageStatusTextView.setTextColor(Color.RED);
-                } else if (finalLeak23) {
-                    leakageStatusTextView.setText("LEAKAGE DETECTED BETWEEN POINTS 2 AND 3");
-                    leakageStatusTextView.setTextColor(Color.RED);
-                } else {
-                    leakageStatusTextView.setText("NO LEAKAGE DETECTED");
-                    leakageStatusTextView.setTextColor(Color.GREEN);
-                }
+        if (leaks > 1) {
+            leakageStatusTextView.setText("LEAKAGE DETECTED AT MULTIPLE POINTS");
+            leakageStatusTextView.setTextColor(Color.RED);
+        } else if (leaks == 1) {
+            String status = "LEAKAGE DETECTED BETWEEN POINTS " + (leakingSegment + 1) + " AND " + (leakingSegment + 2);
+            if (!Double.isNaN(position)) {
+                status += String.format(" (~%.1fm)", position);
             }
-        });
+            leakageStatusTextView.setText(status);
+            leakageStatusTextView.setTextColor(Color.RED);
+        } else {
+            leakageStatusTextView.setText("NO LEAKAGE DETECTED");
+            leakageStatusTextView.setTextColor(Color.GREEN);
+        }
     }
     
     /**
      * Export data history as JSON string
      */
     public String exportDataHistory() {
-        return historyData.toString();
+        return pipeline.exportDataHistory();
+    }
+    
+    /**
+     * Start discovery in the background after a node could not be reached
+     */
+    private void startBackgroundDiscovery() {
+        if (bluetoothAdapter == null || bluetoothAdapter.isDiscovering()) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        bluetoothAdapter.startDiscovery();
     }
     
     /**
@@ -469,7 +565,7 @@ public class GraphActivity extends AppCompatActivity {
                 case MESSAGE_STATE_CHANGE:
                     switch (msg.arg1) {
                         case BluetoothService.STATE_CONNECTED:
-                            statusTextView.setText("Connected to: " + connectedDeviceAddress);
+                            statusTextView.setText("Connected to: " + TextUtils.join(", ", connectedDeviceAddresses));
                             break;
                         case BluetoothService.STATE_CONNECTING:
                             statusTextView.setText("Connecting...");
@@ -479,20 +575,25 @@ public class GraphActivity extends AppCompatActivity {
                             break;
                     }
                     break;
-                case MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // Construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    processData(readMessage);
-                    break;
                 case MESSAGE_DEVICE_NAME:
                     // Save the connected device's name
                     String deviceName = msg.obj.toString();
+                    
+                    // Remember the node and its connect latency (arg2) for direct connect next time
+                    if (bluetoothService != null && msg.arg1 >= 0 && msg.arg1 < connectedDeviceAddresses.length) {
+                        SensorRegistry.getInstance(GraphActivity.this)
+                                .recordConnected(connectedDeviceAddresses[msg.arg1], deviceName, msg.arg2);
+                    }
                     Toast.makeText(GraphActivity.this, "Connected to " + deviceName, Toast.LENGTH_SHORT).show();
                     break;
                 case MESSAGE_TOAST:
                     Toast.makeText(GraphActivity.this, msg.obj.toString(), Toast.LENGTH_SHORT).show();
                     break;
+                case MESSAGE_CONNECT_FAILED:
+                    // The node may be out of range or have a new address; the device list
+                    // underneath records what discovery finds and when it was last seen
+                    startBackgroundDiscovery();
+                    break;
             }
         }
     };
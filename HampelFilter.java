@@ -0,0 +1,202 @@
+package com.pipelinedetector;
+
+/**
+ * Causal Hampel filter for one sensor channel.
+ * 
+ * Keeps the last w raw samples in a ring and, in sorted form, in an
+ * IndexableSkipList. A new sample that lies more than a configurable number
+ * of robust standard deviations (1.4826 x MAD) away from the rolling median
+ * is treated as a spike and replaced by the median. A run of outliers on the
+ * same side is a real level change, such as a leak opening, and is passed
+ * through once it lasts longer than a few samples.
+ * 
+ * The median costs one O(log w) rank lookup. The MAD is the middle element
+ * of the absolute deviations, which form two sorted sequences on either side
+ * of the median, so it is found by a binary search over rank lookups in
+ * O(log^2 w) without sorting anything.
+ */
+public class HampelFilter {
+    // Scale factor that turns the MAD of normally distributed data into a standard deviation
+    private static final double MAD_SCALE = 1.4826;
+    
+    public static final int DEFAULT_WINDOW = 101;
+    public static final double DEFAULT_THRESHOLD = 3.0;
+    public static final int DEFAULT_MAX_CONSECUTIVE_OUTLIERS = 3;
+    
+    private final IndexableSkipList sorted;
+    private final double[] ring;
+    private final double threshold;
+    private final double minScale;
+    private final int maxConsecutiveOutliers;
+    
+    private int count;
+    private int position;
+    private int outlierRun; // positive above the median, negative below
+    private int replacedSamples;
+    
+    /**
+     * Constructor using the default threshold and window
+     * 
+     * @param minScale Smallest deviation that may count as an outlier, in the channel's unit
+     */
+    public HampelFilter(double minScale) {
+        this(DEFAULT_WINDOW, DEFAULT_THRESHOLD, minScale, DEFAULT_MAX_CONSECUTIVE_OUTLIERS);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param window Number of recent samples the median and MAD are taken over
+     * @param threshold Outlier limit in robust standard deviations
+     * @param minScale Lower bound on the robust standard deviation, so that quantized
+     *                 or perfectly steady signals do not turn every change into an outlier
+     * @param maxConsecutiveOutliers Outliers on the same side after which the change is accepted as real
+     */
+    public HampelFilter(int window, double threshold, double minScale, int maxConsecutiveOutliers) {
+        if (window < 3) {
+            throw new IllegalArgumentException("Window must hold at least three samples");
+        }
+        sorted = new IndexableSkipList(window);
+        ring = new double[window];
+        this.threshold = threshold;
+        this.minScale = minScale;
+        this.maxConsecutiveOutliers = maxConsecutiveOutliers;
+    }
+    
+    /**
+     * Filter one sample
+     * 
+     * @param value Raw sample
+     * @return The sample, or the rolling median if it was an outlier
+     */
+    public double filter(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            replacedSamples++;
+            return count > 0 ? median() : 0;
+        }
+        
+        double result = value;
+        if (count >= 3) {
+            double median = median();
+            double scale = Math.max(MAD_SCALE * mad(median), minScale);
+            double deviation = value - median;
+            if (Math.abs(deviation) > threshold * scale) {
+                int side = deviation > 0 ? 1 : -1;
+                outlierRun = outlierRun * side > 0 ? outlierRun + side : side;
+                if (Math.abs(outlierRun) <= maxConsecutiveOutliers) {
+                    result = median;
+                    replacedSamples++;
+                }
+            } else {
+                outlierRun = 0;
+            }
+        }
+        
+        // The raw sample always enters the window, so a persistent change moves the median
+        if (count == ring.length) {
+            sorted.remove(ring[position]);
+        } else {
+            count++;
+        }
+        ring[position] = value;
+        sorted.insert(value);
+        position = position + 1 == ring.length ? 0 : position + 1;
+        return result;
+    }
+    
+    /**
+     * Return the median of the current window
+     */
+    public double median() {
+        int half = count / 2;
+        if ((count & 1) == 1) {
+            return sorted.get(half);
+        }
+        return (sorted.get(half - 1) + sorted.get(half)) / 2;
+    }
+    
+    /**
+     * Return the number of samples replaced so far
+     */
+    public int getReplacedSamples() {
+        return replacedSamples;
+    }
+    
+    /**
+     * Forget the window
+     */
+    public void reset() {
+        sorted.clear();
+        count = 0;
+        position = 0;
+        outlierRun = 0;
+    }
+    
+    /**
+     * Median absolute deviation from the given median
+     */
+    private double mad(double median) {
+        // Elements [0, split) are <= median, [split, count) are above it
+        int split = upperBound(median);
+        int half = count / 2;
+        if ((count & 1) == 1) {
+            return kthDeviation(half, median, split);
+        }
+        return (kthDeviation(half - 1, median, split) + kthDeviation(half, median, split)) / 2;
+    }
+    
+    /**
+     * Find the k-th smallest absolute deviation from the median.
+     * Deviations of the elements below the split grow downwards from it, those
+     * of the elements above grow upwards, so this is the k-th element of two
+     * merged sorted sequences.
+     */
+    private double kthDeviation(int k, double median, int split) {
+        int lowCount = split;
+        int highCount = count - split;
+        
+        // Binary search for how many of the k + 1 smallest deviations come from the low side
+        int low = Math.max(0, k + 1 - highCount);
+        int high = Math.min(k + 1, lowCount);
+        while (low < high) {
+            int a = (low + high) >>> 1;
+            int b = k + 1 - a;
+            // Take more from the low side if its next deviation is smaller than the last taken from the high side
+            if (b > 0 && a < lowCount && lowDeviation(split, a, median) < highDeviation(split, b - 1, median)) {
+                low = a + 1;
+            } else {
+                high = a;
+            }
+        }
+        int a = low;
+        int b = k + 1 - a;
+        double fromLow = a > 0 ? lowDeviation(split, a - 1, median) : Double.NEGATIVE_INFINITY;
+        double fromHigh = b > 0 ? highDeviation(split, b - 1, median) : Double.NEGATIVE_INFINITY;
+        return Math.max(fromLow, fromHigh);
+    }
+    
+    private double lowDeviation(int split, int index, double median) {
+        return median - sorted.get(split - 1 - index);
+    }
+    
+    private double highDeviation(int split, int index, double median) {
+        return sorted.get(split + index) - median;
+    }
+    
+    /**
+     * Number of elements that are <= value
+     */
+    private int upperBound(double value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted.get(middle) <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
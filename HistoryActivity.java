@@ -1,7 +1,6 @@
 package com.pipelinedetector;
 
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -19,10 +18,7 @@ import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.formatter.ValueFormatter;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -86,9 +82,29 @@ public class HistoryActivity extends AppCompatActivity {
     private List<String> getDisplayNames(List<String> fileList) {
         List<String> displayNames = new ArrayList<>();
         for (String filename : fileList) {
-            // Parse timestamp from filename (format: pipeline_data_yyyyMMdd_HHmmss.json)
+            // Segments are named by the epoch milliseconds of their first sample
+            String segmentPrefix = JSONDataManager.SEGMENT_DIRECTORY + File.separator + SegmentStore.SEGMENT_PREFIX;
+            if (filename.startsWith(segmentPrefix) && filename.endsWith(SegmentStore.SEGMENT_EXTENSION)) {
+                String millisStr = filename.substring(segmentPrefix.length(),
+                        filename.length() - SegmentStore.SEGMENT_EXTENSION.length());
+                boolean coarse = millisStr.endsWith(SegmentStore.COARSE_SUFFIX);
+                if (coarse) {
+                    millisStr = millisStr.substring(0, millisStr.length() - SegmentStore.COARSE_SUFFIX.length());
+                }
+                try {
+                    SimpleDateFormat outputFormat = new SimpleDateFormat("MMM dd, yyyy HH:mm:ss", Locale.getDefault());
+                    String name = outputFormat.format(new Date(Long.parseLong(millisStr)));
+                    displayNames.add(coarse ? name + " (compacted)" : name);
+                } catch (NumberFormatException e) {
+                    displayNames.add(filename);
+                }
+                continue;
+            }
+            
+            // Parse timestamp from filename (format: pipeline_data_yyyyMMdd_HHmmss.json or .bin)
             try {
-                String timestampStr = filename.replace("pipeline_data_", "").replace(".json", "");
+                String timestampStr = filename.replace("pipeline_data_", "").replace(".json", "")
+                        .replace(JSONDataManager.LOG_EXTENSION, "");
                 SimpleDateFormat inputFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
                 SimpleDateFormat outputFormat = new SimpleDateFormat("MMM dd, yyyy HH:mm:ss", Locale.getDefault());
                 Date date = inputFormat.parse(timestampStr);
@@ -141,71 +157,100 @@ public class HistoryActivity extends AppCompatActivity {
      * Load historical data from a file
      */
     private void loadHistoryData(String filename) {
-        try {
-            // Load data
-            JSONArray jsonData = dataManager.loadData(filename);
-            
-            // Check if data is valid
-            if (jsonData.length() == 0) {
-                Toast.makeText(this, "No data found in file", Toast.LENGTH_SHORT).show();
-                return;
+        if (filename.endsWith(JSONDataManager.LOG_EXTENSION)) {
+            loadSampleLog(filename);
+            return;
+        }
+        // Stream the samples straight into chart entries
+        final List<Entry> flowEntries1 = new ArrayList<>();
+        final List<Entry> flowEntries2 = new ArrayList<>();
+        final List<Entry> flowEntries3 = new ArrayList<>();
+        int samples = dataManager.loadSamples(filename, new JSONSampleReader.SampleHandler() {
+            @Override
+            public boolean onSample(int index, double timestamp, double[] flows, int flowCount,
+                                    double[] pressures, int pressureCount) {
+                addEntry(flowEntries1, index, flows, flowCount, 0);
+                addEntry(flowEntries2, index, flows, flowCount, 1);
+                addEntry(flowEntries3, index, flows, flowCount, 2);
+                return true;
             }
-            
-            // Process data
-            List<Entry> flowEntries1 = new ArrayList<>();
-            List<Entry> flowEntries2 = new ArrayList<>();
-            List<Entry> flowEntries3 = new ArrayList<>();
-            List<Entry> pressureEntries = new ArrayList<>();
-            
-            for (int i = 0; i < jsonData.length(); i++) {
-                JSONObject dataPoint = jsonData.getJSONObject(i);
-                
-                // Extract flow rates
-                flowEntries1.add(new Entry(i, (float) dataPoint.getDouble("flow1")));
-                flowEntries2.add(new Entry(i, (float) dataPoint.getDouble("flow2")));
-                flowEntries3.add(new Entry(i, (float) dataPoint.getDouble("flow3")));
-                
-                // Extract pressure data if available
-                if (dataPoint.has("pressures")) {
-                    JSONArray pressures = dataPoint.getJSONArray("pressures");
-                    for (int j = 0; j < pressures.length(); j++) {
-                        JSONObject pressure = pressures.getJSONObject(j);
-                        float x = (float) pressure.getDouble("distance");
-                        float y = (float) pressure.getDouble("pressure");
-                        pressureEntries.add(new Entry(x, y));
-                    }
-                }
+        });
+        if (samples < 0) {
+            Toast.makeText(this, "Error loading data from " + filename, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        // Check if data is valid
+        if (samples == 0) {
+            Toast.makeText(this, "No data found in file", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        // Create datasets
+        LineDataSet flowSet1 = new LineDataSet(flowEntries1, "Flow Rate 1");
+        flowSet1.setColor(android.graphics.Color.RED);
+        flowSet1.setCircleColor(android.graphics.Color.RED);
+        flowSet1.setCircleRadius(3f);
+        
+        LineDataSet flowSet2 = new LineDataSet(flowEntries2, "Flow Rate 2");
+        flowSet2.setColor(android.graphics.Color.GREEN);
+        flowSet2.setCircleColor(android.graphics.Color.GREEN);
+        flowSet2.setCircleRadius(3f);
+        
+        LineDataSet flowSet3 = new LineDataSet(flowEntries3, "Flow Rate 3");
+        flowSet3.setColor(android.graphics.Color.BLUE);
+        flowSet3.setCircleColor(android.graphics.Color.BLUE);
+        flowSet3.setCircleRadius(3f);
+        
+        // Create chart data
+        LineData lineData = new LineData(flowSet1, flowSet2, flowSet3);
+        
+        // Update the chart
+        historyChart.setData(lineData);
+        historyChart.invalidate();
+        
+        // Show success message
+        Toast.makeText(this, "Loaded data from " + filename, Toast.LENGTH_SHORT).show();
+    }
+    
+    /**
+     * Add a sensor's flow rate to its chart entries, unless the sample lacks it
+     */
+    private static void addEntry(List<Entry> entries, int index, double[] flows, int flowCount, int sensor) {
+        if (sensor < flowCount && !Double.isNaN(flows[sensor])) {
+            entries.add(new Entry(index, (float) flows[sensor]));
+        }
+    }
+    
+    /**
+     * Load historical data from a binary session log
+     */
+    private void loadSampleLog(String filename) {
+        SampleLogReader log = dataManager.openSampleLog(filename);
+        if (log == null || log.getSampleCount() == 0) {
+            Toast.makeText(this, "No data found in file", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        // One data set per sensor, read straight from the mapped file
+        int[] colors = {android.graphics.Color.RED, android.graphics.Color.GREEN, android.graphics.Color.BLUE};
+        LineData lineData = new LineData();
+        for (int sensor = 0; sensor < log.getLayout().getSensorCount(); sensor++) {
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < log.getSampleCount(); i++) {
+                entries.add(new Entry(i, (float) log.getFlow(i, sensor)));
             }
-            
-            // Create datasets
-            LineDataSet flowSet1 = new LineDataSet(flowEntries1, "Flow Rate 1");
-            flowSet1.setColor(android.graphics.Color.RED);
-            flowSet1.setCircleColor(android.graphics.Color.RED);
-            flowSet1.setCircleRadius(3f);
-            
-            LineDataSet flowSet2 = new LineDataSet(flowEntries2, "Flow Rate 2");
-            flowSet2.setColor(android.graphics.Color.GREEN);
-            flowSet2.setCircleColor(android.graphics.Color.GREEN);
-            flowSet2.setCircleRadius(3f);
-            
-            LineDataSet flowSet3 = new LineDataSet(flowEntries3, "Flow Rate 3");
-            flowSet3.setColor(android.graphics.Color.BLUE);
-            flowSet3.setCircleColor(android.graphics.Color.BLUE);
-            flowSet3.setCircleRadius(3f);
-            
-            // Create chart data
-            LineData lineData = new LineData(flowSet1, flowSet2, flowSet3);
-            
-            // Update the chart
-            historyChart.setData(lineData);
-            historyChart.invalidate();
-            
-            // Show success message
-            Toast.makeText(this, "Loaded data from " + filename, Toast.LENGTH_SHORT).show();
-            
-        } catch (JSONException e) {
-            Log.e(TAG, "Error loading data: " + e.getMessage());
-            Toast.makeText(this, "Error loading data: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            LineDataSet flowSet = new LineDataSet(entries, "Flow Rate " + (sensor + 1));
+            flowSet.setColor(colors[sensor % colors.length]);
+            flowSet.setCircleColor(colors[sensor % colors.length]);
+            flowSet.setCircleRadius(3f);
+            lineData.addDataSet(flowSet);
         }
+        
+        // Update the chart
+        historyChart.setData(lineData);
+        historyChart.invalidate();
+        
+        Toast.makeText(this, "Loaded data from " + filename, Toast.LENGTH_SHORT).show();
     }
 }
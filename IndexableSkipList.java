@@ -0,0 +1,192 @@
+package com.pipelinedetector;
+
+/**
+ * Sorted multiset of doubles with O(log n) insert, remove and access by rank.
+ * 
+ * Every link of the skiplist also stores how many elements it skips, so the
+ * k-th smallest element is found by walking down the levels. All nodes live
+ * in preallocated parallel arrays and are recycled through a free list, so
+ * a rolling window of fixed size never allocates after construction.
+ */
+public class IndexableSkipList {
+    private final int capacity;
+    private final int levels;
+    
+    // Node storage; index capacity is the head, capacity + 1 the tail sentinel
+    private final double[] values;
+    private final int[] nodeLevels;
+    private final int[] next;   // next[level * stride + node]
+    private final int[] widths; // elements skipped by that link
+    private final int stride;
+    private final int head;
+    private final int tail;
+    
+    private final int[] freeNodes;
+    private int freeCount;
+    private int size;
+    
+    // Scratch space for insert and remove
+    private final int[] chain;
+    private final int[] stepsAtLevel;
+    
+    // xorshift state for choosing node levels
+    private long random = 0x9E3779B97F4A7C15L;
+    
+    /**
+     * Constructor
+     * 
+     * @param capacity Maximum number of elements
+     */
+    public IndexableSkipList(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        levels = 32 - Integer.numberOfLeadingZeros(capacity) + 1;
+        stride = capacity + 2;
+        head = capacity;
+        tail = capacity + 1;
+        
+        values = new double[stride];
+        nodeLevels = new int[stride];
+        next = new int[levels * stride];
+        widths = new int[levels * stride];
+        chain = new int[levels];
+        stepsAtLevel = new int[levels];
+        freeNodes = new int[capacity];
+        clear();
+    }
+    
+    /**
+     * Return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Remove all elements
+     */
+    public void clear() {
+        values[tail] = Double.POSITIVE_INFINITY;
+        for (int level = 0; level < levels; level++) {
+            next[level * stride + head] = tail;
+            widths[level * stride + head] = 1;
+        }
+        for (int i = 0; i < capacity; i++) {
+            freeNodes[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+        size = 0;
+    }
+    
+    /**
+     * Add a value
+     * 
+     * @param value Value to add; NaN is not allowed
+     * @throws IllegalStateException if the list is full
+     */
+    public void insert(double value) {
+        if (freeCount == 0) {
+            throw new IllegalStateException("Skip list is full");
+        }
+        int node = freeNodes[--freeCount];
+        int nodeLevel = randomLevel();
+        values[node] = value;
+        nodeLevels[node] = nodeLevel;
+        
+        // Find the last node before the value on every level, counting the steps taken
+        int current = head;
+        for (int level = levels - 1; level >= 0; level--) {
+            int base = level * stride;
+            stepsAtLevel[level] = 0;
+            while (values[next[base + current]] <= value && next[base + current] != tail) {
+                stepsAtLevel[level] += widths[base + current];
+                current = next[base + current];
+            }
+            chain[level] = current;
+        }
+        
+        // Splice the node in and split the widths of the links it interrupts
+        int steps = 0;
+        for (int level = 0; level < nodeLevel; level++) {
+            int base = level * stride;
+            int previous = chain[level];
+            next[base + node] = next[base + previous];
+            next[base + previous] = node;
+            widths[base + node] = widths[base + previous] - steps;
+            widths[base + previous] = steps + 1;
+            steps += stepsAtLevel[level];
+        }
+        for (int level = nodeLevel; level < levels; level++) {
+            widths[level * stride + chain[level]]++;
+        }
+        size++;
+    }
+    
+    /**
+     * Remove one occurrence of a value
+     * 
+     * @return false if the value is not in the list
+     */
+    public boolean remove(double value) {
+        int current = head;
+        for (int level = levels - 1; level >= 0; level--) {
+            int base = level * stride;
+            while (next[base + current] != tail && values[next[base + current]] < value) {
+                current = next[base + current];
+            }
+            chain[level] = current;
+        }
+        int node = next[chain[0]];
+        if (node == tail || values[node] != value) {
+            return false;
+        }
+        
+        int nodeLevel = nodeLevels[node];
+        for (int level = 0; level < nodeLevel; level++) {
+            int base = level * stride;
+            int previous = chain[level];
+            widths[base + previous] += widths[base + node] - 1;
+            next[base + previous] = next[base + node];
+        }
+        for (int level = nodeLevel; level < levels; level++) {
+            widths[level * stride + chain[level]]--;
+        }
+        freeNodes[freeCount++] = node;
+        size--;
+        return true;
+    }
+    
+    /**
+     * Get the element at a rank
+     * 
+     * @param rank Zero-based position in ascending order
+     */
+    public double get(int rank) {
+        if (rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " of " + size);
+        }
+        int current = head;
+        int remaining = rank + 1;
+        for (int level = levels - 1; level >= 0; level--) {
+            int base = level * stride;
+            while (widths[base + current] <= remaining) {
+                remaining -= widths[base + current];
+                current = next[base + current];
+            }
+        }
+        return values[current];
+    }
+    
+    /**
+     * Pick a level with probability 1/2 per additional level
+     */
+    private int randomLevel() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        int level = 1 + Long.numberOfTrailingZeros(random | (1L << (levels - 1)));
+        return Math.min(level, levels);
+    }
+}
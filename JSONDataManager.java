@@ -13,6 +13,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -26,6 +28,8 @@ public class JSONDataManager {
     private static final String TAG = "JSONDataManager";
     private static final String FILE_NAME_PREFIX = "pipeline_data_";
     private static final String FILE_EXTENSION = ".json";
+    public static final String LOG_EXTENSION = ".bin";
+    public static final String SEGMENT_DIRECTORY = "segments";
     
     private Context context;
     
@@ -40,25 +44,81 @@ public class JSONDataManager {
      * @return true if save was successful, false otherwise
      */
     public boolean saveData(JSONArray data) {
+        JSONStreamWriter writer = createJsonExport();
+        if (writer == null) {
+            return false;
+        }
         try {
-            // Create a timestamped filename
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
-            String timestamp = sdf.format(new Date());
-            String filename = FILE_NAME_PREFIX + timestamp + FILE_EXTENSION;
-            
-            // Write data to file
-            FileOutputStream fos = context.openFileOutput(filename, Context.MODE_PRIVATE);
-            fos.write(data.toString(2).getBytes());
-            fos.close();
+            // Write one element at a time rather than the whole document as one string
+            for (int i = 0; i < data.length(); i++) {
+                JSONObject item = data.optJSONObject(i);
+                if (item != null) {
+                    writer.append(item);
+                }
+            }
+            writer.close();
             
-            Log.d(TAG, "Data saved successfully to " + filename);
+            Log.d(TAG, "Data saved successfully (" + writer.getCount() + " samples)");
             return true;
-        } catch (IOException | JSONException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Error saving data: " + e.getMessage());
+            try {
+                writer.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "Error closing data file: " + e2.getMessage());
+            }
             return false;
         }
     }
     
+    /**
+     * Create a JSON file for a new session, to which samples are appended as they arrive
+     * 
+     * @return The writer, or null if the file could not be created
+     */
+    public JSONStreamWriter createJsonExport() {
+        // Create a timestamped filename
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+        String filename = FILE_NAME_PREFIX + sdf.format(new Date()) + FILE_EXTENSION;
+        try {
+            FileOutputStream fos = context.openFileOutput(filename, Context.MODE_PRIVATE);
+            return new JSONStreamWriter(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating " + filename + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Get the rotating segment store that keeps the history within its size and age limits
+     * 
+     * @param layout Sensor layout of the samples
+     * @return The store, or null if it could not be opened
+     */
+    public SegmentStore openSegmentStore(PipeLayout layout) {
+        try {
+            return SegmentStore.getInstance(new File(context.getFilesDir(), SEGMENT_DIRECTORY), layout);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening segment store: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Open a binary session log
+     * 
+     * @param filename Name of the log file
+     * @return The log, or null if it could not be read
+     */
+    public SampleLogReader openSampleLog(String filename) {
+        try {
+            return new SampleLogReader(new File(context.getFilesDir(), filename));
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening sample log: " + e.getMessage());
+            return null;
+        }
+    }
+    
     /**
      * Load data from a specific file
      * 
@@ -84,6 +144,48 @@ public class JSONDataManager {
         }
     }
     
+    /**
+     * Stream the samples of a file to a handler without loading the whole file
+     * 
+     * @param filename Name of the file to load
+     * @param handler Receives each sample
+     * @return Number of samples read, or -1 if the file could not be read
+     */
+    public int loadSamples(String filename, JSONSampleReader.SampleHandler handler) {
+        try {
+            Reader reader = new InputStreamReader(context.openFileInput(filename), Charset.forName("UTF-8"));
+            try {
+                return new JSONSampleReader(reader).read(handler);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading data: " + e.getMessage());
+            return -1;
+        }
+    }
+    
+    /**
+     * Load the samples of a file as columns, without building a JSONArray
+     * 
+     * @param filename Name of the file to load
+     * @param sensorCount Number of flow and pressure columns
+     * @return The columns, or null if the file could not be read
+     */
+    public JSONSampleReader.Columns loadColumns(String filename, int sensorCount) {
+        try {
+            Reader reader = new InputStreamReader(context.openFileInput(filename), Charset.forName("UTF-8"));
+            try {
+                return JSONSampleReader.readColumns(reader, sensorCount);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading data: " + e.getMessage());
+            return null;
+        }
+    }
+    
     /**
      * List all saved data files
      * 
@@ -95,11 +197,17 @@ public class JSONDataManager {
         File[] files = directory.listFiles();
         if (files != null) {
             for (File file : files) {
-                if (file.isFile() && file.getName().startsWith(FILE_NAME_PREFIX) && file.getName().endsWith(FILE_EXTENSION)) {
+                if (file.isFile() && file.getName().startsWith(FILE_NAME_PREFIX)
+                        && (file.getName().endsWith(FILE_EXTENSION) || file.getName().endsWith(LOG_EXTENSION))) {
                     fileList.add(file.getName());
                 }
             }
         }
+        
+        // Segments are listed from the store's index rather than by scanning their directory
+        for (SegmentStore.Segment segment : SegmentStore.listSegments(new File(directory, SEGMENT_DIRECTORY))) {
+            fileList.add(SEGMENT_DIRECTORY + File.separator + segment.getName());
+        }
         return fileList;
     }
     
@@ -123,9 +231,22 @@ public class JSONDataManager {
      * @return JSONObject containing flow data
      */
     public static JSONObject createFlowData(double flow1, double flow2, double flow3) {
+        return createFlowData(System.currentTimeMillis(), flow1, flow2, flow3);
+    }
+    
+    /**
+     * Create a JSON object for a flow reading taken at a known time
+     * 
+     * @param timestamp Time the sample was taken, in milliseconds since the epoch
+     * @param flow1 Flow rate at point 1
+     * @param flow2 Flow rate at point 2
+     * @param flow3 Flow rate at point 3
+     * @return JSONObject containing flow data
+     */
+    public static JSONObject createFlowData(long timestamp, double flow1, double flow2, double flow3) {
         try {
             JSONObject data = new JSONObject();
-            data.put("timestamp", System.currentTimeMillis());
+            data.put("timestamp", timestamp);
             data.put("flow1", flow1);
             data.put("flow2", flow2);
             data.put("flow3", flow3);
@@ -183,6 +304,39 @@ public class JSONDataManager {
         return flowRates;
     }
     
+    /**
+     * Extract flow rates from a JSON array as columns, for BatchLeakDetector
+     * 
+     * @param jsonArray JSONArray containing data
+     * @param sensorCount Number of flow channels to extract (flow1 to flowN)
+     * @return One array of flow rates per sensor; rows missing a channel hold NaN
+     */
+    public static double[][] extractFlowColumns(JSONArray jsonArray, int sensorCount) {
+        double[][] columns = new double[sensorCount][jsonArray.length()];
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject dataPoint = jsonArray.optJSONObject(i);
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                columns[sensor][i] = dataPoint != null ? dataPoint.optDouble("flow" + (sensor + 1), Double.NaN) : Double.NaN;
+            }
+        }
+        return columns;
+    }
+    
+    /**
+     * Extract timestamps from a JSON array as a column, for BatchLeakDetector
+     * 
+     * @param jsonArray JSONArray containing data
+     * @return Timestamp of each row in milliseconds; rows without one hold NaN
+     */
+    public static double[] extractTimestamps(JSONArray jsonArray) {
+        double[] timestamps = new double[jsonArray.length()];
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject dataPoint = jsonArray.optJSONObject(i);
+            timestamps[i] = dataPoint != null ? dataPoint.optDouble("timestamp", Double.NaN) : Double.NaN;
+        }
+        return timestamps;
+    }
+    
     /**
      * Extract pressures from a JSON array
      * 
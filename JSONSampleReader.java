@@ -0,0 +1,536 @@
+package com.pipelinedetector;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Pull parser for session files: a JSON array of samples with a timestamp,
+ * flow1 to flowN and optionally a pressures array, as written by the pipeline.
+ * 
+ * The file is read through a fixed character buffer and every sample is
+ * handed to a callback in reusable arrays, so neither the text nor a DOM of
+ * the file is ever held in memory. Keys are matched in the buffer without
+ * creating strings, and plain decimal numbers are converted without going
+ * through Double.parseDouble. Fields it does not know, such as
+ * leakDetection, are skipped.
+ */
+public class JSONSampleReader {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_KEY_LENGTH = 32;
+    private static final int MAX_NUMBER_LENGTH = 64;
+    
+    // Powers of ten that are exact as doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private static final char[] KEY_TIMESTAMP = "timestamp".toCharArray();
+    private static final char[] KEY_FLOW = "flow".toCharArray();
+    private static final char[] KEY_PRESSURES = "pressures".toCharArray();
+    private static final char[] KEY_PRESSURE = "pressure".toCharArray();
+    
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long consumed; // characters before the buffer, for error messages
+    
+    private final char[] key = new char[MAX_KEY_LENGTH];
+    private int keyLength;
+    private final char[] number = new char[MAX_NUMBER_LENGTH];
+    
+    // The sample being parsed
+    private double timestamp;
+    private double[] flows = new double[SensorSample.MAX_CHANNELS];
+    private int flowCount;
+    private double[] pressures = new double[SensorSample.MAX_CHANNELS];
+    private int pressureCount;
+    
+    /**
+     * Receives the samples of a file in order
+     */
+    public interface SampleHandler {
+        /**
+         * Called for every sample. The arrays are reused for the next sample.
+         * 
+         * @param index Zero-based sample index
+         * @param timestamp Time in milliseconds since the epoch, or NaN if missing
+         * @param flows Flow rates; flows[i] holds flow(i + 1), NaN if that field is missing
+         * @param flowCount Number of flow entries, i.e. the highest flow field number
+         * @param pressures Pressures in the order of the pressures array, NaN if missing
+         * @param pressureCount Number of pressure entries
+         * @return false to stop reading
+         */
+        boolean onSample(int index, double timestamp, double[] flows, int flowCount,
+                         double[] pressures, int pressureCount);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param reader Source of the JSON text; not closed by the parser
+     */
+    public JSONSampleReader(Reader reader) {
+        this.reader = reader;
+    }
+    
+    /**
+     * Parse the array and hand each sample to the handler
+     * 
+     * @return Number of samples read
+     * @throws IOException if reading fails or the text is not an array of objects
+     */
+    public int read(SampleHandler handler) throws IOException {
+        expect('[');
+        if (peek() == ']') {
+            position++;
+            return 0;
+        }
+        int count = 0;
+        while (true) {
+            readSample();
+            if (!handler.onSample(count++, timestamp, flows, flowCount, pressures, pressureCount)) {
+                return count;
+            }
+            char c = next();
+            if (c == ']') {
+                return count;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+    
+    /**
+     * Parse a whole file into columns
+     * 
+     * @param reader Source of the JSON text; not closed
+     * @param sensorCount Number of flow and pressure columns
+     * @throws IOException if reading fails or the text is malformed
+     */
+    public static Columns readColumns(Reader reader, int sensorCount) throws IOException {
+        Columns columns = new Columns(sensorCount);
+        new JSONSampleReader(reader).read(columns);
+        columns.trim();
+        return columns;
+    }
+    
+    private void readSample() throws IOException {
+        timestamp = Double.NaN;
+        Arrays.fill(flows, 0, flowCount, Double.NaN);
+        flowCount = 0;
+        pressureCount = 0;
+        
+        expect('{');
+        if (peek() == '}') {
+            position++;
+            return;
+        }
+        while (true) {
+            readKey();
+            expect(':');
+            int flow;
+            if (keyEquals(KEY_TIMESTAMP)) {
+                timestamp = readNumber();
+            } else if ((flow = flowIndex()) >= 0) {
+                if (flow >= flows.length) {
+                    int capacity = Math.max(flow + 1, flows.length * 2);
+                    int oldLength = flows.length;
+                    flows = Arrays.copyOf(flows, capacity);
+                    Arrays.fill(flows, oldLength, capacity, Double.NaN);
+                }
+                if (flow > flowCount) {
+                    Arrays.fill(flows, flowCount, flow, Double.NaN);
+                }
+                flows[flow] = readNumber();
+                flowCount = Math.max(flowCount, flow + 1);
+            } else if (keyEquals(KEY_PRESSURES)) {
+                readPressures();
+            } else {
+                skipValue();
+            }
+            char c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Read an array of {"distance": ..., "pressure": ...} objects
+     */
+    private void readPressures() throws IOException {
+        if (peek() != '[') {
+            skipValue();
+            return;
+        }
+        position++;
+        if (peek() == ']') {
+            position++;
+            return;
+        }
+        while (true) {
+            double pressure = Double.NaN;
+            expect('{');
+            if (peek() == '}') {
+                position++;
+            } else {
+                while (true) {
+                    readKey();
+                    expect(':');
+                    if (keyEquals(KEY_PRESSURE)) {
+                        pressure = readNumber();
+                    } else {
+                        skipValue();
+                    }
+                    char c = next();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw error("Expected ',' or '}'");
+                    }
+                }
+            }
+            if (pressureCount == pressures.length) {
+                pressures = Arrays.copyOf(pressures, pressures.length * 2);
+            }
+            pressures[pressureCount++] = pressure;
+
+            char c = next();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Read a key into the key buffer; longer keys are truncated, which only makes them not match
+     */
+    private void readKey() throws IOException {
+        expect('"');
+        keyLength = 0;
+        while (true) {
+            char c = nextRaw();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = nextRaw();
+            }
+            if (keyLength < MAX_KEY_LENGTH) {
+                key[keyLength++] = c;
+            }
+        }
+    }
+
+    private boolean keyEquals(char[] expected) {
+        if (keyLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (key[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the zero-based index of a flowN key, or -1 for other keys
+     */
+    private int flowIndex() {
+        if (keyLength <= KEY_FLOW.length || keyLength > KEY_FLOW.length + 4) {
+            return -1;
+        }
+        for (int i = 0; i < KEY_FLOW.length; i++) {
+            if (key[i] != KEY_FLOW[i]) {
+                return -1;
+            }
+        }
+        int value = 0;
+        for (int i = KEY_FLOW.length; i < keyLength; i++) {
+            char c = key[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value - 1;
+    }
+
+    /**
+     * Read a number; null and values that are not numbers give NaN
+     */
+    private double readNumber() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            // org.json accepts numbers in strings
+            readKey();
+            try {
+                return Double.parseDouble(new String(key, 0, keyLength));
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        if (c != '-' && (c < '0' || c > '9')) {
+            skipValue();
+            return Double.NaN;
+        }
+
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                break;
+            }
+            c = buffer[position];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                if (length == MAX_NUMBER_LENGTH) {
+                    throw error("Number too long");
+                }
+                number[length++] = c;
+                position++;
+            } else {
+                break;
+            }
+        }
+        return parseNumber(length);
+    }
+
+    /**
+     * Convert the number buffer; plain decimals with up to 15 digits are converted exactly
+     */
+    private double parseNumber(int length) throws IOException {
+        int i = 0;
+        boolean negative = number[0] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < length; i++) {
+            char c = number[i];
+            if (c >= '0' && c <= '9') {
+                if (digits < 16) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (fraction) {
+                        scale++;
+                    }
+                } else {
+                    break;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (i == length && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+
+        // Exponents and long numbers
+        try {
+            return Double.parseDouble(new String(number, 0, length));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    /**
+     * Skip any value, including nested objects and arrays
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            char c = next();
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipString();
+                    break;
+                case ',':
+                case ':':
+                    break;
+                default:
+                    // Number or literal; stop before the character that ends it
+                    while ((position < limit || fill()) && isLiteralChar(buffer[position])) {
+                        position++;
+                    }
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            char c = nextRaw();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                nextRaw();
+            }
+        }
+    }
+
+    private static boolean isLiteralChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E';
+    }
+
+    private void expect(char expected) throws IOException {
+        if (next() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * Return the next character that is not whitespace without consuming it
+     */
+    private char peek() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw error("Unexpected end of file");
+            }
+            char c = buffer[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Consume the next character that is not whitespace
+     */
+    private char next() throws IOException {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    /**
+     * Consume the next character, whitespace included
+     */
+    private char nextRaw() throws IOException {
+        if (position == limit && !fill()) {
+            throw error("Unexpected end of file");
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        position = 0;
+        limit = 0;
+        int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        limit = read;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at character " + (consumed + position));
+    }
+
+    /**
+     * Samples of a file as primitive columns, e.g. for BatchLeakDetector
+     */
+    public static class Columns implements SampleHandler {
+        private final int sensorCount;
+        private int rows;
+        private double[] timestamps = new double[1024];
+        private final double[][] flowColumns;
+        private final double[][] pressureColumns;
+
+        Columns(int sensorCount) {
+            this.sensorCount = sensorCount;
+            flowColumns = new double[sensorCount][1024];
+            pressureColumns = new double[sensorCount][1024];
+        }
+
+        @Override
+        public boolean onSample(int index, double timestamp, double[] flows, int flowCount,
+                                double[] pressures, int pressureCount) {
+            if (rows == timestamps.length) {
+                int capacity = rows * 2;
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                for (int sensor = 0; sensor < sensorCount; sensor++) {
+                    flowColumns[sensor] = Arrays.copyOf(flowColumns[sensor], capacity);
+                    pressureColumns[sensor] = Arrays.copyOf(pressureColumns[sensor], capacity);
+                }
+            }
+            timestamps[rows] = timestamp;
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                flowColumns[sensor][rows] = sensor < flowCount ? flows[sensor] : Double.NaN;
+                pressureColumns[sensor][rows] = sensor < pressureCount ? pressures[sensor] : Double.NaN;
+            }
+            rows++;
+            return true;
+        }
+
+        void trim() {
+            timestamps = Arrays.copyOf(timestamps, rows);
+            for (int sensor = 0; sensor < sensorCount; sensor++) {
+                flowColumns[sensor] = Arrays.copyOf(flowColumns[sensor], rows);
+                pressureColumns[sensor] = Arrays.copyOf(pressureColumns[sensor], rows);
+            }
+        }
+
+        /**
+         * Return the number of samples
+         */
+        public int getRowCount() {
+            return rows;
+        }
+
+        /**
+         * Return the timestamp of each sample in milliseconds; missing ones are NaN
+         */
+        public double[] getTimestamps() {
+            return timestamps;
+        }
+
+        /**
+         * Return one array of flow rates per sensor; missing values are NaN
+         */
+        public double[][] getFlowColumns() {
+            return flowColumns;
+        }
+
+        /**
+         * Return one array of pressures per sensor; missing values are NaN
+         */
+        public double[][] getPressureColumns() {
+            return pressureColumns;
+        }
+    }
+}
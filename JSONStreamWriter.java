@@ -0,0 +1,81 @@
+package com.pipelinedetector;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a JSON array of samples incrementally.
+ * 
+ * Each sample is written to a buffered stream as soon as it is appended, as
+ * compact JSON, and the array is closed when the writer is closed. Memory
+ * use does not grow with the number of samples, unlike building the whole
+ * document and converting it to one string.
+ */
+public class JSONStreamWriter {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    
+    private final Writer writer;
+    private long count;
+    private boolean closed;
+    
+    /**
+     * Constructor; writes the opening bracket
+     * 
+     * @param stream Stream to write to; closed with the writer
+     */
+    public JSONStreamWriter(OutputStream stream) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(stream, Charset.forName("UTF-8")), BUFFER_SIZE);
+        writer.write('[');
+    }
+    
+    /**
+     * Append an element
+     * 
+     * @param item Object to write as compact JSON
+     */
+    public void append(JSONObject item) throws IOException {
+        separate();
+        writer.write(item.toString());
+    }
+    
+    /**
+     * Write buffered output to the stream
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+    
+    /**
+     * Close the array and the stream
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.write(']');
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Return the number of elements written
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    private void separate() throws IOException {
+        if (count++ > 0) {
+            writer.write(',');
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.pipelinedetector;
+
+/**
+ * Kalman filter per segment that estimates the flow entering the segment and
+ * the flow lost inside it from the noisy readings at both of its ends.
+ * 
+ * The state of a segment is (inflow, leak rate), both modeled as random
+ * walks; the upstream sensor measures the inflow and the downstream sensor
+ * the inflow minus the leak rate. With two states the matrices are kept as a
+ * handful of doubles per segment in flat arrays and updated in place, so a
+ * sample costs a few dozen operations per segment. The normalized innovation
+ * squared, i.e. how surprising a reading is given the estimate, is available
+ * as a leak score: it jumps as soon as a leak starts, long before the leak
+ * rate estimate has converged.
+ */
+public class KalmanFlowEstimator {
+    public static final double DEFAULT_MEASUREMENT_NOISE = 0.09; // variance of a reading in (L/min)^2
+    public static final double DEFAULT_FLOW_NOISE = 0.05; // variance added to the inflow per sample
+    public static final double DEFAULT_LEAK_NOISE = 0.0001; // variance added to the leak rate per sample
+    
+    private final int segments;
+    private final double measurementNoise;
+    private final double flowNoise;
+    private final double leakNoise;
+    
+    // Per segment: state (inflow, leak) and the symmetric covariance (p00, p01, p11)
+    private final double[] states;
+    private final double[] covariances;
+    private final double[] scores;
+    private boolean primed;
+    
+    /**
+     * Constructor using the default noise levels
+     * 
+     * @param sensors Number of flow sensors
+     */
+    public KalmanFlowEstimator(int sensors) {
+        this(sensors, DEFAULT_MEASUREMENT_NOISE, DEFAULT_FLOW_NOISE, DEFAULT_LEAK_NOISE);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param sensors Number of flow sensors
+     * @param measurementNoise Variance of a single reading in (L/min)^2
+     * @param flowNoise Variance by which the true inflow may change between samples
+     * @param leakNoise Variance by which the leak rate may change between samples
+     */
+    public KalmanFlowEstimator(int sensors, double measurementNoise, double flowNoise, double leakNoise) {
+        if (sensors < 2 || !(measurementNoise > 0) || !(flowNoise >= 0) || !(leakNoise >= 0)) {
+            throw new IllegalArgumentException("Invalid Kalman filter configuration");
+        }
+        segments = sensors - 1;
+        this.measurementNoise = measurementNoise;
+        this.flowNoise = flowNoise;
+        this.leakNoise = leakNoise;
+        states = new double[segments * 2];
+        covariances = new double[segments * 3];
+        scores = new double[segments];
+    }
+    
+    /**
+     * Filter one sample
+     * 
+     * @param flows Measured flow rate at each sensor in L/min
+     * @param estimates Receives the estimated flow rate at each sensor; may be the same array as flows
+     */
+    public void update(double[] flows, double[] estimates) {
+        if (!primed) {
+            // Start from the first readings with the uncertainty of a single measurement
+            for (int i = 0; i < segments; i++) {
+                states[2 * i] = flows[i];
+                states[2 * i + 1] = flows[i] - flows[i + 1];
+                covariances[3 * i] = measurementNoise;
+                covariances[3 * i + 1] = measurementNoise;
+                covariances[3 * i + 2] = 2 * measurementNoise;
+                scores[i] = 0;
+            }
+            primed = true;
+            System.arraycopy(flows, 0, estimates, 0, segments + 1);
+            return;
+        }
+        
+        double last = 0;
+        for (int i = 0; i < segments; i++) {
+            double inflow = states[2 * i];
+            double leak = states[2 * i + 1];
+            
+            // Predict: random walk
+            double p00 = covariances[3 * i] + flowNoise;
+            double p01 = covariances[3 * i + 1];
+            double p11 = covariances[3 * i + 2] + leakNoise;
+            
+            // Innovation y = z - H x with H = [[1, 0], [1, -1]]
+            double y0 = flows[i] - inflow;
+            double y1 = flows[i + 1] - (inflow - leak);
+            
+            // S = H P H' + R
+            double s00 = p00 + measurementNoise;
+            double s01 = p00 - p01;
+            double s11 = p00 - 2 * p01 + p11 + measurementNoise;
+            double inverseDet = 1.0 / (s00 * s11 - s01 * s01);
+            double i00 = s11 * inverseDet;
+            double i01 = -s01 * inverseDet;
+            double i11 = s00 * inverseDet;
+            
+            // K = P H' S^-1, where P H' = [[p00, p00 - p01], [p01, p01 - p11]]
+            double a = p00 - p01;
+            double b = p01 - p11;
+            double k00 = p00 * i00 + a * i01;
+            double k01 = p00 * i01 + a * i11;
+            double k10 = p01 * i00 + b * i01;
+            double k11 = p01 * i01 + b * i11;
+            
+            states[2 * i] = inflow + k00 * y0 + k01 * y1;
+            states[2 * i + 1] = leak + k10 * y0 + k11 * y1;
+            
+            // P = P - K H P, where H P = [[p00, p01], [p00 - p01, p01 - p11]]
+            covariances[3 * i] = p00 - (k00 * p00 + k01 * a);
+            covariances[3 * i + 1] = p01 - (k00 * p01 + k01 * b);
+            covariances[3 * i + 2] = p11 - (k10 * p01 + k11 * b);
+            
+            scores[i] = y0 * (i00 * y0 + i01 * y1) + y1 * (i01 * y0 + i11 * y1);
+            
+            estimates[i] = states[2 * i];
+            last = states[2 * i] - states[2 * i + 1];
+        }
+        estimates[segments] = last;
+    }
+    
+    /**
+     * Get the estimated rate at which fluid is lost in a segment, in L/min
+     */
+    public double getLeakRate(int segment) {
+        return states[2 * segment + 1];
+    }
+    
+    /**
+     * Get the normalized innovation squared of a segment in the last sample.
+     * If the noise levels match the sensors it follows a chi-squared distribution
+     * with two degrees of freedom when there is no leak, so values above about 14
+     * occur in one sample in a thousand; too high noise levels make it smaller.
+     */
+    public double getScore(int segment) {
+        return scores[segment];
+    }
+    
+    /**
+     * Forget the estimates; the next sample restarts the filters
+     */
+    public void reset() {
+        primed = false;
+    }
+}
@@ -0,0 +1,186 @@
+package com.pipelinedetector;
+
+/**
+ * Debounced alarm state of every segment.
+ * 
+ * The detectors decide per sample; a segment only raises an alarm after its
+ * raw decision has held for an enter time (NORMAL, SUSPECT, LEAK) and only
+ * drops it after the decision has been clear for an exit time and the alarm
+ * has lasted a minimum time (LEAK, CLEARING, NORMAL). A raw decision that
+ * flickers therefore never reaches the operator. Every change of state is
+ * reported as an int event code, so callers only act on transitions.
+ */
+public class LeakAlarm {
+    public static final int NORMAL = 0;
+    public static final int SUSPECT = 1; // raw leak seen, not held long enough to alarm
+    public static final int LEAK = 2;
+    public static final int CLEARING = 3; // alarm raised, raw leak gone, not gone long enough to clear
+    
+    public static final long DEFAULT_ENTER_MILLIS = 2000;
+    public static final long DEFAULT_EXIT_MILLIS = 5000;
+    public static final long DEFAULT_MIN_ALARM_MILLIS = 10000;
+    
+    private static final String[] STATE_NAMES = {"NORMAL", "SUSPECT", "LEAK", "CLEARING"};
+    
+    private final long enterNanos;
+    private final long exitNanos;
+    private final long minAlarmNanos;
+    
+    private final int[] states;
+    private final long[] stateSinceNanos;
+    private final long[] alarmSinceNanos;
+    
+    // Events of the last update
+    private final int[] events;
+    private int eventCount;
+    
+    /**
+     * Constructor using the default times
+     * 
+     * @param segments Number of segments
+     */
+    public LeakAlarm(int segments) {
+        this(segments, DEFAULT_ENTER_MILLIS, DEFAULT_EXIT_MILLIS, DEFAULT_MIN_ALARM_MILLIS);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param segments Number of segments
+     * @param enterMillis How long a raw leak must persist before the alarm is raised
+     * @param exitMillis How long a raw leak must be gone before the alarm is dropped
+     * @param minAlarmMillis Shortest time an alarm stays raised
+     */
+    public LeakAlarm(int segments, long enterMillis, long exitMillis, long minAlarmMillis) {
+        if (segments < 1 || enterMillis < 0 || exitMillis < 0 || minAlarmMillis < 0) {
+            throw new IllegalArgumentException("Invalid alarm configuration");
+        }
+        enterNanos = enterMillis * 1000000L;
+        exitNanos = exitMillis * 1000000L;
+        minAlarmNanos = minAlarmMillis * 1000000L;
+        states = new int[segments];
+        stateSinceNanos = new long[segments];
+        alarmSinceNanos = new long[segments];
+        events = new int[segments];
+    }
+    
+    /**
+     * Advance every segment with the raw decisions of one sample
+     * 
+     * @param timestampNanos Time of the sample
+     * @param rawLeaks Per segment, whether the detectors see a leak in this sample
+     * @return Number of segments that changed state; read them with getEvent()
+     */
+    public int update(long timestampNanos, boolean[] rawLeaks) {
+        eventCount = 0;
+        for (int i = 0; i < states.length; i++) {
+            boolean raw = rawLeaks[i];
+            long inState = timestampNanos - stateSinceNanos[i];
+            int next = states[i];
+            switch (states[i]) {
+                case NORMAL:
+                    if (raw) {
+                        next = enterNanos == 0 ? LEAK : SUSPECT;
+                    }
+                    break;
+                case SUSPECT:
+                    if (!raw) {
+                        next = NORMAL;
+                    } else if (inState >= enterNanos) {
+                        next = LEAK;
+                    }
+                    break;
+                case LEAK:
+                    if (!raw) {
+                        next = CLEARING;
+                    }
+                    break;
+                case CLEARING:
+                    if (raw) {
+                        next = LEAK;
+                    } else if (inState >= exitNanos && timestampNanos - alarmSinceNanos[i] >= minAlarmNanos) {
+                        next = NORMAL;
+                    }
+                    break;
+            }
+            if (next != states[i]) {
+                if (next == LEAK && states[i] != CLEARING) {
+                    alarmSinceNanos[i] = timestampNanos;
+                }
+                events[eventCount++] = encodeEvent(i, states[i], next);
+                states[i] = next;
+                stateSinceNanos[i] = timestampNanos;
+            }
+        }
+        return eventCount;
+    }
+    
+    /**
+     * Get an event of the last update
+     * 
+     * @param index Index below the count returned by update()
+     * @return Event code; decode with eventSegment(), eventFrom() and eventTo()
+     */
+    public int getEvent(int index) {
+        return events[index];
+    }
+    
+    /**
+     * Get the state of a segment
+     */
+    public int getState(int segment) {
+        return states[segment];
+    }
+    
+    /**
+     * Check whether the alarm of a segment is raised, i.e. LEAK or CLEARING
+     */
+    public boolean isAlarmed(int segment) {
+        return states[segment] >= LEAK;
+    }
+    
+    /**
+     * Return every segment to NORMAL without reporting events
+     */
+    public void reset() {
+        for (int i = 0; i < states.length; i++) {
+            states[i] = NORMAL;
+        }
+        eventCount = 0;
+    }
+    
+    /**
+     * Pack a transition into an event code
+     */
+    public static int encodeEvent(int segment, int from, int to) {
+        return segment << 4 | from << 2 | to;
+    }
+    
+    /**
+     * Get the segment of an event code
+     */
+    public static int eventSegment(int event) {
+        return event >>> 4;
+    }
+    
+    /**
+     * Get the state an event code left
+     */
+    public static int eventFrom(int event) {
+        return event >>> 2 & 3;
+    }
+    
+    /**
+     * Get the state an event code entered
+     */
+    public static int eventTo(int event) {
+        return event & 3;
+    }
+    
+    /**
+     * Get the name of a state, e.g. for logs and exports
+     */
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+}
@@ -0,0 +1,217 @@
+package com.pipelinedetector;
+
+/**
+ * Estimates where along a leaking segment the leak is.
+ * 
+ * Upstream of a leak the full flow passes and the hydraulic gradient line is
+ * steeper, because friction grows with the flow; downstream it is flatter.
+ * The localizer fits one straight line through the sensors upstream of the
+ * leaking segment and one through those downstream, and reports where they
+ * intersect. A side with a single sensor uses the gradient learned while the
+ * pipe was not leaking, corrected by the profile's friction for that
+ * sensor's flow.
+ * 
+ * Pressures are smoothed per sensor and corrected for elevation and for the
+ * dynamic pressure of the flow, which drops at the leak rather than along
+ * the pipe, then reduced to prefix sums over the sensors. Any split into upstream and
+ * downstream then has its least-squares fit in constant time, so a sample
+ * costs O(sensors) regardless of how long the localizer has been running.
+ */
+public class LeakLocalizer {
+    public static final double DEFAULT_SMOOTHING = 0.1;
+    
+    private final PipeProfile profile;
+    private final int sensors;
+    private final double smoothing;
+    
+    // Per-sensor constants
+    private final double[] positions;
+    private final double[] elevationHeads; // pressure in kPa that elevation alone accounts for
+    
+    // Prefix sums over sensors [0, k): positions are fixed, pressures change per sample
+    private final double[] sumX;
+    private final double[] sumXX;
+    private final double[] sumP;
+    private final double[] sumXP;
+    
+    private final double[] smoothed;
+    private final double[] locations;
+    private boolean primed;
+    
+    // Gradient of the whole line while no segment was leaking, in kPa/m, and the mean squared flow it was learned at
+    private double baselineSlope = Double.NaN;
+    private double baselineFlowSquared;
+    
+    /**
+     * Constructor using the default smoothing
+     * 
+     * @param layout Positions and elevations of the sensors
+     */
+    public LeakLocalizer(PipeLayout layout) {
+        this(layout, DEFAULT_SMOOTHING);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param layout Positions and elevations of the sensors
+     * @param smoothing EWMA weight of a new pressure sample, 1 for no smoothing
+     */
+    public LeakLocalizer(PipeLayout layout, double smoothing) {
+        this(new PipeProfile(layout), smoothing);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param profile Pipe, fluid and sensor layout
+     * @param smoothing EWMA weight of a new pressure sample, 1 for no smoothing
+     */
+    public LeakLocalizer(PipeProfile profile, double smoothing) {
+        PipeLayout layout = profile.getLayout();
+        this.profile = profile;
+        this.smoothing = smoothing;
+        sensors = layout.getSensorCount();
+        positions = new double[sensors];
+        elevationHeads = new double[sensors];
+        sumX = new double[sensors + 1];
+        sumXX = new double[sensors + 1];
+        sumP = new double[sensors + 1];
+        sumXP = new double[sensors + 1];
+        smoothed = new double[sensors];
+        locations = new double[layout.getSegmentCount()];
+        
+        for (int i = 0; i < sensors; i++) {
+            positions[i] = layout.getPosition(i);
+            
+            // Static pressure difference due to height relative to the first sensor
+            elevationHeads[i] = -profile.getElevationPressure(i);
+            sumX[i + 1] = sumX[i] + positions[i];
+            sumXX[i + 1] = sumXX[i] + positions[i] * positions[i];
+        }
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = Double.NaN;
+        }
+    }
+    
+    /**
+     * Feed one sample and locate the leak in every leaking segment
+     * 
+     * @param flows Flow rate at each sensor in L/min
+     * @param pressures Pressure at each sensor in kPa
+     * @param segmentLeaks Which segments are currently considered leaking
+     */
+    public void update(double[] flows, double[] pressures, boolean[] segmentLeaks) {
+        // Smooth the piezometric pressures and rebuild their prefix sums
+        for (int i = 0; i < sensors; i++) {
+            double corrected = pressures[i] - elevationHeads[i] - profile.dynamicPressure(flows[i]);
+            smoothed[i] = primed ? smoothed[i] + smoothing * (corrected - smoothed[i]) : corrected;
+            sumP[i + 1] = sumP[i] + smoothed[i];
+            sumXP[i + 1] = sumXP[i] + positions[i] * smoothed[i];
+        }
+        primed = true;
+        
+        boolean leaking = false;
+        for (int segment = 0; segment < locations.length; segment++) {
+            if (segmentLeaks[segment]) {
+                leaking = true;
+                locations[segment] = intersect(segment, flows);
+            } else {
+                locations[segment] = Double.NaN;
+            }
+        }
+        
+        // Learn the normal gradient of the line while nothing leaks
+        if (!leaking) {
+            double slope = slope(0, sensors);
+            double flowSquared = 0;
+            for (int i = 0; i < sensors; i++) {
+                flowSquared += flows[i] * flows[i];
+            }
+            flowSquared /= sensors;
+            if (Double.isNaN(baselineSlope)) {
+                baselineSlope = slope;
+                baselineFlowSquared = flowSquared;
+            } else {
+                baselineSlope += smoothing * (slope - baselineSlope);
+                baselineFlowSquared += smoothing * (flowSquared - baselineFlowSquared);
+            }
+        }
+    }
+    
+    /**
+     * Get the estimated leak position of a segment from the last update
+     * 
+     * @param segment Zero-based segment index
+     * @return Distance from the start of the pipe in meters, or NaN if the segment
+     *         is not leaking or the gradient lines do not give a usable intersection
+     */
+    public double getLeakPosition(int segment) {
+        return locations[segment];
+    }
+    
+    /**
+     * Return the gradient of the pressure line learned while nothing leaked, in kPa/m
+     */
+    public double getBaselineSlope() {
+        return baselineSlope;
+    }
+    
+    /**
+     * Intersect the gradient lines on either side of a segment
+     */
+    private double intersect(int segment, double[] flows) {
+        int split = segment + 1;
+        double upstreamSlope = split >= 2 ? slope(0, split) : singleSensorSlope(flows[0]);
+        double downstreamSlope = sensors - split >= 2 ? slope(split, sensors) : singleSensorSlope(flows[split]);
+        if (Double.isNaN(upstreamSlope) || Double.isNaN(downstreamSlope)) {
+            return Double.NaN;
+        }
+        
+        // Each line passes through the centroid of its sensors
+        double upstreamX = (sumX[split] - sumX[0]) / split;
+        double upstreamP = (sumP[split] - sumP[0]) / split;
+        double downstreamX = (sumX[sensors] - sumX[split]) / (sensors - split);
+        double downstreamP = (sumP[sensors] - sumP[split]) / (sensors - split);
+        
+        double slopeDifference = upstreamSlope - downstreamSlope;
+        if (Math.abs(slopeDifference) < 1e-9) {
+            return Double.NaN;
+        }
+        double upstreamIntercept = upstreamP - upstreamSlope * upstreamX;
+        double downstreamIntercept = downstreamP - downstreamSlope * downstreamX;
+        double position = (downstreamIntercept - upstreamIntercept) / slopeDifference;
+        
+        // The leak must be inside the segment the detector flagged
+        double start = positions[segment];
+        double end = positions[segment + 1];
+        if (Double.isNaN(position)) {
+            return Double.NaN;
+        }
+        return Math.max(start, Math.min(end, position));
+    }
+    
+    /**
+     * Gradient of the line through a lone sensor: the learned gradient, with the friction
+     * for the flow it was learned at replaced by the friction for the sensor's flow
+     */
+    private double singleSensorSlope(double flow) {
+        return baselineSlope - profile.frictionGradient(1) * (flow * flow - baselineFlowSquared);
+    }
+    
+    /**
+     * Least-squares slope of the smoothed pressures of sensors [from, to)
+     */
+    private double slope(int from, int to) {
+        int n = to - from;
+        double sx = sumX[to] - sumX[from];
+        double sxx = sumXX[to] - sumXX[from];
+        double sp = sumP[to] - sumP[from];
+        double sxp = sumXP[to] - sumXP[from];
+        double denominator = n * sxx - sx * sx;
+        if (n < 2 || denominator == 0) {
+            return Double.NaN;
+        }
+        return (n * sxp - sx * sp) / denominator;
+    }
+}
@@ -0,0 +1,128 @@
+package com.pipelinedetector;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Immutable per-segment alarm thresholds for PipeLeakageDetector.
+ * Either the fixed defaults or values learned by ThresholdCalibrator from a
+ * leak-free baseline, so noisy and quiet lines each get thresholds that match
+ * their own false-alarm rate.
+ */
+public final class LeakThresholds {
+    private final double[] pressureDropThresholds;
+    private final double[] flowDifferenceThresholds;
+    private final long baselineSamples;
+    
+    /**
+     * Constructor
+     * 
+     * @param pressureDropThresholds Per segment, percentage by which the pressure gradient must exceed the others
+     * @param flowDifferenceThresholds Per segment, flow rate difference between its sensors in L/min
+     * @param baselineSamples Number of samples the thresholds were learned from, 0 for fixed values
+     */
+    public LeakThresholds(double[] pressureDropThresholds, double[] flowDifferenceThresholds, long baselineSamples) {
+        if (pressureDropThresholds.length != flowDifferenceThresholds.length) {
+            throw new IllegalArgumentException("Threshold arrays differ in length");
+        }
+        this.pressureDropThresholds = pressureDropThresholds.clone();
+        this.flowDifferenceThresholds = flowDifferenceThresholds.clone();
+        this.baselineSamples = baselineSamples;
+    }
+    
+    /**
+     * Create the fixed default thresholds
+     * 
+     * @param segments Number of pipe segments
+     */
+    public static LeakThresholds defaults(int segments) {
+        return uniform(segments, PipeLeakageDetector.PRESSURE_DROP_THRESHOLD, PipeLeakageDetector.FLOW_RATE_DIFFERENCE_THRESHOLD);
+    }
+    
+    /**
+     * Create fixed thresholds that are the same for every segment
+     * 
+     * @param segments Number of pipe segments
+     * @param pressureDropThreshold Percentage by which a segment's pressure gradient must exceed the others
+     * @param flowDifferenceThreshold Flow rate difference between adjacent sensors in L/min
+     */
+    public static LeakThresholds uniform(int segments, double pressureDropThreshold, double flowDifferenceThreshold) {
+        double[] pressure = new double[segments];
+        double[] flow = new double[segments];
+        for (int i = 0; i < segments; i++) {
+            pressure[i] = pressureDropThreshold;
+            flow[i] = flowDifferenceThreshold;
+        }
+        return new LeakThresholds(pressure, flow, 0);
+    }
+    
+    /**
+     * Return the number of pipe segments
+     */
+    public int getSegmentCount() {
+        return pressureDropThresholds.length;
+    }
+    
+    /**
+     * Get the percentage by which a segment's pressure gradient must exceed the others
+     */
+    public double getPressureDropThreshold(int segment) {
+        return pressureDropThresholds[segment];
+    }
+    
+    /**
+     * Get the flow rate difference across a segment in L/min that counts as a leak
+     */
+    public double getFlowDifferenceThreshold(int segment) {
+        return flowDifferenceThresholds[segment];
+    }
+    
+    /**
+     * Return the number of baseline samples the thresholds were learned from, 0 for the defaults
+     */
+    public long getBaselineSamples() {
+        return baselineSamples;
+    }
+    
+    /**
+     * Check whether the thresholds were learned rather than fixed
+     */
+    public boolean isCalibrated() {
+        return baselineSamples > 0;
+    }
+    
+    /**
+     * Convert to JSON for storage
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONArray pressure = new JSONArray();
+        JSONArray flow = new JSONArray();
+        for (int i = 0; i < pressureDropThresholds.length; i++) {
+            pressure.put(pressureDropThresholds[i]);
+            flow.put(flowDifferenceThresholds[i]);
+        }
+        JSONObject json = new JSONObject();
+        json.put("pressureDrop", pressure);
+        json.put("flowDifference", flow);
+        json.put("baselineSamples", baselineSamples);
+        return json;
+    }
+    
+    /**
+     * Read thresholds stored with toJson()
+     */
+    public static LeakThresholds fromJson(JSONObject json) throws JSONException {
+        JSONArray pressure = json.getJSONArray("pressureDrop");
+        JSONArray flow = json.getJSONArray("flowDifference");
+        double[] pressureThresholds = new double[pressure.length()];
+        double[] flowThresholds = new double[flow.length()];
+        for (int i = 0; i < pressureThresholds.length; i++) {
+            pressureThresholds[i] = pressure.getDouble(i);
+        }
+        for (int i = 0; i < flowThresholds.length; i++) {
+            flowThresholds[i] = flow.getDouble(i);
+        }
+        return new LeakThresholds(pressureThresholds, flowThresholds, json.optLong("baselineSamples", 0));
+    }
+}
@@ -0,0 +1,152 @@
+package com.pipelinedetector;
+
+/**
+ * Reassembles newline-delimited records from a raw byte stream.
+ * Incoming bytes are kept in a reusable ring buffer so that partial lines
+ * are carried across reads and only complete records are handed out.
+ */
+public class LineFrameDecoder implements FrameDecoder {
+    private static final byte LINE_FEED = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    
+    private final byte[] ring;
+    private final int mask;
+    private final int maxFrameLength;
+    
+    // Absolute stream positions, wrapped into the ring with the mask
+    private long head; // first byte of the current (incomplete) record
+    private long tail; // next free position
+    private long scan; // next position to check for a delimiter
+    
+    // True while the rest of an overlong record is being skipped
+    private boolean discarding;
+    private int droppedFrames;
+    
+    /**
+     * Constructor
+     * 
+     * @param capacity Ring buffer size in bytes, rounded up to a power of two
+     * @param maxFrameLength Longest record accepted; longer records are dropped
+     */
+    public LineFrameDecoder(int capacity, int maxFrameLength) {
+        if (maxFrameLength <= 0 || capacity <= maxFrameLength) {
+            throw new IllegalArgumentException("Capacity must be larger than the maximum frame length");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        ring = new byte[size];
+        mask = size - 1;
+        this.maxFrameLength = maxFrameLength;
+    }
+    
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        int free = ring.length - (int) (tail - head);
+        int count = Math.min(length, free);
+        if (count <= 0) {
+            return 0;
+        }
+        
+        int start = (int) (tail & mask);
+        int firstPart = Math.min(count, ring.length - start);
+        System.arraycopy(src, offset, ring, start, firstPart);
+        if (count > firstPart) {
+            System.arraycopy(src, offset + firstPart, ring, 0, count - firstPart);
+        }
+        tail += count;
+        return count;
+    }
+    
+    /**
+     * Extract the next complete record, without its line terminator
+     */
+    @Override
+    public int readFrame(byte[] dst) {
+        while (scan < tail) {
+            if (ring[(int) (scan & mask)] != LINE_FEED) {
+                scan++;
+                continue;
+            }
+            
+            long end = scan;
+            long next = scan + 1;
+            if (end > head && ring[(int) ((end - 1) & mask)] == CARRIAGE_RETURN) {
+                end--;
+            }
+            int length = (int) (end - head);
+            long start = head;
+            head = next;
+            scan = next;
+            
+            if (discarding) {
+                // Tail end of a record that was already dropped
+                discarding = false;
+                continue;
+            }
+            if (length == 0) {
+                continue;
+            }
+            if (length > dst.length || length > maxFrameLength) {
+                droppedFrames++;
+                continue;
+            }
+            
+            copyOut(start, dst, length);
+            return length;
+        }
+        
+        // No delimiter yet; drop the record if it can never fit, whichever way its bytes were split
+        // across reads. A full-length record may still be waiting for the LF after its CR.
+        long pending = tail - head;
+        boolean mayFit = pending <= maxFrameLength
+                || (pending == maxFrameLength + 1 && ring[(int) ((tail - 1) & mask)] == CARRIAGE_RETURN);
+        if (!mayFit || pending == ring.length) {
+            if (!discarding) {
+                droppedFrames++;
+            }
+            discarding = true;
+            head = tail;
+        }
+        return -1;
+    }
+    
+    @Override
+    public int drain(byte[] dst) {
+        int length = Math.min(dst.length, (int) (tail - head));
+        if (length <= 0) {
+            return 0;
+        }
+        copyOut(head, dst, length);
+        head += length;
+        scan = Math.max(scan, head);
+        discarding = false;
+        return length;
+    }
+    
+    @Override
+    public void reset() {
+        head = tail;
+        scan = tail;
+        discarding = false;
+    }
+    
+    @Override
+    public int getFormat() {
+        return FORMAT_CSV;
+    }
+    
+    /**
+     * Return the number of records dropped because they were too long
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+    
+    private void copyOut(long start, byte[] dst, int length) {
+        int from = (int) (start & mask);
+        int firstPart = Math.min(length, ring.length - from);
+        System.arraycopy(ring, from, dst, 0, firstPart);
+        if (length > firstPart) {
+            System.arraycopy(ring, 0, dst, firstPart, length - firstPart);
+        }
+    }
+}
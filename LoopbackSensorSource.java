@@ -0,0 +1,355 @@
+package com.pipelinedetector;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sensor source that reads from a TCP socket instead of Bluetooth.
+ * 
+ * It can attach to any host and port that speaks the Arduino protocol, or
+ * start a built-in emulator on the loopback interface that behaves like the
+ * pipeline hardware: it sends CSV lines, answers the binary mode request and
+ * then sends binary frames, at a configurable sample rate and with optional
+ * simulated leaks. This allows ingestion and detection to be soak-tested at
+ * rates the real sensors cannot produce.
+ */
+public class LoopbackSensorSource implements SensorSource {
+    private static final String TAG = "LoopbackSensorSource";
+    private static final int READ_BUFFER_SIZE = 1024;
+    
+    private final Handler handler;
+    private volatile FrameListener frameListener;
+    private volatile int state = BluetoothService.STATE_NONE;
+    
+    // Guarded by this
+    private Socket socket;
+    private OutputStream outStream;
+    private Thread readerThread;
+    private ArduinoEmulator emulator;
+    
+    /**
+     * Constructor
+     * 
+     * @param handler Handler that receives state messages, or null
+     */
+    public LoopbackSensorSource(Handler handler) {
+        this.handler = handler;
+    }
+    
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+    }
+    
+    @Override
+    public int getState() {
+        return state;
+    }
+    
+    /**
+     * Start the built-in emulator on the loopback interface and connect to it
+     * 
+     * @param sensorCount Number of flow sensors the emulator reports
+     * @param sampleRateHz Samples per second; 0 sends as fast as the socket allows
+     * @return The port the emulator listens on
+     */
+    public synchronized int startEmulator(int sensorCount, double sampleRateHz) throws IOException {
+        stop();
+        emulator = new ArduinoEmulator(sensorCount, sampleRateHz);
+        int port = emulator.start();
+        connect(InetAddress.getLoopbackAddress().getHostAddress(), port);
+        return port;
+    }
+    
+    /**
+     * Simulate a leak in the built-in emulator
+     * 
+     * @param segment Zero-based segment; all sensors after it see the reduced flow
+     * @param flowLoss Leak rate in L/min, 0 to repair it
+     */
+    public synchronized void setSimulatedLeak(int segment, double flowLoss) {
+        if (emulator != null) {
+            emulator.setLeak(segment, flowLoss);
+        }
+    }
+    
+    /**
+     * Connect to a TCP endpoint that speaks the Arduino protocol
+     * 
+     * @param host Host name or address
+     * @param port TCP port
+     */
+    public synchronized void connect(final String host, final int port) {
+        closeSocket();
+        setState(BluetoothService.STATE_CONNECTING);
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(host, port);
+            }
+        }, "LoopbackReader");
+        readerThread.start();
+    }
+    
+    @Override
+    public void write(byte[] out) {
+        OutputStream stream;
+        synchronized (this) {
+            stream = outStream;
+        }
+        if (stream == null) {
+            return;
+        }
+        try {
+            synchronized (stream) {
+                stream.write(out);
+                stream.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception during write", e);
+        }
+    }
+    
+    @Override
+    public synchronized void stop() {
+        closeSocket();
+        if (emulator != null) {
+            emulator.stop();
+            emulator = null;
+        }
+    }
+    
+    private void readLoop(String host, int port) {
+        Socket s;
+        InputStream in;
+        try {
+            s = new Socket(host, port);
+            s.setTcpNoDelay(true);
+            in = s.getInputStream();
+            synchronized (this) {
+                if (readerThread != Thread.currentThread()) {
+                    s.close();
+                    return;
+                }
+                socket = s;
+                outStream = s.getOutputStream();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to connect to " + host + ":" + port, e);
+            setState(BluetoothService.STATE_NONE);
+            return;
+        }
+        
+        setState(BluetoothService.STATE_CONNECTED);
+        
+        // Ask for binary frames, exactly like BluetoothService does
+        write(BinaryFrameDecoder.MODE_REQUEST);
+        
+        FrameAssembler assembler = new FrameAssembler(0);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            int bytes;
+            while ((bytes = in.read(buffer)) > 0) {
+                FrameListener listener = frameListener;
+                if (listener != null) {
+                    assembler.feed(buffer, 0, bytes, System.nanoTime(), listener);
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Loopback connection closed", e);
+        }
+        
+        synchronized (this) {
+            if (socket == s) {
+                closeSocket();
+            }
+        }
+    }
+    
+    /**
+     * Close the current connection; caller holds this
+     */
+    private void closeSocket() {
+        readerThread = null;
+        outStream = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of loopback socket failed", e);
+            }
+            socket = null;
+        }
+        setState(BluetoothService.STATE_NONE);
+    }
+    
+    private void setState(int newState) {
+        if (state == newState) {
+            return;
+        }
+        state = newState;
+        if (handler != null) {
+            handler.obtainMessage(BluetoothService.MESSAGE_STATE_CHANGE, newState, 0).sendToTarget();
+        }
+    }
+    
+    /**
+     * Pretends to be the Arduino: a constant base flow with sensor noise,
+     * reduced downstream of any simulated leak
+     */
+    private static class ArduinoEmulator {
+        private static final double BASE_FLOW = 10.0; // L/min
+        private static final double NOISE = 0.05;     // L/min standard deviation
+        
+        private final int sensorCount;
+        private final long intervalNanos;
+        private final double[] leaks;
+        private final Random random = new Random();
+        
+        private ServerSocket serverSocket;
+        private Socket client;
+        private volatile boolean running;
+        private volatile boolean binaryMode;
+        
+        ArduinoEmulator(int sensorCount, double sampleRateHz) {
+            this.sensorCount = Math.max(1, Math.min(SensorSample.MAX_CHANNELS, sensorCount));
+            intervalNanos = sampleRateHz > 0 ? (long) (1e9 / sampleRateHz) : 0;
+            leaks = new double[this.sensorCount];
+        }
+        
+        int start() throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            running = true;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            }, "ArduinoEmulator");
+            thread.setDaemon(true);
+            thread.start();
+            return serverSocket.getLocalPort();
+        }
+        
+        synchronized void setLeak(int segment, double flowLoss) {
+            if (segment >= 0 && segment < leaks.length) {
+                leaks[segment] = flowLoss;
+            }
+        }
+        
+        void stop() {
+            running = false;
+            try {
+                serverSocket.close();
+                if (client != null) {
+                    client.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "close() of emulator socket failed", e);
+            }
+        }
+        
+        private void serve() {
+            try {
+                client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+                startCommandReader(client.getInputStream(), client.getOutputStream());
+                emit(client.getOutputStream());
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Emulator stopped", e);
+                }
+            }
+        }
+        
+        /**
+         * Answer the binary mode request like the firmware does
+         */
+        private void startCommandReader(final InputStream in, final OutputStream out) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LineFrameDecoder decoder = new LineFrameDecoder(1024, 64);
+                    byte[] buffer = new byte[64];
+                    byte[] line = new byte[64];
+                    byte[] request = BinaryFrameDecoder.MODE_REQUEST;
+                    try {
+                        int bytes;
+                        while ((bytes = in.read(buffer)) > 0) {
+                            decoder.write(buffer, 0, bytes);
+                            int length;
+                            while ((length = decoder.readFrame(line)) >= 0) {
+                                if (length == request.length - 1 && startsWith(line, request, length)) {
+                                    synchronized (out) {
+                                        out.write(BinaryFrameDecoder.MODE_ACK);
+                                        out.write('\n');
+                                        binaryMode = true;
+                                    }
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Emulator command reader closed");
+                    }
+                }
+            }, "ArduinoEmulatorCommands");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        private void emit(OutputStream out) throws IOException {
+            double[] flows = new double[sensorCount];
+            byte[] frame = new byte[BluetoothService.MAX_FRAME_LENGTH];
+            long start = System.nanoTime();
+            long next = start;
+            int sequence = 0;
+            
+            while (running) {
+                synchronized (this) {
+                    double lost = 0;
+                    for (int i = 0; i < sensorCount; i++) {
+                        flows[i] = BASE_FLOW - lost + random.nextGaussian() * NOISE;
+                        lost += leaks[i];
+                    }
+                }
+                
+                synchronized (out) {
+                    if (binaryMode) {
+                        long deviceMillis = (System.nanoTime() - start) / 1000000L;
+                        out.write(frame, 0, BinaryFrameDecoder.encode(sequence++, deviceMillis, flows, sensorCount, frame));
+                    } else {
+                        int length = SampleParser.formatCsv(flows, sensorCount, frame);
+                        frame[length++] = '\n';
+                        out.write(frame, 0, length);
+                    }
+                }
+                
+                if (intervalNanos > 0) {
+                    next += intervalNanos;
+                    long wait;
+                    while (running && (wait = next - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            }
+        }
+        
+        private static boolean startsWith(byte[] line, byte[] prefix, int length) {
+            for (int i = 0; i < length; i++) {
+                if (line[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
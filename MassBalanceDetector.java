@@ -0,0 +1,264 @@
+package com.pipelinedetector;
+
+/**
+ * Detects slow seepage from the volume balance of every segment.
+ * 
+ * Each sensor's flow is integrated into a cumulative volume with the
+ * trapezoidal rule over the real sample times. The cumulative volumes are
+ * prefix sums: the volume that passed a sensor during any interval is the
+ * difference of two of them. Snapshots are kept in a ring at a fixed time
+ * resolution, and every window keeps a pointer to the snapshot where it
+ * starts, which only ever moves forward. The imbalance over a window is
+ * therefore an O(1) query, extra windows only add a pointer each, and memory
+ * depends on the longest window rather than on the sample rate.
+ */
+public class MassBalanceDetector {
+    // Default windows with the mean imbalance in L/min each must exceed; longer windows average out more noise
+    private static final long[] DEFAULT_WINDOW_MILLIS = {60000L, 600000L, 3600000L};
+    private static final double[] DEFAULT_RATE_THRESHOLDS = {0.2, 0.1, 0.05};
+    
+    private static final long DEFAULT_RESOLUTION_MILLIS = 1000;
+    private static final long MAX_GAP_NANOS = 10000000000L; // samples further apart are not integrated across
+    private static final double NANOS_PER_MINUTE = 60e9;
+    
+    private final int sensors;
+    private final int segments;
+    private final long[] windowNanos;
+    private final double[] rateThresholds;
+    private final long resolutionNanos;
+    
+    // Ring of cumulative volume snapshots; entries are addressed by a running index
+    private final int capacity;
+    private final long[] snapshotNanos;
+    private final double[] snapshotVolumes; // capacity * sensors, in liters
+    private long snapshotCount;
+    
+    // Running integral
+    private final double[] volumes;
+    private final double[] lastFlows;
+    private long lastNanos;
+    private boolean primed;
+    
+    // Per window: running index of its start snapshot, and the last results per segment
+    private final long[] windowStarts;
+    private final boolean[] windowFull;
+    private final double[] imbalances; // windows * segments, in liters
+    private final double[] imbalanceRates; // windows * segments, in L/min
+    private final boolean[] leaks;
+    
+    /**
+     * Constructor using 1 min, 10 min and 1 h windows
+     * 
+     * @param sensors Number of flow sensors
+     */
+    public MassBalanceDetector(int sensors) {
+        this(sensors, DEFAULT_WINDOW_MILLIS, DEFAULT_RATE_THRESHOLDS, DEFAULT_RESOLUTION_MILLIS);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param sensors Number of flow sensors
+     * @param windowMillis Length of each window in milliseconds
+     * @param rateThresholds Mean imbalance in L/min over each window that counts as a leak
+     * @param resolutionMillis Spacing of the stored snapshots, which is how precisely windows start
+     */
+    public MassBalanceDetector(int sensors, long[] windowMillis, double[] rateThresholds, long resolutionMillis) {
+        if (sensors < 2 || windowMillis.length == 0 || windowMillis.length != rateThresholds.length || resolutionMillis <= 0) {
+            throw new IllegalArgumentException("Invalid mass balance configuration");
+        }
+        this.sensors = sensors;
+        segments = sensors - 1;
+        resolutionNanos = resolutionMillis * 1000000L;
+        windowNanos = new long[windowMillis.length];
+        long longest = 0;
+        for (int w = 0; w < windowMillis.length; w++) {
+            if (windowMillis[w] < resolutionMillis) {
+                throw new IllegalArgumentException("Windows must be at least the snapshot resolution");
+            }
+            windowNanos[w] = windowMillis[w] * 1000000L;
+            longest = Math.max(longest, windowMillis[w]);
+        }
+        this.rateThresholds = rateThresholds.clone();
+        
+        // Enough snapshots to reach back over the longest window, plus the one before it
+        capacity = (int) (longest / resolutionMillis) + 2;
+        snapshotNanos = new long[capacity];
+        snapshotVolumes = new double[capacity * sensors];
+        
+        volumes = new double[sensors];
+        lastFlows = new double[sensors];
+        windowStarts = new long[windowMillis.length];
+        windowFull = new boolean[windowMillis.length];
+        imbalances = new double[windowMillis.length * segments];
+        imbalanceRates = new double[windowMillis.length * segments];
+        leaks = new boolean[segments];
+    }
+    
+    /**
+     * Integrate one sample and re-evaluate every window
+     * 
+     * @param timestampNanos Time the sample was taken; must not go backwards
+     * @param flows Flow rate at each sensor in L/min
+     * @return Number of segments whose imbalance exceeds the threshold of any full window
+     */
+    public int update(long timestampNanos, double[] flows) {
+        if (primed) {
+            long elapsed = timestampNanos - lastNanos;
+            if (elapsed <= 0) {
+                return countLeaks();
+            }
+            
+            // Trapezoid between the previous and this sample; skip gaps, for which all sensors lack data alike
+            if (elapsed <= MAX_GAP_NANOS) {
+                double minutes = elapsed / NANOS_PER_MINUTE;
+                for (int s = 0; s < sensors; s++) {
+                    volumes[s] += (lastFlows[s] + flows[s]) * 0.5 * minutes;
+                }
+            }
+        }
+        System.arraycopy(flows, 0, lastFlows, 0, sensors);
+        lastNanos = timestampNanos;
+        
+        if (!primed || timestampNanos - snapshotNanos[slot(snapshotCount - 1)] >= resolutionNanos) {
+            storeSnapshot(timestampNanos);
+        }
+        primed = true;
+        
+        for (int i = 0; i < segments; i++) {
+            leaks[i] = false;
+        }
+        long oldest = Math.max(0, snapshotCount - capacity);
+        for (int w = 0; w < windowNanos.length; w++) {
+            // Move the start forward to the last snapshot at or before the window start
+            long windowStart = timestampNanos - windowNanos[w];
+            long start = Math.max(windowStarts[w], oldest);
+            while (start + 1 < snapshotCount && snapshotNanos[slot(start + 1)] <= windowStart) {
+                start++;
+            }
+            windowStarts[w] = start;
+            
+            int startSlot = slot(start);
+            long span = timestampNanos - snapshotNanos[startSlot];
+            windowFull[w] = snapshotNanos[startSlot] <= windowStart;
+            double minutes = span / NANOS_PER_MINUTE;
+            int base = startSlot * sensors;
+            for (int i = 0; i < segments; i++) {
+                double upstream = volumes[i] - snapshotVolumes[base + i];
+                double downstream = volumes[i + 1] - snapshotVolumes[base + i + 1];
+                double imbalance = upstream - downstream;
+                imbalances[w * segments + i] = imbalance;
+                imbalanceRates[w * segments + i] = minutes > 0 ? imbalance / minutes : 0;
+                if (windowFull[w] && imbalanceRates[w * segments + i] > rateThresholds[w]) {
+                    leaks[i] = true;
+                }
+            }
+        }
+        return countLeaks();
+    }
+    
+    /**
+     * Return the number of windows
+     */
+    public int getWindowCount() {
+        return windowNanos.length;
+    }
+    
+    /**
+     * Get the length of a window in milliseconds
+     */
+    public long getWindowMillis(int window) {
+        return windowNanos[window] / 1000000L;
+    }
+    
+    /**
+     * Check whether enough history has been seen to cover a whole window
+     */
+    public boolean isWindowFull(int window) {
+        return windowFull[window];
+    }
+    
+    /**
+     * Return the longest window that is full, or -1 if none is
+     */
+    public int getLongestFullWindow() {
+        int longest = -1;
+        for (int w = 0; w < windowNanos.length; w++) {
+            if (windowFull[w] && (longest < 0 || windowNanos[w] > windowNanos[longest])) {
+                longest = w;
+            }
+        }
+        return longest;
+    }
+    
+    /**
+     * Get the volume that entered a segment but did not leave it during a window
+     * 
+     * @param window Window index
+     * @param segment Zero-based segment index
+     * @return Imbalance in liters; positive means volume is missing
+     */
+    public double getImbalance(int window, int segment) {
+        return imbalances[window * segments + segment];
+    }
+    
+    /**
+     * Get the mean imbalance of a segment over a window in L/min
+     */
+    public double getImbalanceRate(int window, int segment) {
+        return imbalanceRates[window * segments + segment];
+    }
+    
+    /**
+     * Check whether a segment exceeded the threshold of any full window in the last update
+     */
+    public boolean isLeaking(int segment) {
+        return leaks[segment];
+    }
+    
+    /**
+     * Get the volume that has passed a sensor since the first sample, in liters
+     */
+    public double getCumulativeVolume(int sensor) {
+        return volumes[sensor];
+    }
+    
+    /**
+     * Forget all history
+     */
+    public void reset() {
+        primed = false;
+        snapshotCount = 0;
+        for (int s = 0; s < sensors; s++) {
+            volumes[s] = 0;
+        }
+        for (int w = 0; w < windowStarts.length; w++) {
+            windowStarts[w] = 0;
+            windowFull[w] = false;
+        }
+        for (int i = 0; i < segments; i++) {
+            leaks[i] = false;
+        }
+    }
+    
+    private void storeSnapshot(long timestampNanos) {
+        int slot = slot(snapshotCount);
+        snapshotNanos[slot] = timestampNanos;
+        System.arraycopy(volumes, 0, snapshotVolumes, slot * sensors, sensors);
+        snapshotCount++;
+    }
+    
+    private int slot(long index) {
+        return (int) (index % capacity);
+    }
+    
+    private int countLeaks() {
+        int count = 0;
+        for (boolean leak : leaks) {
+            if (leak) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
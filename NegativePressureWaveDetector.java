@@ -0,0 +1,373 @@
+package com.pipelinedetector;
+
+/**
+ * Detects ruptures from the negative pressure wave they send along the pipe.
+ * 
+ * A sudden leak drops the pressure at the leak, and the drop travels upstream
+ * and downstream at the wave speed. Each sensor keeps a sliding window of
+ * recent pressures. The sensor that first falls below its baseline is
+ * closest to the leak; its windows are cross-correlated through an FFT with
+ * those of its neighbours to find which of them the wave reached next. Those
+ * two sensors bracket the leak, and the delay between them gives its position.
+ * 
+ * When the pressures are calculated from flows rather than measured, only
+ * the dynamic part changes, so a fixed drop threshold in kPa may never be
+ * reached. The profile constructor therefore sizes the threshold as a
+ * fraction of the dynamic pressure at the nominal flow.
+ * 
+ * All buffers, twiddle factors and the bit reversal table are allocated once.
+ * A normal sample costs O(sensors); the correlation runs once per event and
+ * takes O(segments * window * log window).
+ */
+public class NegativePressureWaveDetector {
+    public static final int DEFAULT_WINDOW = 256;
+    public static final double DEFAULT_WAVE_SPEED = 1000; // m/s, typical for water in steel or plastic pipes
+    public static final double DEFAULT_DROP_THRESHOLD = 2.0; // kPa below baseline, for measured pressures
+    public static final double DEFAULT_DROP_FRACTION = 0.2; // of the dynamic pressure at the nominal flow
+    public static final double DEFAULT_NOMINAL_FLOW = 10.0; // L/min delivered by the sensor rig
+    
+    private static final double BASELINE_ALPHA = 0.05;
+    
+    private final PipeLayout layout;
+    private final int sensors;
+    private final int window;
+    private final double sampleRateHz;
+    private final double waveSpeed;
+    private final double dropThreshold;
+    
+    // Sliding windows, one ring per sensor sharing the same head
+    private final double[][] history;
+    private int head;
+    private int filled;
+    
+    private final double[] baseline;
+    private boolean primed;
+    private int samplesUntilEvaluation = -1;
+    private int triggerSensor;
+    
+    // Samples the wave needs to run the whole pipe; drops within that time belong to the same event
+    private final int transitSamples;
+    private int holdoff;
+    
+    // FFT work buffers of twice the window, so the correlation is linear rather than circular
+    private final int fftSize;
+    private final double[] re;
+    private final double[] im;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] bitReverse;
+    
+    private int ruptureSegment = -1;
+    private double rupturePosition = Double.NaN;
+    private int ruptureCount;
+    
+    /**
+     * Constructor using the default window, wave speed and drop threshold, for measured pressures
+     * 
+     * @param layout Positions of the sensors
+     * @param sampleRateHz Rate at which pressure samples are fed
+     */
+    public NegativePressureWaveDetector(PipeLayout layout, double sampleRateHz) {
+        this(layout, sampleRateHz, DEFAULT_WINDOW, DEFAULT_WAVE_SPEED, DEFAULT_DROP_THRESHOLD);
+    }
+    
+    /**
+     * Constructor for pressures calculated from flows with a profile; a flow loss of about
+     * a tenth of the nominal flow is large enough to trigger an evaluation
+     * 
+     * @param profile Pipe, fluid and sensor layout the pressures are calculated with
+     * @param sampleRateHz Rate at which pressure samples are fed
+     * @param nominalFlow Usual flow rate through the pipe in L/min
+     */
+    public NegativePressureWaveDetector(PipeProfile profile, double sampleRateHz, double nominalFlow) {
+        this(profile.getLayout(), sampleRateHz, DEFAULT_WINDOW, DEFAULT_WAVE_SPEED,
+                DEFAULT_DROP_FRACTION * profile.dynamicPressure(nominalFlow));
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param layout Positions of the sensors
+     * @param sampleRateHz Rate at which pressure samples are fed
+     * @param window Samples kept per sensor, a power of two
+     * @param waveSpeed Speed of pressure waves in the pipe in m/s
+     * @param dropThreshold Fall below baseline in kPa that triggers an evaluation
+     */
+    public NegativePressureWaveDetector(PipeLayout layout, double sampleRateHz, int window,
+                                        double waveSpeed, double dropThreshold) {
+        if (window < 8 || Integer.bitCount(window) != 1) {
+            throw new IllegalArgumentException("Window must be a power of two of at least 8");
+        }
+        if (sampleRateHz <= 0 || waveSpeed <= 0 || dropThreshold <= 0) {
+            throw new IllegalArgumentException("Sample rate, wave speed and threshold must be positive");
+        }
+        
+        // The wave must cross the longest segment within half a window
+        double longestSegment = 0;
+        for (int i = 0; i < layout.getSegmentCount(); i++) {
+            longestSegment = Math.max(longestSegment, layout.getSegmentLength(i));
+        }
+        if (longestSegment / waveSpeed * sampleRateHz >= window / 2) {
+            throw new IllegalArgumentException("Window too short for a segment of " + longestSegment + " m");
+        }
+        
+        this.layout = layout;
+        this.window = window;
+        this.sampleRateHz = sampleRateHz;
+        this.waveSpeed = waveSpeed;
+        this.dropThreshold = dropThreshold;
+        sensors = layout.getSensorCount();
+        history = new double[sensors][window];
+        baseline = new double[sensors];
+        transitSamples = (int) Math.ceil((layout.getPosition(sensors - 1) - layout.getPosition(0)) / waveSpeed * sampleRateHz);
+        
+        fftSize = window * 2;
+        re = new double[fftSize];
+        im = new double[fftSize];
+        cos = new double[fftSize / 2];
+        sin = new double[fftSize / 2];
+        for (int i = 0; i < fftSize / 2; i++) {
+            cos[i] = Math.cos(-2 * Math.PI * i / fftSize);
+            sin[i] = Math.sin(-2 * Math.PI * i / fftSize);
+        }
+        bitReverse = new int[fftSize];
+        int bits = Integer.numberOfTrailingZeros(fftSize);
+        for (int i = 0; i < fftSize; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+    
+    /**
+     * Feed one pressure sample per sensor
+     * 
+     * @param pressures Pressure at each sensor in kPa
+     * @return true if a rupture was located with this sample
+     */
+    public boolean update(double[] pressures) {
+        for (int i = 0; i < sensors; i++) {
+            history[i][head] = pressures[i];
+        }
+        head = (head + 1) & (window - 1);
+        if (filled < window) {
+            filled++;
+        }
+        
+        if (!primed) {
+            System.arraycopy(pressures, 0, baseline, 0, sensors);
+            primed = true;
+            return false;
+        }
+        
+        // Wait until the wave front sits in the middle of the windows
+        if (samplesUntilEvaluation > 0) {
+            samplesUntilEvaluation--;
+            return false;
+        }
+        if (samplesUntilEvaluation == 0) {
+            samplesUntilEvaluation = -1;
+            
+            // Let the wave finish passing the other sensors before re-arming
+            holdoff = transitSamples;
+            return locate();
+        }
+        
+        // The sensor that falls furthest below its baseline is taken as the first one reached
+        int dropped = -1;
+        double deepest = dropThreshold;
+        for (int i = 0; i < sensors; i++) {
+            double drop = baseline[i] - pressures[i];
+            if (drop > deepest) {
+                deepest = drop;
+                dropped = i;
+            }
+            baseline[i] += BASELINE_ALPHA * (pressures[i] - baseline[i]);
+        }
+        if (holdoff > 0) {
+            holdoff--;
+        } else if (dropped >= 0 && filled == window) {
+            triggerSensor = dropped;
+            samplesUntilEvaluation = window / 2;
+        }
+        return false;
+    }
+    
+    /**
+     * Return the fall below baseline in kPa that triggers an evaluation
+     */
+    public double getDropThreshold() {
+        return dropThreshold;
+    }
+    
+    /**
+     * Return the segment of the last located rupture, or -1 if none was located yet
+     */
+    public int getRuptureSegment() {
+        return ruptureSegment;
+    }
+    
+    /**
+     * Return the position of the last located rupture in meters from the start of the pipe
+     */
+    public double getRupturePosition() {
+        return rupturePosition;
+    }
+    
+    /**
+     * Return the number of ruptures located since the last reset
+     */
+    public int getRuptureCount() {
+        return ruptureCount;
+    }
+    
+    /**
+     * Discard the windows, e.g. after a gap in the data
+     */
+    public void reset() {
+        head = 0;
+        filled = 0;
+        primed = false;
+        samplesUntilEvaluation = -1;
+        holdoff = 0;
+    }
+    
+    /**
+     * Bracket the leak between the trigger sensor and whichever neighbour the wave reached next
+     */
+    private boolean locate() {
+        int first = triggerSensor;
+        int segment;
+        double delay;
+        if (first == 0) {
+            segment = 0;
+            delay = delaySeconds(0, 1);
+        } else if (first == sensors - 1) {
+            segment = first - 1;
+            delay = delaySeconds(first - 1, first);
+        } else {
+            // Arrival at each neighbour relative to the trigger sensor
+            double upstream = -delaySeconds(first - 1, first);
+            double downstream = delaySeconds(first, first + 1);
+            if (upstream < downstream) {
+                segment = first - 1;
+                delay = -upstream;
+            } else {
+                segment = first;
+                delay = downstream;
+            }
+        }
+        
+        // Wave travels a from the leak to the start of the segment and L - a to its end
+        double length = layout.getSegmentLength(segment);
+        double offset = Math.max(0, Math.min(length, (length - waveSpeed * delay) / 2));
+        
+        ruptureSegment = segment;
+        rupturePosition = layout.getPosition(segment) + offset;
+        ruptureCount++;
+        return true;
+    }
+    
+    /**
+     * Estimate how much later the wave reached sensor b than sensor a
+     */
+    private double delaySeconds(int a, int b) {
+        // Correlate the sample-to-sample changes, which turns the pressure step into a sharp pulse;
+        // a goes into the real part and b into the imaginary part so one FFT transforms both
+        int start = head; // oldest sample
+        double previousA = history[a][start];
+        double previousB = history[b][start];
+        for (int i = 0; i < window - 1; i++) {
+            int index = (start + i + 1) & (window - 1);
+            re[i] = history[a][index] - previousA;
+            im[i] = history[b][index] - previousB;
+            previousA = history[a][index];
+            previousB = history[b][index];
+        }
+        for (int i = window - 1; i < fftSize; i++) {
+            re[i] = 0;
+            im[i] = 0;
+        }
+        fft(re, im);
+        
+        // Separate the two spectra and form conj(A) * B in place
+        for (int k = 0; k <= fftSize / 2; k++) {
+            int mirror = (fftSize - k) & (fftSize - 1);
+            double zr = re[k];
+            double zi = im[k];
+            double mr = re[mirror];
+            double mi = im[mirror];
+            double ar = (zr + mr) / 2;
+            double ai = (zi - mi) / 2;
+            double br = (zi + mi) / 2;
+            double bi = (mr - zr) / 2;
+            double cr = ar * br + ai * bi;
+            double ci = ar * bi - ai * br;
+            
+            // The cross spectrum of real signals is Hermitian
+            re[k] = cr;
+            im[k] = ci;
+            re[mirror] = cr;
+            im[mirror] = -ci;
+        }
+        
+        // Inverse transform through the forward one by conjugating
+        for (int i = 0; i < fftSize; i++) {
+            im[i] = -im[i];
+        }
+        fft(re, im);
+        
+        // Search only lags the wave could physically take
+        double distance = Math.abs(layout.getPosition(b) - layout.getPosition(a));
+        int maxLag = (int) Math.ceil(distance / waveSpeed * sampleRateHz) + 1;
+        int bestLag = 0;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int lag = -maxLag; lag <= maxLag; lag++) {
+            double value = re[lag & (fftSize - 1)];
+            if (value > best) {
+                best = value;
+                bestLag = lag;
+            }
+        }
+        
+        // Refine to a fraction of a sample with a parabola through the peak
+        double left = re[(bestLag - 1) & (fftSize - 1)];
+        double right = re[(bestLag + 1) & (fftSize - 1)];
+        double curvature = left - 2 * best + right;
+        double fraction = curvature < 0 ? 0.5 * (left - right) / curvature : 0;
+        return (bestLag + fraction) / sampleRateHz;
+    }
+    
+    /**
+     * In-place iterative radix-2 FFT of length fftSize
+     */
+    private void fft(double[] real, double[] imag) {
+        for (int i = 0; i < fftSize; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                double t = real[i];
+                real[i] = real[j];
+                real[j] = t;
+                t = imag[i];
+                imag[i] = imag[j];
+                imag[j] = t;
+            }
+        }
+        for (int size = 2; size <= fftSize; size <<= 1) {
+            int half = size >> 1;
+            int step = fftSize / size;
+            for (int i = 0; i < fftSize; i += size) {
+                for (int j = 0; j < half; j++) {
+                    double wr = cos[j * step];
+                    double wi = sin[j * step];
+                    int p = i + j;
+                    int q = p + half;
+                    double tr = real[q] * wr - imag[q] * wi;
+                    double ti = real[q] * wi + imag[q] * wr;
+                    real[q] = real[p] - tr;
+                    imag[q] = imag[p] - ti;
+                    real[p] += tr;
+                    imag[p] += ti;
+                }
+            }
+        }
+    }
+}
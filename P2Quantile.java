@@ -0,0 +1,137 @@
+package com.pipelinedetector;
+
+/**
+ * Streaming estimate of one quantile using the P-square algorithm of Jain and Chlamtac.
+ * Five markers track the minimum, the quantile, the maximum and two points in
+ * between; each observation moves them with a parabolic correction. Memory
+ * and time per observation are constant, however long the stream runs.
+ */
+public class P2Quantile {
+    private final double p;
+    private final double[] heights = new double[5];
+    private final double[] positions = new double[5];
+    private final double[] desired = new double[5];
+    private final double[] increments = new double[5];
+    private long count;
+    
+    /**
+     * Constructor
+     * 
+     * @param p Quantile to estimate, between 0 and 1
+     */
+    public P2Quantile(double p) {
+        if (!(p > 0 && p < 1)) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        }
+        this.p = p;
+        increments[0] = 0;
+        increments[1] = p / 2;
+        increments[2] = p;
+        increments[3] = (1 + p) / 2;
+        increments[4] = 1;
+    }
+    
+    /**
+     * Add an observation
+     */
+    public void add(double x) {
+        if (Double.isNaN(x)) {
+            return;
+        }
+        
+        // The first five observations initialize the markers
+        if (count < 5) {
+            int i = (int) count;
+            while (i > 0 && heights[i - 1] > x) {
+                heights[i] = heights[i - 1];
+                i--;
+            }
+            heights[i] = x;
+            count++;
+            if (count == 5) {
+                for (int m = 0; m < 5; m++) {
+                    positions[m] = m;
+                    desired[m] = 4 * increments[m];
+                }
+            }
+            return;
+        }
+        count++;
+        
+        // Find the cell the observation falls in, extending the extremes if needed
+        int cell;
+        if (x < heights[0]) {
+            heights[0] = x;
+            cell = 0;
+        } else if (x >= heights[4]) {
+            heights[4] = Math.max(heights[4], x);
+            cell = 3;
+        } else {
+            cell = 0;
+            while (x >= heights[cell + 1]) {
+                cell++;
+            }
+        }
+        for (int m = cell + 1; m < 5; m++) {
+            positions[m]++;
+        }
+        for (int m = 0; m < 5; m++) {
+            desired[m] += increments[m];
+        }
+        
+        // Move the middle markers towards their desired positions
+        for (int m = 1; m < 4; m++) {
+            double d = desired[m] - positions[m];
+            if ((d >= 1 && positions[m + 1] - positions[m] > 1) || (d <= -1 && positions[m - 1] - positions[m] < -1)) {
+                int step = d > 0 ? 1 : -1;
+                double candidate = parabolic(m, step);
+                if (heights[m - 1] < candidate && candidate < heights[m + 1]) {
+                    heights[m] = candidate;
+                } else {
+                    heights[m] += step * (heights[m + step] - heights[m]) / (positions[m + step] - positions[m]);
+                }
+                positions[m] += step;
+            }
+        }
+    }
+    
+    /**
+     * Return the current estimate, or NaN before any observation
+     */
+    public double getQuantile() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count < 5) {
+            // Too few observations for the markers; use the nearest order statistic
+            int index = (int) Math.min(count - 1, Math.round(p * (count - 1)));
+            return heights[index];
+        }
+        return heights[2];
+    }
+    
+    /**
+     * Return the number of observations added
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    /**
+     * Forget all observations
+     */
+    public void reset() {
+        count = 0;
+    }
+    
+    /**
+     * Piecewise-parabolic prediction of a marker height after moving it one position
+     */
+    private double parabolic(int m, int step) {
+        double below = positions[m] - positions[m - 1];
+        double above = positions[m + 1] - positions[m];
+        double span = positions[m + 1] - positions[m - 1];
+        return heights[m] + step / span * ((below + step) * (heights[m + 1] - heights[m]) / above
+                + (above - step) * (heights[m] - heights[m - 1]) / below);
+    }
+}
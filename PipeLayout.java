@@ -0,0 +1,85 @@
+package com.pipelinedetector;
+
+/**
+ * Positions and elevations of the flow sensors along a pipe.
+ * Sensors are ordered from upstream to downstream; segment i lies between
+ * sensors i and i + 1.
+ */
+public final class PipeLayout {
+    // Layout of the original three-sensor test rig
+    private static final double[] DEFAULT_POSITIONS = {0, 20, 40};
+    
+    private final double[] positions;
+    private final double[] elevations;
+    private final double[] segmentLengths;
+    
+    /**
+     * Constructor
+     * 
+     * @param positions Distance of each sensor from the start of the pipe in meters, strictly increasing
+     * @param elevations Height of each sensor in meters, or null for a level pipe
+     */
+    public PipeLayout(double[] positions, double[] elevations) {
+        if (positions == null || positions.length < 2) {
+            throw new IllegalArgumentException("A pipe layout needs at least two sensors");
+        }
+        if (positions.length > SensorSample.MAX_CHANNELS) {
+            throw new IllegalArgumentException("At most " + SensorSample.MAX_CHANNELS + " sensors are supported");
+        }
+        if (elevations != null && elevations.length != positions.length) {
+            throw new IllegalArgumentException("Expected " + positions.length + " elevations");
+        }
+        
+        this.positions = positions.clone();
+        this.elevations = elevations != null ? elevations.clone() : new double[positions.length];
+        segmentLengths = new double[positions.length - 1];
+        for (int i = 0; i < segmentLengths.length; i++) {
+            segmentLengths[i] = positions[i + 1] - positions[i];
+            if (!(segmentLengths[i] > 0)) {
+                throw new IllegalArgumentException("Sensor positions must be strictly increasing");
+            }
+        }
+    }
+    
+    /**
+     * Return the layout of the three-sensor rig: level pipe, sensors at 0, 20 and 40 m
+     */
+    public static PipeLayout defaultLayout() {
+        return new PipeLayout(DEFAULT_POSITIONS, null);
+    }
+    
+    /**
+     * Return the number of sensors
+     */
+    public int getSensorCount() {
+        return positions.length;
+    }
+    
+    /**
+     * Return the number of segments between adjacent sensors
+     */
+    public int getSegmentCount() {
+        return segmentLengths.length;
+    }
+    
+    /**
+     * Get the distance of a sensor from the start of the pipe in meters
+     */
+    public double getPosition(int sensor) {
+        return positions[sensor];
+    }
+    
+    /**
+     * Get the height of a sensor in meters
+     */
+    public double getElevation(int sensor) {
+        return elevations[sensor];
+    }
+    
+    /**
+     * Get the length of a segment in meters
+     */
+    public double getSegmentLength(int segment) {
+        return segmentLengths[segment];
+    }
+}
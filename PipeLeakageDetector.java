@@ -3,17 +3,198 @@ package com.pipelinedetector;
 /**
  * Main class that integrates the components of the pipeline leakage detection system
  * Note: This is a conceptual class to demonstrate the system architecture
+ * 
+ * An instance checks every segment of a pipe with any number of sensors. The
+ * pressure gradient of each segment, corrected for elevation, is compared
+ * with the mean gradient of all other segments, and adjacent flow rates are
+ * compared directly. With the default three-sensor layout this is the same
+ * rule as analyzePressureDropPattern() plus detectLeakage(). All work is done
+ * in two linear passes over primitive arrays that are allocated once.
  */
 public class PipeLeakageDetector {
-    // System constants
-    private static final double PIPE_DIAMETER = 0.02; // 2cm diameter pipe in meters
-    private static final double PIPE_RADIUS = PIPE_DIAMETER / 2.0;
-    private static final double PIPE_AREA = Math.PI * PIPE_RADIUS * PIPE_RADIUS; // Cross-sectional area in m²
-    private static final double WATER_DENSITY = 1000.0; // kg/m³
-    private static final double GRAVITY = 9.81; // m/s²
+    // Pipe and fluid used by the static helpers
+    private static final PipeProfile DEFAULT_PROFILE = PipeProfile.defaultProfile();
     
-    // Flow rate thresholds
-    private static final double FLOW_RATE_DIFFERENCE_THRESHOLD = 0.5; // L/min
+    // Default flow rate threshold, used until a line is calibrated
+    public static final double FLOW_RATE_DIFFERENCE_THRESHOLD = 0.5; // L/min
+    
+    // Default pressure gradient threshold, used until a line is calibrated
+    public static final double PRESSURE_DROP_THRESHOLD = 15.0; // percent above the other segments
+    
+    private final PipeLayout layout;
+    private LeakThresholds thresholds;
+    
+    // Per-segment constants derived from the layout
+    private final double[] inverseLengths;
+    private final double[] hydrostaticDrops; // kPa expected from elevation alone
+    
+    // Results of the last detect() call, reused for every sample
+    private final double[] pressureDrops;
+    private final double[] gradients;
+    private final double[] scores;
+    private final boolean[] leaks;
+    private double maxScore;
+    
+    /**
+     * Constructor using the default thresholds
+     * 
+     * @param layout Sensor positions and elevations
+     */
+    public PipeLeakageDetector(PipeLayout layout) {
+        this(layout, PRESSURE_DROP_THRESHOLD, FLOW_RATE_DIFFERENCE_THRESHOLD);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param layout Sensor positions and elevations
+     * @param pressureDropThreshold Percentage by which a segment's pressure gradient must exceed the others
+     * @param flowDifferenceThreshold Flow rate difference between adjacent sensors in L/min
+     */
+    public PipeLeakageDetector(PipeLayout layout, double pressureDropThreshold, double flowDifferenceThreshold) {
+        this(layout, LeakThresholds.uniform(layout.getSegmentCount(), pressureDropThreshold, flowDifferenceThreshold));
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param layout Sensor positions and elevations
+     * @param thresholds Per-segment thresholds, e.g. learned by ThresholdCalibrator
+     */
+    public PipeLeakageDetector(PipeLayout layout, LeakThresholds thresholds) {
+        this(new PipeProfile(layout), thresholds);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param profile Pipe, fluid and sensor layout
+     * @param thresholds Per-segment thresholds, e.g. learned by ThresholdCalibrator
+     */
+    public PipeLeakageDetector(PipeProfile profile, LeakThresholds thresholds) {
+        this.layout = profile.getLayout();
+        setThresholds(thresholds);
+        
+        int segments = layout.getSegmentCount();
+        inverseLengths = new double[segments];
+        hydrostaticDrops = new double[segments];
+        for (int i = 0; i < segments; i++) {
+            inverseLengths[i] = 1.0 / layout.getSegmentLength(i);
+            hydrostaticDrops[i] = profile.getElevationPressure(i + 1) - profile.getElevationPressure(i);
+        }
+        pressureDrops = new double[segments];
+        gradients = new double[segments];
+        scores = new double[segments];
+        leaks = new boolean[segments];
+    }
+    
+    /**
+     * Check all segments of the pipe for leaks
+     * 
+     * @param flows Flow rate at each sensor in L/min
+     * @param pressures Pressure at each sensor in kPa
+     * @return Number of leaking segments
+     */
+    public int detect(double[] flows, double[] pressures) {
+        int segments = gradients.length;
+        
+        // Frictional pressure gradient of every segment
+        double sum = 0;
+        for (int i = 0; i < segments; i++) {
+            double drop = pressures[i] - pressures[i + 1] - hydrostaticDrops[i];
+            pressureDrops[i] = drop;
+            gradients[i] = drop * inverseLengths[i];
+            sum += gradients[i];
+        }
+        
+        // Compare each segment with the mean of the others; a leak steepens the gradient upstream of it
+        int leaking = 0;
+        double max = 0;
+        double others = segments > 1 ? 1.0 / (segments - 1) : 0;
+        for (int i = 0; i < segments; i++) {
+            double score = 0;
+            if (segments > 1) {
+                double reference = (sum - gradients[i]) * others;
+                double average = (gradients[i] + reference) / 2;
+                if (average != 0) {
+                    score = (gradients[i] - reference) / average * 100;
+                }
+            }
+            scores[i] = score;
+            max = Math.max(max, Math.abs(score));
+            
+            boolean leak = score > thresholds.getPressureDropThreshold(i)
+                    || Math.abs(flows[i] - flows[i + 1]) > thresholds.getFlowDifferenceThreshold(i);
+            leaks[i] = leak;
+            if (leak) {
+                leaking++;
+            }
+        }
+        maxScore = max;
+        return leaking;
+    }
+    
+    /**
+     * Replace the thresholds used by the next detect() calls
+     * 
+     * @param thresholds Per-segment thresholds for this layout
+     */
+    public void setThresholds(LeakThresholds thresholds) {
+        if (thresholds.getSegmentCount() != layout.getSegmentCount()) {
+            throw new IllegalArgumentException("Expected thresholds for " + layout.getSegmentCount() + " segments");
+        }
+        this.thresholds = thresholds;
+    }
+    
+    /**
+     * Return the thresholds currently in use
+     */
+    public LeakThresholds getThresholds() {
+        return thresholds;
+    }
+    
+    /**
+     * Return the layout this detector was built for
+     */
+    public PipeLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * Check whether the last detect() call found a leak in a segment
+     */
+    public boolean isLeaking(int segment) {
+        return leaks[segment];
+    }
+    
+    /**
+     * Get the score of a segment from the last detect() call: the percentage by which its
+     * pressure gradient exceeds the mean of the other segments
+     */
+    public double getScore(int segment) {
+        return scores[segment];
+    }
+    
+    /**
+     * Get the pressure drop over a segment from the last detect() call in kPa, corrected for elevation
+     */
+    public double getPressureDrop(int segment) {
+        return pressureDrops[segment];
+    }
+    
+    /**
+     * Return the largest absolute score of the last detect() call
+     */
+    public double getMaxScore() {
+        return maxScore;
+    }
+    
+    /**
+     * Copy the leak flags of the last detect() call into a caller-owned array
+     */
+    public void copyLeaks(boolean[] dst) {
+        System.arraycopy(leaks, 0, dst, 0, leaks.length);
+    }
     
     /**
      * Calculate pressure at a point using Bernoulli's equation
@@ -24,20 +205,8 @@ public class PipeLeakageDetector {
      * @return Pressure in kPa
      */
     public static double calculatePressure(double flowRate, double height, double referenceHeight) {
-        // Convert flow rate from L/min to m³/s
-        double flowRateM3ps = flowRate / 60000.0;
-        
-        // Calculate velocity (m/s)
-        double velocity = flowRateM3ps / PIPE_AREA;
-        
-        // Calculate dynamic pressure component (Pa)
-        double dynamicPressure = 0.5 * WATER_DENSITY * velocity * velocity;
-        
-        // Calculate potential energy component (Pa)
-        double potentialEnergy = WATER_DENSITY * GRAVITY * (referenceHeight - height);
-        
-        // Calculate total pressure (Pa) and convert to kPa
-        return (dynamicPressure + potentialEnergy) / 1000.0;
+        // Dynamic pressure plus the potential energy relative to the reference height
+        return DEFAULT_PROFILE.dynamicPressure(flowRate) + DEFAULT_PROFILE.hydrostaticPressure(referenceHeight - height);
     }
     
     /**
@@ -0,0 +1,219 @@
+package com.pipelinedetector;
+
+/**
+ * Physical description of a monitored pipe: sensor layout, pipe diameter,
+ * fluid density, the static pressure line at zero flow and the pipe's
+ * Darcy-Weisbach friction factor.
+ * 
+ * Everything that does not depend on the flow is compiled into per-sensor
+ * coefficients when the profile is built, so turning a flow vector into
+ * pressures is a few multiply-adds per sensor:
+ * pressure = staticPressure + dynamicCoefficient * flow^2 - frictionLoss,
+ * where each segment loses frictionCoefficient * (flowIn^2 + flowOut^2) to
+ * friction. Friction grows with the flow, so upstream of a leak the pressure
+ * line is steeper than downstream of it.
+ * The app, the batch jobs and the static helpers of PipeLeakageDetector all
+ * use a profile, so they give the same answer.
+ */
+public final class PipeProfile {
+    public static final double DEFAULT_DIAMETER = 0.02; // 2cm diameter pipe in meters
+    public static final double WATER_DENSITY = 1000.0; // kg/m^3
+    public static final double GRAVITY = 9.81; // m/s^2
+    public static final double DEFAULT_SUPPLY_PRESSURE = 150; // static pressure at the first sensor in kPa
+    public static final double DEFAULT_STATIC_GRADIENT = 1.0; // kPa lost per meter of pipe
+    public static final double DEFAULT_FRICTION_FACTOR = 0.02; // smooth pipe, turbulent flow
+    
+    private final PipeLayout layout;
+    private final double diameter;
+    private final double density;
+    private final double supplyPressure;
+    private final double staticGradient;
+    private final double frictionFactor;
+    
+    // Compiled coefficients
+    private final double[] staticPressures; // kPa at each sensor with no flow
+    private final double[] elevationPressures; // kPa lost to the height above the first sensor
+    private final double dynamicCoefficient; // kPa per (L/min)^2
+    private final double frictionGradient; // kPa per meter per (L/min)^2
+    private final double[] frictionCoefficients; // per segment, kPa per (L/min)^2 of each end's flow
+    
+    /**
+     * Constructor for water in the default pipe
+     * 
+     * @param layout Positions and elevations of the sensors
+     */
+    public PipeProfile(PipeLayout layout) {
+        this(layout, DEFAULT_DIAMETER, WATER_DENSITY, DEFAULT_SUPPLY_PRESSURE, DEFAULT_STATIC_GRADIENT);
+    }
+    
+    /**
+     * Constructor using the default friction factor
+     * 
+     * @param layout Positions and elevations of the sensors
+     * @param diameter Inner pipe diameter in meters
+     * @param density Fluid density in kg/m^3
+     * @param supplyPressure Static pressure at the first sensor in kPa
+     * @param staticGradient Static pressure lost per meter of pipe in kPa
+     */
+    public PipeProfile(PipeLayout layout, double diameter, double density, double supplyPressure, double staticGradient) {
+        this(layout, diameter, density, supplyPressure, staticGradient, DEFAULT_FRICTION_FACTOR);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param layout Positions and elevations of the sensors
+     * @param diameter Inner pipe diameter in meters
+     * @param density Fluid density in kg/m^3
+     * @param supplyPressure Static pressure at the first sensor in kPa
+     * @param staticGradient Static pressure lost per meter of pipe in kPa
+     * @param frictionFactor Darcy-Weisbach friction factor, 0 to ignore friction
+     */
+    public PipeProfile(PipeLayout layout, double diameter, double density, double supplyPressure, double staticGradient,
+            double frictionFactor) {
+        if (!(diameter > 0) || !(density > 0)) {
+            throw new IllegalArgumentException("Diameter and density must be positive");
+        }
+        if (!(frictionFactor >= 0)) {
+            throw new IllegalArgumentException("Friction factor must not be negative");
+        }
+        this.layout = layout;
+        this.diameter = diameter;
+        this.density = density;
+        this.supplyPressure = supplyPressure;
+        this.staticGradient = staticGradient;
+        this.frictionFactor = frictionFactor;
+        
+        // Flow in L/min to m^3/s, divided by the area for the velocity; 0.5 * rho * v^2 in Pa, then kPa
+        double area = Math.PI * diameter * diameter / 4;
+        double velocityPerFlow = 1.0 / (60000 * area);
+        dynamicCoefficient = 0.5 * density * velocityPerFlow * velocityPerFlow / 1000;
+        
+        // Darcy-Weisbach: f * L / D dynamic pressures per length L. A segment uses the mean of
+        // the squared flows at its ends, since where the flow changes inside it is unknown.
+        frictionGradient = frictionFactor / diameter * dynamicCoefficient;
+        frictionCoefficients = new double[layout.getSegmentCount()];
+        for (int i = 0; i < frictionCoefficients.length; i++) {
+            frictionCoefficients[i] = frictionGradient * layout.getSegmentLength(i) / 2;
+        }
+        
+        int sensors = layout.getSensorCount();
+        staticPressures = new double[sensors];
+        elevationPressures = new double[sensors];
+        for (int i = 0; i < sensors; i++) {
+            elevationPressures[i] = hydrostaticPressure(layout.getElevation(i) - layout.getElevation(0));
+            staticPressures[i] = supplyPressure - staticGradient * (layout.getPosition(i) - layout.getPosition(0))
+                    - elevationPressures[i];
+        }
+    }
+    
+    /**
+     * Return the profile of the three-sensor rig, which has static pressures of 150, 130 and 110 kPa
+     */
+    public static PipeProfile defaultProfile() {
+        return new PipeProfile(PipeLayout.defaultLayout());
+    }
+    
+    /**
+     * Calculate the pressure at every sensor from the flow rates
+     * 
+     * @param flows Flow rate at each sensor in L/min
+     * @param pressures Receives the pressure at each sensor in kPa
+     */
+    public void calculatePressures(double[] flows, double[] pressures) {
+        double k = dynamicCoefficient;
+        double loss = 0;
+        double previousSquared = 0;
+        for (int i = 0; i < staticPressures.length; i++) {
+            double flowSquared = flows[i] * flows[i];
+            if (i > 0) {
+                loss += frictionCoefficients[i - 1] * (previousSquared + flowSquared);
+            }
+            pressures[i] = staticPressures[i] + k * flowSquared - loss;
+            previousSquared = flowSquared;
+        }
+    }
+    
+    /**
+     * Calculate the dynamic pressure of a flow rate in kPa
+     * 
+     * @param flowRate Flow rate in L/min
+     */
+    public double dynamicPressure(double flowRate) {
+        return dynamicCoefficient * flowRate * flowRate;
+    }
+    
+    /**
+     * Calculate the pressure lost to friction per meter of pipe in kPa
+     * 
+     * @param flowRate Flow rate in L/min
+     */
+    public double frictionGradient(double flowRate) {
+        return frictionGradient * flowRate * flowRate;
+    }
+    
+    /**
+     * Calculate the pressure of a column of the fluid in kPa
+     * 
+     * @param height Height of the column in meters
+     */
+    public double hydrostaticPressure(double height) {
+        return density * GRAVITY * height / 1000;
+    }
+    
+    /**
+     * Return the sensor layout
+     */
+    public PipeLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * Get the pressure a sensor loses to its height above the first sensor, in kPa
+     */
+    public double getElevationPressure(int sensor) {
+        return elevationPressures[sensor];
+    }
+    
+    /**
+     * Get the pressure at a sensor with no flow, in kPa
+     */
+    public double getStaticPressure(int sensor) {
+        return staticPressures[sensor];
+    }
+    
+    /**
+     * Return the inner pipe diameter in meters
+     */
+    public double getDiameter() {
+        return diameter;
+    }
+    
+    /**
+     * Return the fluid density in kg/m^3
+     */
+    public double getDensity() {
+        return density;
+    }
+    
+    /**
+     * Return the static pressure at the first sensor in kPa
+     */
+    public double getSupplyPressure() {
+        return supplyPressure;
+    }
+    
+    /**
+     * Return the static pressure lost per meter of pipe in kPa
+     */
+    public double getStaticGradient() {
+        return staticGradient;
+    }
+    
+    /**
+     * Return the Darcy-Weisbach friction factor
+     */
+    public double getFrictionFactor() {
+        return frictionFactor;
+    }
+}
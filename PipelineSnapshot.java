@@ -0,0 +1,121 @@
+package com.pipelinedetector;
+
+/**
+ * Immutable view of the latest processed sample, handed to the UI thread
+ */
+public final class PipelineSnapshot {
+    private final long version;
+    private final long timestamp;
+    private final double[] flows;
+    private final double[] pressures;
+    private final boolean[] segmentLeaks;
+    private final double[] leakPositions;
+    private final double percentDifference;
+    private final int droppedFrames;
+    private final long gapMillis;
+    private final long alarmVersion;
+    
+    PipelineSnapshot(long version, long timestamp, double[] flows, double[] pressures,
+                     boolean[] segmentLeaks, double[] leakPositions, double percentDifference,
+                     int droppedFrames, long gapMillis, long alarmVersion) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.flows = flows.clone();
+        this.pressures = pressures.clone();
+        this.segmentLeaks = segmentLeaks.clone();
+        this.leakPositions = leakPositions.clone();
+        this.percentDifference = percentDifference;
+        this.droppedFrames = droppedFrames;
+        this.gapMillis = gapMillis;
+        this.alarmVersion = alarmVersion;
+    }
+    
+    /**
+     * Return a counter that increases with every processed sample
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Return the time the sample was processed, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Return the number of sensors in the sample
+     */
+    public int getSensorCount() {
+        return flows.length;
+    }
+    
+    /**
+     * Get the flow rate at a sensor in L/min
+     */
+    public double getFlow(int sensor) {
+        return flows[sensor];
+    }
+    
+    /**
+     * Get the pressure at a sensor in kPa
+     */
+    public double getPressure(int sensor) {
+        return pressures[sensor];
+    }
+    
+    /**
+     * Return the number of pipe segments between adjacent sensors
+     */
+    public int getSegmentCount() {
+        return segmentLeaks.length;
+    }
+    
+    /**
+     * Check whether a leak was detected in a segment
+     * 
+     * @param segment Zero-based segment index; segment 0 lies between sensors 1 and 2
+     */
+    public boolean isSegmentLeaking(int segment) {
+        return segmentLeaks[segment];
+    }
+    
+    /**
+     * Get the estimated position of the leak in a segment
+     * 
+     * @param segment Zero-based segment index
+     * @return Distance from the start of the pipe in meters, or NaN if not leaking or unknown
+     */
+    public double getLeakPosition(int segment) {
+        return leakPositions[segment];
+    }
+    
+    /**
+     * Return the percentage difference between the pressure drops of the two sections
+     */
+    public double getPercentDifference() {
+        return percentDifference;
+    }
+    
+    /**
+     * Return the number of frames dropped because processing fell behind
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+    
+    /**
+     * Return the total time in milliseconds during which sensor nodes delivered no data
+     */
+    public long getGapMillis() {
+        return gapMillis;
+    }
+    
+    /**
+     * Return a counter that changes whenever a segment's alarm is raised or dropped
+     */
+    public long getAlarmVersion() {
+        return alarmVersion;
+    }
+}
@@ -0,0 +1,225 @@
+package com.pipelinedetector;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sensor source that replays a recorded session.
+ * 
+ * Accepts either a saved pipeline_data_*.json file, whose samples are sent
+ * as CSV frames paced by their timestamps, or a raw capture of the bytes
+ * received from a sensor link, which goes through the normal framing path
+ * and is paced at a fixed frame interval. Playback runs at 1x to 1000x
+ * real time, or unthrottled for benchmarks.
+ */
+public class ReplaySensorSource implements SensorSource {
+    private static final String TAG = "ReplaySensorSource";
+    
+    public static final double MIN_SPEED = 1.0;
+    public static final double MAX_SPEED = 1000.0;
+    public static final double UNTHROTTLED = 0.0;
+    
+    // Raw captures carry no timestamps; assume the default Arduino sample period
+    private static final long RAW_FRAME_INTERVAL_NANOS = 100000000L; // 100 ms
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final String JSON_EXTENSION = ".json";
+    
+    private final Handler handler;
+    private final File file;
+    private final double speed;
+    private final boolean loop;
+    
+    private volatile FrameListener frameListener;
+    private volatile int state = BluetoothService.STATE_NONE;
+    private volatile boolean running;
+    private Thread thread;
+    
+    // Playback clock, only touched by the replay thread
+    private long startNanos;
+    private long frameOffsetNanos;
+    
+    /**
+     * Constructor
+     * 
+     * @param handler Handler that receives state messages, or null
+     * @param file Recorded JSON session or raw capture
+     * @param speed Playback speed between MIN_SPEED and MAX_SPEED, or UNTHROTTLED
+     * @param loop Whether to start over at the end of the file
+     */
+    public ReplaySensorSource(Handler handler, File file, double speed, boolean loop) {
+        this.handler = handler;
+        this.file = file;
+        this.speed = speed <= UNTHROTTLED ? UNTHROTTLED : Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        this.loop = loop;
+    }
+    
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+    }
+    
+    @Override
+    public int getState() {
+        return state;
+    }
+    
+    /**
+     * Recorded sessions cannot receive commands
+     */
+    @Override
+    public void write(byte[] out) {
+    }
+    
+    /**
+     * Start playback on a background thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "ReplayThread");
+        thread.start();
+    }
+    
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+    
+    private void replay() {
+        Log.i(TAG, "BEGIN replay of " + file.getName() + " at " + (speed == UNTHROTTLED ? "full" : speed + "x") + " speed");
+        setState(BluetoothService.STATE_CONNECTED);
+        try {
+            do {
+                startNanos = System.nanoTime();
+                frameOffsetNanos = 0;
+                if (file.getName().endsWith(JSON_EXTENSION)) {
+                    replayJson();
+                } else {
+                    replayRaw();
+                }
+            } while (running && loop);
+        } catch (IOException e) {
+            Log.e(TAG, "Error replaying " + file.getName(), e);
+            if (handler != null) {
+                handler.obtainMessage(BluetoothService.MESSAGE_TOAST, 0, -1, "Unable to replay " + file.getName()).sendToTarget();
+            }
+        } finally {
+            setState(BluetoothService.STATE_NONE);
+        }
+        Log.i(TAG, "END replay");
+    }
+    
+    /**
+     * Send every stored sample as a CSV frame, spaced by the recorded timestamps
+     */
+    private void replayJson() throws IOException {
+        final byte[] frame = new byte[BluetoothService.MAX_FRAME_LENGTH];
+        final long[] firstTimestamp = {-1};
+        
+        // Parse while playing, so long sessions start at once and are never held in memory
+        Reader reader = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"));
+        try {
+            new JSONSampleReader(reader).read(new JSONSampleReader.SampleHandler() {
+                @Override
+                public boolean onSample(int index, double timestamp, double[] flows, int flowCount,
+                                        double[] pressures, int pressureCount) {
+                    int count = 0;
+                    while (count < SensorSample.MAX_CHANNELS && count < flowCount && !Double.isNaN(flows[count])) {
+                        count++;
+                    }
+                    if (count == 0) {
+                        return running;
+                    }
+                    
+                    if (timestamp >= 0) {
+                        if (firstTimestamp[0] < 0) {
+                            firstTimestamp[0] = (long) timestamp;
+                        }
+                        frameOffsetNanos = ((long) timestamp - firstTimestamp[0]) * 1000000L;
+                    } else {
+                        frameOffsetNanos += RAW_FRAME_INTERVAL_NANOS;
+                    }
+                    
+                    int length = SampleParser.formatCsv(flows, count, frame);
+                    deliver(frame, length, FrameDecoder.FORMAT_CSV);
+                    return running;
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Feed captured link bytes through the normal framing path
+     */
+    private void replayRaw() throws IOException {
+        FrameAssembler assembler = new FrameAssembler(0);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int bytes;
+            while (running && (bytes = in.read(buffer)) > 0) {
+                assembler.feed(buffer, 0, bytes, System.nanoTime(), pacedForwarder);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Spaces raw-capture frames by the assumed sample period
+     */
+    private final FrameListener pacedForwarder = new FrameListener() {
+        @Override
+        public void onFrame(int nodeId, byte[] frame, int length, int format, long arrivalNanos) {
+            frameOffsetNanos += RAW_FRAME_INTERVAL_NANOS;
+            deliver(frame, length, format);
+        }
+    };
+    
+    /**
+     * Wait until the frame is due, then hand it to the listener
+     */
+    private void deliver(byte[] frame, int length, int format) {
+        if (speed != UNTHROTTLED) {
+            long due = startNanos + (long) (frameOffsetNanos / speed);
+            long wait;
+            while (running && (wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        FrameListener listener = frameListener;
+        if (listener != null && running) {
+            // Stamp with the paced delivery time, as if the frame had just been received
+            listener.onFrame(0, frame, length, format, System.nanoTime());
+        }
+    }
+    
+    private void setState(int newState) {
+        state = newState;
+        if (handler != null) {
+            handler.obtainMessage(BluetoothService.MESSAGE_STATE_CHANGE, newState, 0).sendToTarget();
+        }
+    }
+}
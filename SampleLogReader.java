@@ -0,0 +1,161 @@
+package com.pipelinedetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read access to a log written by SampleLogWriter.
+ * 
+ * The file is memory-mapped, so opening it costs nothing per sample and any
+ * record is read in place by its index. Whole columns can be copied out in
+ * one pass for charts and BatchLeakDetector.
+ */
+public class SampleLogReader {
+    private final MappedByteBuffer data;
+    private final PipeLayout layout;
+    private final int sensors;
+    private final boolean withPressures;
+    private final int headerSize;
+    private final int recordSize;
+    private final int sampleCount;
+    
+    /**
+     * Open a log
+     * 
+     * @param path Log file
+     * @throws IOException if the file cannot be read or is not a sample log
+     */
+    public SampleLogReader(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < SampleLogWriter.FIXED_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a sample log");
+            }
+            
+            // The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            file.close();
+        }
+        
+        if (data.getInt(0) != SampleLogWriter.MAGIC || data.getShort(4) != SampleLogWriter.VERSION) {
+            throw new IOException("Not a sample log");
+        }
+        withPressures = (data.getShort(6) & SampleLogWriter.OPTION_PRESSURES) != 0;
+        sensors = data.getInt(8);
+        headerSize = data.getInt(12);
+        if (sensors < 2 || headerSize < SampleLogWriter.headerSize(sensors) || headerSize > data.capacity()) {
+            throw new IOException("Sample log header is invalid");
+        }
+        double[] positions = new double[sensors];
+        double[] elevations = new double[sensors];
+        for (int i = 0; i < sensors; i++) {
+            positions[i] = data.getDouble(SampleLogWriter.FIXED_HEADER_SIZE + 8 * i);
+            elevations[i] = data.getDouble(SampleLogWriter.FIXED_HEADER_SIZE + 8 * (sensors + i));
+        }
+        try {
+            layout = new PipeLayout(positions, elevations);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Sample log layout is invalid: " + e.getMessage());
+        }
+        recordSize = SampleLogWriter.recordSize(sensors, withPressures);
+        
+        // A record still being written is not counted
+        sampleCount = (data.capacity() - headerSize) / recordSize;
+    }
+    
+    /**
+     * Return the sensor layout the log was written for
+     */
+    public PipeLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * Return the number of complete samples
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+    
+    /**
+     * Check whether the samples carry pressures
+     */
+    public boolean hasPressures() {
+        return withPressures;
+    }
+    
+    /**
+     * Get the time of a sample in milliseconds since the epoch
+     */
+    public long getTimestamp(int sample) {
+        return data.getLong(offset(sample));
+    }
+    
+    /**
+     * Get the flow rate of a sample at a sensor in L/min
+     */
+    public double getFlow(int sample, int sensor) {
+        return data.getFloat(offset(sample) + 8 + 4 * sensor);
+    }
+    
+    /**
+     * Get the pressure of a sample at a sensor in kPa, or NaN if the log has no pressures
+     */
+    public double getPressure(int sample, int sensor) {
+        if (!withPressures) {
+            return Double.NaN;
+        }
+        return data.getFloat(offset(sample) + 8 + 4 * (sensors + sensor));
+    }
+    
+    /**
+     * Get the flags of a sample; see SampleLogWriter.FLAG_GAP
+     */
+    public int getFlags(int sample) {
+        return data.getInt(offset(sample) + recordSize - 4);
+    }
+    
+    /**
+     * Check whether a segment was leaking in a sample
+     */
+    public boolean isSegmentLeaking(int sample, int segment) {
+        return segment < SampleLogWriter.MAX_FLAGGED_SEGMENTS && (getFlags(sample) & 1 << segment) != 0;
+    }
+    
+    /**
+     * Copy all timestamps into one array
+     */
+    public long[] readTimestamps() {
+        long[] timestamps = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            timestamps[i] = data.getLong(offset(i));
+        }
+        return timestamps;
+    }
+    
+    /**
+     * Copy all flow rates into one array per sensor, e.g. for BatchLeakDetector
+     */
+    public double[][] readFlowColumns() {
+        double[][] columns = new double[sensors][sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            int base = offset(i) + 8;
+            for (int sensor = 0; sensor < sensors; sensor++) {
+                columns[sensor][i] = data.getFloat(base + 4 * sensor);
+            }
+        }
+        return columns;
+    }
+    
+    private int offset(int sample) {
+        return headerSize + sample * recordSize;
+    }
+}
@@ -0,0 +1,228 @@
+package com.pipelinedetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only binary log of processed samples.
+ * 
+ * File layout (little-endian):
+ * <pre>
+ *   0   magic       "PLDL"
+ *   4   version     16-bit format version
+ *   6   options     16-bit, OPTION_PRESSURES if records carry pressures
+ *   8   sensors     32-bit sensor count N
+ *   12  headerSize  32-bit offset of the first record, 16 + 16N
+ *   16  positions   N doubles, meters
+ *   16+8N elevations N doubles, meters
+ * </pre>
+ * followed by fixed-width records: a 64-bit timestamp in milliseconds since
+ * the epoch, N float flow rates in L/min, N float pressures in kPa if
+ * enabled, and 32-bit flags (one leak bit per segment, FLAG_GAP). A record
+ * takes 12 + 4N or 12 + 8N bytes instead of several hundred bytes of JSON,
+ * and any record can be found by its index. Records are buffered and reach
+ * the file in blocks; a record cut short by a crash is dropped when the log
+ * is reopened.
+ */
+public class SampleLogWriter implements SampleSink {
+    static final int MAGIC = 0x4C444C50; // "PLDL" read little-endian
+    static final int VERSION = 2; // 2: gap flag moved to bit 31
+    static final int FIXED_HEADER_SIZE = 16;
+    
+    public static final int OPTION_PRESSURES = 1;
+    
+    // Record flags; segments beyond MAX_FLAGGED_SEGMENTS are not recorded
+    public static final int MAX_FLAGGED_SEGMENTS = 31;
+    public static final int FLAG_GAP = 1 << 31; // sample follows missing data
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int sensors;
+    private final boolean withPressures;
+    private final int recordSize;
+    private long sampleCount;
+    
+    /**
+     * Open a log, creating it if needed
+     * 
+     * @param path File to append to
+     * @param layout Sensor layout of the samples
+     * @param withPressures Whether to record the derived pressures
+     * @throws IOException if the file cannot be opened or was written for a different layout
+     */
+    public SampleLogWriter(File path, PipeLayout layout, boolean withPressures) throws IOException {
+        sensors = layout.getSensorCount();
+        this.withPressures = withPressures;
+        recordSize = recordSize(sensors, withPressures);
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, headerSize(sensors))).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (channel.size() < FIXED_HEADER_SIZE) {
+                writeHeader(layout);
+            } else {
+                checkHeader(layout);
+            }
+            
+            // Drop a partial record left by a crash, then append after the last whole one
+            long records = (channel.size() - headerSize(sensors)) / recordSize;
+            long end = headerSize(sensors) + records * recordSize;
+            channel.truncate(end);
+            channel.position(end);
+            sampleCount = records;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Add a sample to the log
+     * 
+     * @param timestamp Time of the sample in milliseconds since the epoch
+     * @param flows Flow rate at each sensor in L/min
+     * @param pressures Pressure at each sensor in kPa; ignored unless the log records pressures
+     * @param flags Leak bits per segment and FLAG_GAP
+     */
+    @Override
+    public void append(long timestamp, double[] flows, double[] pressures, int flags) throws IOException {
+        if (buffer.remaining() < recordSize) {
+            flush();
+        }
+        buffer.putLong(timestamp);
+        for (int i = 0; i < sensors; i++) {
+            buffer.putFloat((float) flows[i]);
+        }
+        if (withPressures) {
+            for (int i = 0; i < sensors; i++) {
+                buffer.putFloat((float) pressures[i]);
+            }
+        }
+        buffer.putInt(flags);
+        sampleCount++;
+    }
+    
+    /**
+     * Build the record flags from the leak state of every segment
+     * 
+     * @param segmentLeaks Leak state per segment
+     * @param gap Whether the sample follows missing data
+     */
+    public static int flags(boolean[] segmentLeaks, boolean gap) {
+        int flags = gap ? FLAG_GAP : 0;
+        for (int i = 0; i < segmentLeaks.length && i < MAX_FLAGGED_SEGMENTS; i++) {
+            if (segmentLeaks[i]) {
+                flags |= 1 << i;
+            }
+        }
+        return flags;
+    }
+    
+    /**
+     * Write buffered records to the file
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    /**
+     * Flush and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+    
+    /**
+     * Return the number of samples in the log, including buffered ones
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+    
+    /**
+     * Return the size of the log in bytes, including buffered records
+     */
+    public long getByteCount() {
+        return headerSize(sensors) + sampleCount * recordSize;
+    }
+    
+    static int headerSize(int sensors) {
+        return FIXED_HEADER_SIZE + 16 * sensors;
+    }
+    
+    static int recordSize(int sensors, boolean withPressures) {
+        return 12 + (withPressures ? 8 : 4) * sensors;
+    }
+    
+    private void writeHeader(PipeLayout layout) throws IOException {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) (withPressures ? OPTION_PRESSURES : 0));
+        buffer.putInt(sensors);
+        buffer.putInt(headerSize(sensors));
+        for (int i = 0; i < sensors; i++) {
+            buffer.putDouble(layout.getPosition(i));
+        }
+        for (int i = 0; i < sensors; i++) {
+            buffer.putDouble(layout.getElevation(i));
+        }
+        channel.truncate(0);
+        channel.position(0);
+        flush();
+    }
+    
+    private void checkHeader(PipeLayout layout) throws IOException {
+        int size = headerSize(sensors);
+        buffer.clear();
+        buffer.limit(size);
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Keep reading until the header is complete
+        }
+        buffer.flip();
+        if (buffer.remaining() < FIXED_HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a sample log");
+        }
+        int version = buffer.getShort();
+        int options = buffer.getShort();
+        int fileSensors = buffer.getInt();
+        int fileHeaderSize = buffer.getInt();
+        if (version != VERSION || fileSensors != sensors || fileHeaderSize != size
+                || ((options & OPTION_PRESSURES) != 0) != withPressures) {
+            throw new IOException("Sample log was written with a different format or layout");
+        }
+        if (buffer.remaining() < size - FIXED_HEADER_SIZE) {
+            throw new IOException("Sample log header is truncated");
+        }
+        
+        // Same sensor count is not enough; the positions and elevations must match too
+        for (int i = 0; i < sensors; i++) {
+            if (Double.compare(buffer.getDouble(), layout.getPosition(i)) != 0) {
+                throw new IOException("Sample log was written for different sensor positions");
+            }
+        }
+        for (int i = 0; i < sensors; i++) {
+            if (Double.compare(buffer.getDouble(), layout.getElevation(i)) != 0) {
+                throw new IOException("Sample log was written for different sensor elevations");
+            }
+        }
+        buffer.clear();
+    }
+}
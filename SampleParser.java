@@ -0,0 +1,229 @@
+package com.pipelinedetector;
+
+/**
+ * Parses comma-separated flow readings directly from frame bytes.
+ * No strings, arrays or exceptions are created while parsing, so a steady
+ * stream of samples produces no garbage.
+ */
+public class SampleParser {
+    // Result codes returned by parse()
+    public static final int ERROR_EMPTY = -1;          // frame has no fields
+    public static final int ERROR_MALFORMED = -2;      // a field is not a number
+    public static final int ERROR_TOO_MANY_FIELDS = -3; // more fields than SensorSample can hold
+    
+    private static final byte SEPARATOR = ',';
+    
+    // Exact powers of ten representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    // Digits beyond this are ignored for the mantissa (still scaled correctly)
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    
+    private int errorField = -1;
+    private int position;
+    
+    /**
+     * Parse one CSV frame into a sample
+     * 
+     * @param frame Buffer holding the frame
+     * @param offset Offset of the first byte
+     * @param length Number of bytes in the frame
+     * @param sample Sample that receives the flow values
+     * @return Number of fields parsed, or one of the ERROR_* codes
+     */
+    public int parse(byte[] frame, int offset, int length, SensorSample sample) {
+        sample.clear();
+        errorField = -1;
+        position = offset;
+        int end = offset + length;
+        int field = 0;
+        
+        skipWhitespace(frame, end);
+        if (position >= end) {
+            return ERROR_EMPTY;
+        }
+        
+        while (true) {
+            if (field >= SensorSample.MAX_CHANNELS) {
+                errorField = field;
+                return ERROR_TOO_MANY_FIELDS;
+            }
+            
+            double value = parseNumber(frame, end);
+            if (Double.isNaN(value)) {
+                errorField = field;
+                return ERROR_MALFORMED;
+            }
+            sample.setFlow(field++, value);
+            
+            skipWhitespace(frame, end);
+            if (position >= end) {
+                break;
+            }
+            if (frame[position] != SEPARATOR) {
+                errorField = field - 1;
+                return ERROR_MALFORMED;
+            }
+            position++;
+        }
+        
+        sample.setChannelCount(field);
+        return field;
+    }
+    
+    /**
+     * Return the zero-based index of the field that caused the last error, or -1
+     */
+    public int getErrorField() {
+        return errorField;
+    }
+    
+    /**
+     * Format flow values as a CSV frame with three decimals, the inverse of parse();
+     * used by simulated sensors
+     * 
+     * @param values Flow rates in L/min
+     * @param count Number of values to format
+     * @param dst Destination buffer, large enough for the frame
+     * @return Number of bytes written, without a line terminator
+     */
+    public static int formatCsv(double[] values, int count, byte[] dst) {
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                dst[position++] = SEPARATOR;
+            }
+            long milli = Math.round(values[i] * 1000);
+            if (milli < 0) {
+                dst[position++] = '-';
+                milli = -milli;
+            }
+            long integer = milli / 1000;
+            int fraction = (int) (milli % 1000);
+            
+            // Integer digits, written backwards then reversed in place
+            int start = position;
+            do {
+                dst[position++] = (byte) ('0' + integer % 10);
+                integer /= 10;
+            } while (integer > 0);
+            for (int a = start, b = position - 1; a < b; a++, b--) {
+                byte tmp = dst[a];
+                dst[a] = dst[b];
+                dst[b] = tmp;
+            }
+            
+            dst[position++] = '.';
+            dst[position++] = (byte) ('0' + fraction / 100);
+            dst[position++] = (byte) ('0' + fraction / 10 % 10);
+            dst[position++] = (byte) ('0' + fraction % 10);
+        }
+        return position;
+    }
+    
+    /**
+     * Parse a decimal number such as "-12.50" or "1.2e3" starting at the current position
+     * 
+     * @return The value, or NaN if no valid number was found
+     */
+    private double parseNumber(byte[] frame, int end) {
+        skipWhitespace(frame, end);
+        
+        boolean negative = false;
+        if (position < end && (frame[position] == '-' || frame[position] == '+')) {
+            negative = frame[position] == '-';
+            position++;
+        }
+        
+        long mantissa = 0;
+        int digits = 0;
+        int significant = 0;
+        int exponent = 0;
+        
+        // Integer part
+        while (position < end && isDigit(frame[position])) {
+            if (significant < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (frame[position] - '0');
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent++;
+            }
+            digits++;
+            position++;
+        }
+        
+        // Fractional part
+        if (position < end && frame[position] == '.') {
+            position++;
+            while (position < end && isDigit(frame[position])) {
+                if (significant < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (frame[position] - '0');
+                    exponent--;
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                }
+                digits++;
+                position++;
+            }
+        }
+        
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        
+        // Optional exponent
+        if (position < end && (frame[position] == 'e' || frame[position] == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (frame[position] == '-' || frame[position] == '+')) {
+                negativeExponent = frame[position] == '-';
+                position++;
+            }
+            int exponentDigits = 0;
+            int value = 0;
+            while (position < end && isDigit(frame[position])) {
+                if (value < 10000) {
+                    value = value * 10 + (frame[position] - '0');
+                }
+                exponentDigits++;
+                position++;
+            }
+            if (exponentDigits == 0) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        
+        double result = scale(mantissa, exponent);
+        return negative ? -result : result;
+    }
+    
+    private static double scale(long mantissa, int exponent) {
+        if (mantissa == 0 || exponent == 0) {
+            return mantissa;
+        }
+        if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+            return mantissa * POWERS_OF_TEN[exponent];
+        }
+        if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            return mantissa / POWERS_OF_TEN[-exponent];
+        }
+        return mantissa * Math.pow(10, exponent);
+    }
+    
+    private void skipWhitespace(byte[] frame, int end) {
+        while (position < end && (frame[position] == ' ' || frame[position] == '\t')) {
+            position++;
+        }
+    }
+    
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
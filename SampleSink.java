@@ -0,0 +1,23 @@
+package com.pipelinedetector;
+
+import java.io.IOException;
+
+/**
+ * Destination for processed samples, e.g. a single binary log or a rotating segment store
+ */
+public interface SampleSink {
+    /**
+     * Add a sample
+     * 
+     * @param timestamp Time of the sample in milliseconds since the epoch
+     * @param flows Flow rate at each sensor in L/min
+     * @param pressures Pressure at each sensor in kPa
+     * @param flags Leak bits per segment and SampleLogWriter.FLAG_GAP
+     */
+    void append(long timestamp, double[] flows, double[] pressures, int flags) throws IOException;
+    
+    /**
+     * Write out everything appended and release the files
+     */
+    void close() throws IOException;
+}
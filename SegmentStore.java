@@ -0,0 +1,552 @@
+package com.pipelinedetector;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bounded on-device storage of the sample history as a series of binary log segments.
+ * 
+ * Samples go to the current segment, which is closed and replaced once it
+ * reaches a size or duration limit. Every rotation queues maintenance on a
+ * background thread: closed segments older than the compaction age are
+ * rewritten at a coarser resolution (mean flows and pressures per interval,
+ * leak and gap flags combined), and the oldest segments are deleted while
+ * the store exceeds its byte budget or retention age. Ages are measured
+ * against the newest sample, not the phone's clock.
+ * 
+ * The segments live in their own directory next to an index file listing
+ * their names, time ranges and sizes, so listing the history never has to
+ * scan the directory or open the segments.
+ * 
+ * There is one store per directory in the process, obtained with
+ * getInstance(). A pipeline that is still shutting down and its replacement
+ * therefore append to the same store, and only one of them ever rewrites
+ * the index.
+ */
+public class SegmentStore implements SampleSink {
+    private static final String TAG = "SegmentStore";
+    private static final String INDEX_FILE = "index.json";
+    
+    public static final String SEGMENT_PREFIX = "segment_";
+    public static final String COARSE_SUFFIX = "_c";
+    public static final String SEGMENT_EXTENSION = ".bin";
+    
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_MAX_SEGMENT_MILLIS = 3600000L; // 1 h
+    public static final long DEFAULT_RETENTION_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_MILLIS = 90L * 24 * 3600000L; // 90 days
+    public static final long DEFAULT_COMPACT_AFTER_MILLIS = 7L * 24 * 3600000L; // 1 week
+    public static final long DEFAULT_COARSE_RESOLUTION_MILLIS = 10000L;
+    
+    // Stores by canonical directory path (guarded by SegmentStore.class)
+    private static final Map<String, SegmentStore> INSTANCES = new HashMap<>();
+    
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMillis;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long compactAfterMillis;
+    private final long coarseResolutionMillis;
+    private final ExecutorService maintenance;
+    
+    // Closed segments, oldest first (guarded by this)
+    private final List<Segment> segments = new ArrayList<>();
+    
+    // Current segment (guarded by this)
+    private PipeLayout layout;
+    private SampleLogWriter writer;
+    private Segment current;
+    private long latestTimestamp;
+    
+    /**
+     * Get the store of a directory with the default limits
+     * 
+     * @param directory Directory that holds only this store's segments and index
+     * @param layout Sensor layout of the samples
+     * @throws IOException if the directory cannot be created, or the store is
+     *         writing a segment for a different layout
+     */
+    public static SegmentStore getInstance(File directory, PipeLayout layout) throws IOException {
+        return getInstance(directory, layout, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_MILLIS,
+                DEFAULT_RETENTION_BYTES, DEFAULT_RETENTION_MILLIS, DEFAULT_COMPACT_AFTER_MILLIS,
+                DEFAULT_COARSE_RESOLUTION_MILLIS);
+    }
+    
+    /**
+     * Get the store of a directory, creating it with the given limits if it is not open in
+     * this process yet; an open store keeps the limits it was created with
+     * 
+     * @param directory Directory that holds only this store's segments and index
+     * @param layout Sensor layout of the samples
+     * @param maxSegmentBytes Size at which the current segment is closed
+     * @param maxSegmentMillis Time span after which the current segment is closed
+     * @param retentionBytes Total size the closed segments are kept within
+     * @param retentionMillis Age after which segments are deleted
+     * @param compactAfterMillis Age after which segments are rewritten at the coarse resolution
+     * @param coarseResolutionMillis Interval that is averaged into one sample when compacting
+     * @throws IOException if the directory cannot be created, or the store is
+     *         writing a segment for a different layout
+     */
+    public static synchronized SegmentStore getInstance(File directory, PipeLayout layout, long maxSegmentBytes,
+                                                        long maxSegmentMillis, long retentionBytes,
+                                                        long retentionMillis, long compactAfterMillis,
+                                                        long coarseResolutionMillis) throws IOException {
+        String key = directory.getCanonicalPath();
+        SegmentStore store = INSTANCES.get(key);
+        if (store == null) {
+            store = new SegmentStore(directory, layout, maxSegmentBytes, maxSegmentMillis, retentionBytes,
+                    retentionMillis, compactAfterMillis, coarseResolutionMillis);
+            INSTANCES.put(key, store);
+        } else {
+            store.useLayout(layout);
+        }
+        return store;
+    }
+    
+    private SegmentStore(File directory, PipeLayout layout, long maxSegmentBytes, long maxSegmentMillis,
+                         long retentionBytes, long retentionMillis, long compactAfterMillis,
+                         long coarseResolutionMillis) throws IOException {
+        if (maxSegmentBytes <= 0 || maxSegmentMillis <= 0 || retentionBytes <= 0 || retentionMillis <= 0
+                || compactAfterMillis <= 0 || coarseResolutionMillis <= 0) {
+            throw new IllegalArgumentException("Segment limits must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        this.directory = directory;
+        this.layout = layout;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.compactAfterMillis = compactAfterMillis;
+        this.coarseResolutionMillis = coarseResolutionMillis;
+        maintenance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SegmentStore");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        synchronized (this) {
+            segments.addAll(readIndex(directory));
+        }
+        
+        // Reading leftover segments can take a while; do it before any other maintenance
+        maintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                recoverSegments();
+            }
+        });
+    }
+    
+    /**
+     * Add a sample, starting a new segment first if the current one is full
+     */
+    @Override
+    public synchronized void append(long timestamp, double[] flows, double[] pressures, int flags) throws IOException {
+        if (writer != null && (writer.getByteCount() >= maxSegmentBytes
+                || timestamp - current.startMillis >= maxSegmentMillis)) {
+            rotate();
+        }
+        if (writer == null) {
+            current = new Segment(SEGMENT_PREFIX + timestamp + SEGMENT_EXTENSION, timestamp, 0);
+            writer = new SampleLogWriter(new File(directory, current.name), layout, true);
+        }
+        writer.append(timestamp, flows, pressures, flags);
+        current.endMillis = timestamp;
+        latestTimestamp = Math.max(latestTimestamp, timestamp);
+    }
+    
+    /**
+     * Close the current segment; maintenance continues in the background, and the
+     * store stays open for the next append
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            rotate();
+        }
+    }
+    
+    /**
+     * Return the closed segments, oldest first, from the index
+     */
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+    
+    /**
+     * Return the total size of the closed segments in bytes
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.bytes;
+        }
+        return total;
+    }
+    
+    /**
+     * List the segments of a store from its index without opening it
+     * 
+     * @param directory Directory of the store
+     * @return Closed segments, oldest first; empty if there is no store
+     */
+    public static List<Segment> listSegments(File directory) {
+        return readIndex(directory);
+    }
+    
+    /**
+     * Add segments that are missing from the index, i.e. the one being written when the app
+     * was killed; runs on the maintenance thread
+     */
+    private void recoverSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_EXTENSION)) {
+                continue;
+            }
+            synchronized (this) {
+                // Appending may already have started a segment that is not indexed yet
+                if (isIndexed(name) || (current != null && current.name.equals(name))) {
+                    continue;
+                }
+            }
+            try {
+                SampleLogReader reader = new SampleLogReader(file);
+                if (reader.getSampleCount() > 0) {
+                    long resolution = name.endsWith(COARSE_SUFFIX + SEGMENT_EXTENSION) ? coarseResolutionMillis : 0;
+                    Segment segment = new Segment(name, reader.getTimestamp(0), resolution);
+                    segment.endMillis = reader.getTimestamp(reader.getSampleCount() - 1);
+                    segment.bytes = file.length();
+                    synchronized (this) {
+                        insertByStart(segment);
+                        writeIndex();
+                    }
+                    Log.i(TAG, "Recovered segment " + name);
+                    continue;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable segment " + name + ": " + e.getMessage());
+            }
+            file.delete();
+        }
+    }
+    
+    /**
+     * Switch to another layout for the next segment; caller holds SegmentStore.class
+     */
+    private synchronized void useLayout(PipeLayout newLayout) throws IOException {
+        if (sameLayout(layout, newLayout)) {
+            return;
+        }
+        if (writer != null) {
+            throw new IOException("Segment store is writing samples of a different layout");
+        }
+        layout = newLayout;
+    }
+    
+    private static boolean sameLayout(PipeLayout a, PipeLayout b) {
+        if (a.getSensorCount() != b.getSensorCount()) {
+            return false;
+        }
+        for (int i = 0; i < a.getSensorCount(); i++) {
+            if (a.getPosition(i) != b.getPosition(i) || a.getElevation(i) != b.getElevation(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean isIndexed(String name) {
+        for (Segment segment : segments) {
+            if (segment.name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void insertByStart(Segment segment) {
+        int index = segments.size();
+        while (index > 0 && segments.get(index - 1).startMillis > segment.startMillis) {
+            index--;
+        }
+        segments.add(index, segment);
+    }
+    
+    /**
+     * Close the current segment, add it to the index and queue maintenance
+     */
+    private void rotate() throws IOException {
+        SampleLogWriter closing = writer;
+        Segment segment = current;
+        writer = null;
+        current = null;
+        closing.close();
+        segment.bytes = closing.getByteCount();
+        synchronized (this) {
+            segments.add(segment);
+            writeIndex();
+        }
+        
+        final long now = latestTimestamp;
+        maintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(now);
+                enforceRetention(now);
+            }
+        });
+    }
+    
+    /**
+     * Rewrite old full-resolution segments at the coarse resolution
+     */
+    private void compact(long now) {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.resolutionMillis == 0 && now - segment.endMillis >= compactAfterMillis) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            File source = new File(directory, segment.name);
+            String coarseName = segment.name.replace(SEGMENT_EXTENSION, COARSE_SUFFIX + SEGMENT_EXTENSION);
+            File target = new File(directory, coarseName);
+            try {
+                long bytes = downsample(new SampleLogReader(source), target);
+                synchronized (this) {
+                    int index = segments.indexOf(segment);
+                    if (index < 0) {
+                        // Deleted meanwhile
+                        target.delete();
+                        continue;
+                    }
+                    Segment coarse = new Segment(coarseName, segment.startMillis, coarseResolutionMillis);
+                    coarse.endMillis = segment.endMillis;
+                    coarse.bytes = bytes;
+                    segments.set(index, coarse);
+                    writeIndex();
+                }
+                if (!source.delete()) {
+                    Log.w(TAG, "Unable to delete compacted segment " + segment.name);
+                }
+                Log.i(TAG, "Compacted " + segment.name + " from " + segment.bytes + " to " + bytes + " bytes");
+            } catch (IOException e) {
+                Log.e(TAG, "Error compacting " + segment.name, e);
+                target.delete();
+            }
+        }
+    }
+    
+    /**
+     * Average the samples of each coarse interval into one record
+     * 
+     * @return Size of the written segment in bytes
+     */
+    private long downsample(SampleLogReader reader, File target) throws IOException {
+        int sensors = reader.getLayout().getSensorCount();
+        double[] flows = new double[sensors];
+        double[] pressures = new double[sensors];
+        SampleLogWriter out = new SampleLogWriter(target, reader.getLayout(), reader.hasPressures());
+        try {
+            int i = 0;
+            while (i < reader.getSampleCount()) {
+                long bucketStart = reader.getTimestamp(i);
+                long bucket = bucketStart / coarseResolutionMillis;
+                int flags = 0;
+                int count = 0;
+                for (int s = 0; s < sensors; s++) {
+                    flows[s] = 0;
+                    pressures[s] = 0;
+                }
+                while (i < reader.getSampleCount() && reader.getTimestamp(i) / coarseResolutionMillis == bucket) {
+                    for (int s = 0; s < sensors; s++) {
+                        flows[s] += reader.getFlow(i, s);
+                        pressures[s] += reader.getPressure(i, s);
+                    }
+                    flags |= reader.getFlags(i);
+                    count++;
+                    i++;
+                }
+                for (int s = 0; s < sensors; s++) {
+                    flows[s] /= count;
+                    pressures[s] /= count;
+                }
+                out.append(bucketStart, flows, pressures, flags);
+            }
+        } finally {
+            out.close();
+        }
+        return out.getByteCount();
+    }
+    
+    /**
+     * Delete the oldest segments while the store is over its size or age limit
+     */
+    private void enforceRetention(long now) {
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (segments.isEmpty()) {
+                    return;
+                }
+                oldest = segments.get(0);
+                if (getTotalBytes() <= retentionBytes && now - oldest.endMillis < retentionMillis) {
+                    return;
+                }
+                segments.remove(0);
+                writeIndex();
+            }
+            if (!new File(directory, oldest.name).delete()) {
+                Log.w(TAG, "Unable to delete expired segment " + oldest.name);
+            }
+            Log.i(TAG, "Deleted expired segment " + oldest.name);
+        }
+    }
+    
+    /**
+     * Save the index; written to a temporary file first so a crash leaves the old one intact
+     */
+    private void writeIndex() {
+        try {
+            JSONArray array = new JSONArray();
+            for (Segment segment : segments) {
+                JSONObject item = new JSONObject();
+                item.put("name", segment.name);
+                item.put("start", segment.startMillis);
+                item.put("end", segment.endMillis);
+                item.put("bytes", segment.bytes);
+                item.put("resolution", segment.resolutionMillis);
+                array.put(item);
+            }
+            File temporary = new File(directory, INDEX_FILE + ".tmp");
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(array.toString().getBytes(Charset.forName("UTF-8")));
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(new File(directory, INDEX_FILE))) {
+                Log.e(TAG, "Unable to replace segment index");
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error saving segment index", e);
+        }
+    }
+    
+    private static List<Segment> readIndex(File directory) {
+        List<Segment> list = new ArrayList<>();
+        File file = new File(directory, INDEX_FILE);
+        if (!file.isFile()) {
+            return list;
+        }
+        try {
+            byte[] data = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                int read;
+                while (offset < data.length && (read = in.read(data, offset, data.length - offset)) > 0) {
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            JSONArray array = new JSONArray(new String(data, Charset.forName("UTF-8")));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                Segment segment = new Segment(item.getString("name"), item.getLong("start"), item.optLong("resolution", 0));
+                segment.endMillis = item.getLong("end");
+                segment.bytes = item.optLong("bytes", 0);
+                list.add(segment);
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error loading segment index", e);
+        }
+        return list;
+    }
+    
+    /**
+     * One closed segment as recorded in the index
+     */
+    public static class Segment {
+        private final String name;
+        private final long startMillis;
+        private final long resolutionMillis;
+        private long endMillis;
+        private long bytes;
+        
+        Segment(String name, long startMillis, long resolutionMillis) {
+            this.name = name;
+            this.startMillis = startMillis;
+            this.endMillis = startMillis;
+            this.resolutionMillis = resolutionMillis;
+        }
+        
+        /**
+         * Return the file name within the store directory
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Return the time of the first sample in milliseconds since the epoch
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+        
+        /**
+         * Return the time of the last sample in milliseconds since the epoch
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+        
+        /**
+         * Return the size of the segment file in bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+        
+        /**
+         * Return the interval averaged into one sample, or 0 for full resolution
+         */
+        public long getResolutionMillis() {
+            return resolutionMillis;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.pipelinedetector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent registry of known sensor nodes.
+ * Remembers every node that was seen or connected, when that happened and how
+ * long the last RFCOMM connect took, plus the ordered set of preferred nodes
+ * that the app connects to directly at startup without a discovery scan.
+ */
+public class SensorRegistry {
+    private static final String TAG = "SensorRegistry";
+    private static final String PREFS_NAME = "PipelineDetectorPrefs";
+    private static final String KEY_SENSORS = "known_sensors";
+    
+    private static SensorRegistry instance;
+    private final SharedPreferences sharedPreferences;
+    
+    // Known nodes by address, in the order they were first seen (guarded by this)
+    private final Map<String, KnownSensor> sensors = new LinkedHashMap<>();
+    
+    /**
+     * Private constructor for singleton pattern
+     * 
+     * @param context application context
+     */
+    private SensorRegistry(Context context) {
+        sharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+    
+    /**
+     * Get singleton instance
+     * 
+     * @param context application context
+     * @return SensorRegistry instance
+     */
+    public static synchronized SensorRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new SensorRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Record that a node was found by a scan or is paired
+     * 
+     * @param address Bluetooth address
+     * @param name Device name, or null if unknown
+     */
+    public synchronized void recordSeen(String address, String name) {
+        KnownSensor sensor = obtain(address);
+        if (name != null && !name.isEmpty()) {
+            sensor.name = name;
+        }
+        sensor.lastSeen = System.currentTimeMillis();
+        save();
+    }
+    
+    /**
+     * Record a successful connection to a node
+     * 
+     * @param address Bluetooth address
+     * @param name Device name, or null if unknown
+     * @param latencyMs Time the RFCOMM connect took in milliseconds
+     */
+    public synchronized void recordConnected(String address, String name, long latencyMs) {
+        KnownSensor sensor = obtain(address);
+        if (name != null && !name.isEmpty()) {
+            sensor.name = name;
+        }
+        sensor.lastSeen = System.currentTimeMillis();
+        sensor.lastConnectLatencyMs = latencyMs;
+        save();
+    }
+    
+    /**
+     * Replace the preferred nodes
+     * 
+     * @param addresses Bluetooth addresses in node order
+     */
+    public synchronized void setPreferred(List<String> addresses) {
+        for (KnownSensor sensor : sensors.values()) {
+            sensor.preferredRank = -1;
+        }
+        for (int i = 0; i < addresses.size(); i++) {
+            obtain(addresses.get(i)).preferredRank = i;
+        }
+        save();
+    }
+    
+    /**
+     * Add a node to the end of the preferred nodes, or remove it if it is already preferred
+     * 
+     * @param address Bluetooth address
+     * @return true if the node is now preferred
+     */
+    public synchronized boolean togglePreferred(String address) {
+        List<String> preferred = getPreferredAddresses();
+        boolean added = !preferred.remove(address);
+        if (added) {
+            preferred.add(address);
+        }
+        setPreferred(preferred);
+        return added;
+    }
+    
+    /**
+     * Return the addresses of the preferred nodes in node order
+     */
+    public synchronized List<String> getPreferredAddresses() {
+        List<KnownSensor> preferred = new ArrayList<>();
+        for (KnownSensor sensor : sensors.values()) {
+            if (sensor.preferredRank >= 0) {
+                preferred.add(sensor);
+            }
+        }
+        
+        // Few nodes; insertion sort by rank
+        for (int i = 1; i < preferred.size(); i++) {
+            KnownSensor sensor = preferred.get(i);
+            int j = i - 1;
+            while (j >= 0 && preferred.get(j).preferredRank > sensor.preferredRank) {
+                preferred.set(j + 1, preferred.get(j));
+                j--;
+            }
+            preferred.set(j + 1, sensor);
+        }
+        
+        List<String> addresses = new ArrayList<>();
+        for (KnownSensor sensor : preferred) {
+            addresses.add(sensor.address);
+        }
+        return addresses;
+    }
+    
+    /**
+     * Check whether a node is one of the preferred nodes
+     */
+    public synchronized boolean isPreferred(String address) {
+        KnownSensor sensor = sensors.get(address);
+        return sensor != null && sensor.preferredRank >= 0;
+    }
+    
+    /**
+     * Get a known node
+     * 
+     * @param address Bluetooth address
+     * @return A copy of the node's record, or null if the node is unknown
+     */
+    public synchronized KnownSensor getSensor(String address) {
+        KnownSensor sensor = sensors.get(address);
+        return sensor != null ? sensor.copy() : null;
+    }
+    
+    /**
+     * Remove a node from the registry
+     * 
+     * @param address Bluetooth address
+     */
+    public synchronized void forget(String address) {
+        if (sensors.remove(address) != null) {
+            save();
+        }
+    }
+    
+    private KnownSensor obtain(String address) {
+        KnownSensor sensor = sensors.get(address);
+        if (sensor == null) {
+            sensor = new KnownSensor(address);
+            sensors.put(address, sensor);
+        }
+        return sensor;
+    }
+    
+    private void load() {
+        String json = sharedPreferences.getString(KEY_SENSORS, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                KnownSensor sensor = new KnownSensor(item.getString("address"));
+                sensor.name = item.optString("name", null);
+                sensor.lastSeen = item.optLong("lastSeen", 0);
+                sensor.lastConnectLatencyMs = item.optLong("connectLatencyMs", -1);
+                sensor.preferredRank = item.optInt("preferredRank", -1);
+                sensors.put(sensor.address, sensor);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error loading known sensors", e);
+        }
+    }
+    
+    private void save() {
+        try {
+            JSONArray array = new JSONArray();
+            for (KnownSensor sensor : sensors.values()) {
+                JSONObject item = new JSONObject();
+                item.put("address", sensor.address);
+                if (sensor.name != null) {
+                    item.put("name", sensor.name);
+                }
+                item.put("lastSeen", sensor.lastSeen);
+                item.put("connectLatencyMs", sensor.lastConnectLatencyMs);
+                item.put("preferredRank", sensor.preferredRank);
+                array.put(item);
+            }
+            
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putString(KEY_SENSORS, array.toString());
+            editor.apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Error saving known sensors", e);
+        }
+    }
+    
+    /**
+     * What is remembered about one sensor node
+     */
+    public static class KnownSensor {
+        private final String address;
+        private String name;
+        private long lastSeen;
+        private long lastConnectLatencyMs = -1;
+        private int preferredRank = -1;
+        
+        KnownSensor(String address) {
+            this.address = address;
+        }
+        
+        public String getAddress() {
+            return address;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Return the last time the node was seen or connected, in milliseconds since the epoch
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+        
+        /**
+         * Return how long the last connect took in milliseconds, or -1 if it never connected
+         */
+        public long getLastConnectLatencyMs() {
+            return lastConnectLatencyMs;
+        }
+        
+        private KnownSensor copy() {
+            KnownSensor copy = new KnownSensor(address);
+            copy.name = name;
+            copy.lastSeen = lastSeen;
+            copy.lastConnectLatencyMs = lastConnectLatencyMs;
+            copy.preferredRank = preferredRank;
+            return copy;
+        }
+    }
+}
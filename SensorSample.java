@@ -0,0 +1,94 @@
+package com.pipelinedetector;
+
+/**
+ * Reusable holder for one reading of all flow sensors.
+ * Parsers fill an existing instance instead of creating new objects per sample.
+ */
+public class SensorSample {
+    // Upper bound on the number of sensors carried in one frame
+    public static final int MAX_CHANNELS = 32;
+    
+    private final double[] flows = new double[MAX_CHANNELS];
+    private int channelCount;
+    
+    // Only present in binary frames; -1 otherwise
+    private int sequence = -1;
+    private long deviceTimestamp = -1;
+    
+    /**
+     * Return the number of flow values in this sample
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+    
+    /**
+     * Get the flow rate of one sensor
+     * 
+     * @param channel Zero-based sensor index
+     * @return Flow rate in L/min
+     */
+    public double getFlow(int channel) {
+        return flows[channel];
+    }
+    
+    /**
+     * Return the frame sequence number, or -1 if the frame had none
+     */
+    public int getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Return the device clock in milliseconds when the sample was taken, or -1 if unknown
+     */
+    public long getDeviceTimestamp() {
+        return deviceTimestamp;
+    }
+    
+    /**
+     * Copy the flow rates into a caller-owned array
+     * 
+     * @param dst Destination array, at least getChannelCount() long
+     */
+    public void copyFlows(double[] dst) {
+        System.arraycopy(flows, 0, dst, 0, channelCount);
+    }
+    
+    /**
+     * Copy the contents of another sample into this one
+     * 
+     * @param other Sample to copy
+     */
+    public void copyFrom(SensorSample other) {
+        System.arraycopy(other.flows, 0, flows, 0, other.channelCount);
+        channelCount = other.channelCount;
+        sequence = other.sequence;
+        deviceTimestamp = other.deviceTimestamp;
+    }
+    
+    void setFlow(int channel, double flow) {
+        flows[channel] = flow;
+    }
+    
+    void setChannelCount(int channelCount) {
+        this.channelCount = channelCount;
+    }
+    
+    void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+    
+    void setDeviceTimestamp(long deviceTimestamp) {
+        this.deviceTimestamp = deviceTimestamp;
+    }
+    
+    /**
+     * Clear the sample before it is refilled
+     */
+    void clear() {
+        channelCount = 0;
+        sequence = -1;
+        deviceTimestamp = -1;
+    }
+}
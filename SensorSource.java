@@ -0,0 +1,33 @@
+package com.pipelinedetector;
+
+/**
+ * A transport that delivers sensor frames.
+ * Implemented by BluetoothService for real hardware, and by replay and
+ * loopback sources that stand in for it on a workstation. Sources report
+ * their state to the Handler with the BluetoothService message types.
+ */
+public interface SensorSource {
+    /**
+     * Deliver frames directly on the source's reader threads
+     * 
+     * @param listener Listener that copies frames off the reader threads
+     */
+    void setFrameListener(FrameListener listener);
+    
+    /**
+     * Return the current connection state, one of BluetoothService.STATE_*
+     */
+    int getState();
+    
+    /**
+     * Send bytes to the sensors, if the transport supports it
+     * 
+     * @param out The bytes to write
+     */
+    void write(byte[] out);
+    
+    /**
+     * Stop delivering frames and release all resources
+     */
+    void stop();
+}
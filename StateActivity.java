@@ -19,6 +19,7 @@ public class StateActivity extends AppCompatActivity {
     private Button backButton;
     
     private double flow1, flow2, flow3;
+    private double threshold12, threshold23;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -30,6 +31,17 @@ public class StateActivity extends AppCompatActivity {
         flow2 = getIntent().getDoubleExtra("flow2", 0.0);
         flow3 = getIntent().getDoubleExtra("flow3", 0.0);
         
+        // Use the thresholds of the running pipeline, or the ones calibrated for the default rig
+        double[] flowThresholds = getIntent().getDoubleArrayExtra("flow_thresholds");
+        if (flowThresholds != null && flowThresholds.length >= 2) {
+            threshold12 = flowThresholds[0];
+            threshold23 = flowThresholds[1];
+        } else {
+            LeakThresholds thresholds = ThresholdStore.getInstance(this).load(PipeLayout.defaultLayout());
+            threshold12 = thresholds.getFlowDifferenceThreshold(0);
+            threshold23 = thresholds.getFlowDifferenceThreshold(1);
+        }
+        
         // Set up UI elements
         pipeImageView = findViewById(R.id.pipeImageView);
         stateDescriptionTextView = findViewById(R.id.stateDescriptionTextView);
@@ -55,11 +67,9 @@ public class StateActivity extends AppCompatActivity {
         double diff12 = Math.abs(flow1 - flow2);
         double diff23 = Math.abs(flow2 - flow3);
         
-        // Threshold for detecting leaks (adjust based on real data)
-        double threshold = 0.5; // 0.5 L/min
-        
-        boolean leak12 = diff12 > threshold;
-        boolean leak23 = diff23 > threshold;
+        // Per-segment thresholds, learned from a leak-free baseline once the line is calibrated
+        boolean leak12 = diff12 > threshold12;
+        boolean leak23 = diff23 > threshold23;
         
         // Update image and description based on leak location
         if (leak12 && leak23) {
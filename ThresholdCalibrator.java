@@ -0,0 +1,100 @@
+package com.pipelinedetector;
+
+/**
+ * Learns per-segment leak thresholds from a leak-free baseline period.
+ * 
+ * For every segment it keeps two streaming quantile sketches, one of the
+ * flow imbalance across the segment and one of the pressure gradient score,
+ * both as seen by PipeLeakageDetector. A leak is declared when either test
+ * fires, so each gets half of the target false-alarm rate; its threshold is
+ * the matching upper quantile of the baseline times a safety margin. Each
+ * sketch holds five markers, so memory stays fixed however long the
+ * baseline runs.
+ */
+public class ThresholdCalibrator {
+    public static final double DEFAULT_FALSE_ALARM_RATE = 0.002; // per segment and sample
+    public static final int DEFAULT_BASELINE_SAMPLES = 6000; // ten minutes at 10 Hz
+    
+    // Learned thresholds are widened by this factor to cover sketch error and slow drift
+    private static final double MARGIN = 1.2;
+    
+    // Lower limits so a perfectly quiet baseline does not make every ripple an alarm
+    private static final double MIN_FLOW_DIFFERENCE = 0.05; // L/min
+    private static final double MIN_PRESSURE_DROP = 2.0; // percent
+    
+    private final P2Quantile[] imbalances;
+    private final P2Quantile[] scores;
+    private final int baselineSamples;
+    private long samples;
+    
+    /**
+     * Constructor using the default false-alarm rate and baseline length
+     * 
+     * @param segments Number of pipe segments
+     */
+    public ThresholdCalibrator(int segments) {
+        this(segments, DEFAULT_FALSE_ALARM_RATE, DEFAULT_BASELINE_SAMPLES);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param segments Number of pipe segments
+     * @param falseAlarmRate Acceptable fraction of leak-free samples that raise an alarm in a segment
+     * @param baselineSamples Number of samples to observe before the thresholds are final
+     */
+    public ThresholdCalibrator(int segments, double falseAlarmRate, int baselineSamples) {
+        if (!(falseAlarmRate > 0 && falseAlarmRate < 1) || baselineSamples <= 0) {
+            throw new IllegalArgumentException("Invalid false-alarm rate or baseline length");
+        }
+        this.baselineSamples = baselineSamples;
+        double quantile = 1 - falseAlarmRate / 2;
+        imbalances = new P2Quantile[segments];
+        scores = new P2Quantile[segments];
+        for (int i = 0; i < segments; i++) {
+            imbalances[i] = new P2Quantile(quantile);
+            scores[i] = new P2Quantile(quantile);
+        }
+    }
+    
+    /**
+     * Observe one leak-free sample
+     * 
+     * @param flows Flow rate at each sensor in L/min
+     * @param detector Detector that has just run detect() on the same sample
+     */
+    public void update(double[] flows, PipeLeakageDetector detector) {
+        for (int i = 0; i < imbalances.length; i++) {
+            imbalances[i].add(Math.abs(flows[i] - flows[i + 1]));
+            scores[i].add(detector.getScore(i));
+        }
+        samples++;
+    }
+    
+    /**
+     * Check whether the baseline period is over
+     */
+    public boolean isComplete() {
+        return samples >= baselineSamples;
+    }
+    
+    /**
+     * Return the fraction of the baseline period observed so far, between 0 and 1
+     */
+    public double getProgress() {
+        return Math.min(1.0, (double) samples / baselineSamples);
+    }
+    
+    /**
+     * Derive thresholds from the samples observed so far
+     */
+    public LeakThresholds getThresholds() {
+        double[] pressure = new double[scores.length];
+        double[] flow = new double[imbalances.length];
+        for (int i = 0; i < scores.length; i++) {
+            pressure[i] = Math.max(MIN_PRESSURE_DROP, scores[i].getQuantile() * MARGIN);
+            flow[i] = Math.max(MIN_FLOW_DIFFERENCE, imbalances[i].getQuantile() * MARGIN);
+        }
+        return new LeakThresholds(pressure, flow, samples);
+    }
+}
@@ -0,0 +1,102 @@
+package com.pipelinedetector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persists calibrated leak thresholds, one set per pipe layout.
+ * A layout is identified by its sensor positions, so recalibrating one
+ * installation does not disturb the thresholds of another.
+ */
+public class ThresholdStore {
+    private static final String TAG = "ThresholdStore";
+    private static final String PREFS_NAME = "PipelineDetectorPrefs";
+    private static final String KEY_PREFIX = "leak_thresholds_";
+    
+    private static ThresholdStore instance;
+    private final SharedPreferences sharedPreferences;
+    
+    /**
+     * Private constructor for singleton pattern
+     * 
+     * @param context application context
+     */
+    private ThresholdStore(Context context) {
+        sharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+    
+    /**
+     * Get singleton instance
+     * 
+     * @param context application context
+     * @return ThresholdStore instance
+     */
+    public static synchronized ThresholdStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThresholdStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    /**
+     * Load the thresholds of a layout
+     * 
+     * @param layout Pipe layout
+     * @return The calibrated thresholds, or the defaults if none were stored
+     */
+    public LeakThresholds load(PipeLayout layout) {
+        String json = sharedPreferences.getString(key(layout), null);
+        if (json != null) {
+            try {
+                LeakThresholds thresholds = LeakThresholds.fromJson(new JSONObject(json));
+                if (thresholds.getSegmentCount() == layout.getSegmentCount()) {
+                    return thresholds;
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Error loading thresholds", e);
+            }
+        }
+        return LeakThresholds.defaults(layout.getSegmentCount());
+    }
+    
+    /**
+     * Store the thresholds of a layout
+     * 
+     * @param layout Pipe layout
+     * @param thresholds Thresholds to store
+     * @return true if stored successfully, false otherwise
+     */
+    public boolean save(PipeLayout layout, LeakThresholds thresholds) {
+        try {
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putString(key(layout), thresholds.toJson().toString());
+            editor.apply();
+            return true;
+        } catch (JSONException e) {
+            Log.e(TAG, "Error saving thresholds", e);
+            return false;
+        }
+    }
+    
+    /**
+     * Drop the calibrated thresholds of a layout so the defaults apply again
+     */
+    public void clear(PipeLayout layout) {
+        sharedPreferences.edit().remove(key(layout)).apply();
+    }
+    
+    private static String key(PipeLayout layout) {
+        StringBuilder key = new StringBuilder(KEY_PREFIX);
+        for (int i = 0; i < layout.getSensorCount(); i++) {
+            if (i > 0) {
+                key.append('_');
+            }
+            key.append(layout.getPosition(i));
+        }
+        return key.toString();
+    }
+}